@@ -0,0 +1,70 @@
+import java.lang.management.ManagementFactory;
+
+// A small fixed-time benchmark harness: warmup and measurement iterations of one second each,
+// reporting throughput and bytes allocated per operation across all live threads, so work done
+// by session writers and event loops on behalf of an operation is counted too.
+final class Bench {
+  interface Operation {
+    void run() throws Exception;
+  }
+
+  private static final com.sun.management.ThreadMXBean THREADS =
+    (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  private static int warmupIterations = 2;
+  private static int measurementIterations = 3;
+  private static long iterationNanos = 1_000_000_000L;
+
+  private Bench() {
+  }
+
+  static void configure(int warmup, int measurement, long iterationMillis) {
+    warmupIterations = warmup;
+    measurementIterations = measurement;
+    iterationNanos = iterationMillis * 1_000_000L;
+  }
+
+  static void header() {
+    System.out.println(String.format("%-28s %10s %16s %14s", "Benchmark", "Param", "Score (ops/s)", "Alloc (B/op)"));
+  }
+
+  static void run(String name, Object param, Operation operation) throws Exception {
+    for (int i = 0; i < warmupIterations; i++) {
+      iterate(operation);
+    }
+
+    long operations = 0;
+    long nanos = 0;
+    long allocated = 0;
+    for (int i = 0; i < measurementIterations; i++) {
+      long allocatedBefore = allocatedBytes();
+      long started = System.nanoTime();
+      operations += iterate(operation);
+      nanos += System.nanoTime() - started;
+      allocated += allocatedBytes() - allocatedBefore;
+    }
+
+    System.out.println(String.format("%-28s %10s %16.1f %14.1f",
+      name, param, operations * 1e9 / nanos, allocated / (double) operations));
+  }
+
+  private static long iterate(Operation operation) throws Exception {
+    long deadline = System.nanoTime() + iterationNanos;
+    long operations = 0;
+    do {
+      operation.run();
+      operations++;
+    } while (System.nanoTime() < deadline);
+    return operations;
+  }
+
+  private static long allocatedBytes() {
+    long total = 0;
+    for (long allocated : THREADS.getThreadAllocatedBytes(THREADS.getAllThreadIds())) {
+      if (allocated > 0) {
+        total += allocated;
+      }
+    }
+    return total;
+  }
+}
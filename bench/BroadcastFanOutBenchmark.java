@@ -0,0 +1,135 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+// Measures sender CPU per broadcast for growing rooms, with the frame encoded once and shared
+// versus re-encoded for every recipient as the server used to do, and then the time until the last
+// recipient of a large room has the message, with the fan-out on the sender's thread versus split
+// across the fan-out pool. Recipients are in-memory transports, so the numbers cover routing and
+// encoding without socket writes.
+//
+// java -cp <classes> BroadcastFanOutBenchmark [broadcasts]
+public class BroadcastFanOutBenchmark {
+  private static final int[] ROOM_SIZES = {10, 100, 1000, 5000};
+  private static final int[] LARGE_ROOM_SIZES = {10_000, 50_000};
+  private static final String MESSAGE = "The quick brown fox jumps over the lazy dog, again and again.";
+
+  public static void main(String[] args) throws Exception {
+    int broadcasts = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    System.out.println(String.format("%10s %18s %18s %12s",
+      "room size", "shared us/bcast", "per-user us/bcast", "ns/recipient"));
+    for (int roomSize : ROOM_SIZES) {
+      double shared = measure(threads, roomSize, broadcasts, false);
+      double perUser = measure(threads, roomSize, broadcasts, true);
+      System.out.println(String.format("%10d %18.1f %18.1f %12.1f",
+        roomSize, shared / 1000.0, perUser / 1000.0, shared / roomSize));
+    }
+
+    System.out.println();
+    System.out.println(String.format("%10s %18s %18s %8s",
+      "room size", "1 thread us/bcast", "parallel us/bcast", "threads"));
+    int parallelism = Runtime.getRuntime().availableProcessors();
+    for (int roomSize : LARGE_ROOM_SIZES) {
+      double sequential = measureLatency(roomSize, broadcasts, 0, parallelism);
+      double parallel = measureLatency(roomSize, broadcasts, 1024, parallelism);
+      System.out.println(String.format("%10d %18.1f %18.1f %8d",
+        roomSize, sequential / 1000.0, parallel / 1000.0, parallelism));
+    }
+  }
+
+  // Wall time per broadcast, which ends once the last recipient has the message.
+  private static double measureLatency(int roomSize, int broadcasts, int threshold, int parallelism)
+    throws IOException {
+    ChatServer chatServer = new ChatServer();
+    chatServer.setParallelFanOut(threshold, parallelism);
+    MemoryUser sender = null;
+    for (int i = 0; i < roomSize; i++) {
+      MemoryUser user = new MemoryUser(chatServer, chatServer.nextUserId(), false);
+      chatServer.addUnhandledUser(user);
+      user.login("user" + i);
+      sender = user;
+    }
+
+    for (int i = 0; i < Math.max(broadcasts, 2_000_000 / roomSize); i++) {
+      chatServer.sendBroadcastMessage(sender, MESSAGE, true);
+    }
+
+    long started = System.nanoTime();
+    for (int i = 0; i < broadcasts; i++) {
+      chatServer.sendBroadcastMessage(sender, MESSAGE, true);
+    }
+    double nanos = (System.nanoTime() - started) / (double) broadcasts;
+    chatServer.stop();
+    return nanos;
+  }
+
+  private static double measure(ThreadMXBean threads, int roomSize, int broadcasts, boolean encodeEach)
+    throws IOException {
+    ChatServer chatServer = new ChatServer();
+    MemoryUser sender = null;
+    for (int i = 0; i < roomSize; i++) {
+      MemoryUser user = new MemoryUser(chatServer, chatServer.nextUserId(), encodeEach);
+      chatServer.addUnhandledUser(user);
+      user.login("user" + i);
+      sender = user;
+    }
+
+    for (int i = 0; i < Math.max(broadcasts, 200_000 / roomSize); i++) {
+      chatServer.sendBroadcastMessage(sender, MESSAGE, true);
+    }
+
+    long started = threads.getCurrentThreadCpuTime();
+    for (int i = 0; i < broadcasts; i++) {
+      chatServer.sendBroadcastMessage(sender, MESSAGE, true);
+    }
+    return (threads.getCurrentThreadCpuTime() - started) / (double) broadcasts;
+  }
+
+  private static class MemoryUser extends ChatServer.ServerUser {
+    private final boolean encodeEach;
+    private long bytes = 0;
+
+    MemoryUser(ChatServer server, int userId, boolean encodeEach) {
+      super(server, userId);
+      this.encodeEach = encodeEach;
+    }
+
+    @Override
+    boolean send(OutboundMessage message) {
+      try {
+        if (encodeEach) {
+          bytes += WireFormat.FRAMED.encode(message.getText()).length;
+        } else {
+          bytes += message.buffer(WireFormat.FRAMED).remaining();
+        }
+      } catch (IOException e) {
+        return false;
+      }
+      return true;
+    }
+
+    @Override
+    void wakeWriter() {
+    }
+
+    @Override
+    WireFormat getWireFormat() {
+      return WireFormat.FRAMED;
+    }
+
+    @Override
+    long getLastReadNanos() {
+      return System.nanoTime();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    void closeConnection() {
+    }
+  }
+}
@@ -0,0 +1,77 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.Socket;
+
+// Benchmarks for the server hot paths over in-JVM loopback sockets, so they run offline.
+//
+// java -cp <classes> ChatServerBenchmarks [roomSizes] [whoisSizes]
+//   e.g. ChatServerBenchmarks 10,1000,10000 1000,10000
+//
+// Large rooms need two file descriptors per user; raise `ulimit -n` accordingly.
+public class ChatServerBenchmarks {
+  private static final String MESSAGE = "The quick brown fox jumps over the lazy dog.";
+
+  public static void main(String[] args) throws Exception {
+    int[] roomSizes = sizes(args.length > 0 ? args[0] : "10,1000,10000");
+    int[] whoisSizes = sizes(args.length > 1 ? args[1] : "1000,10000");
+
+    Bench.header();
+    for (int users : roomSizes) {
+      try (LoopbackRoom room = new LoopbackRoom(users, ChatServer.Engine.NIO)) {
+        ChatServer chatServer = room.getServer();
+        ChatServer.ServerUser sender = room.user(0);
+        Bench.run("sendBroadcastMessage", users, () -> chatServer.sendBroadcastMessage(sender, MESSAGE, true));
+      }
+    }
+
+    try (LoopbackRoom room = new LoopbackRoom(1000, ChatServer.Engine.NIO)) {
+      ChatServer chatServer = room.getServer();
+      ChatServer.ServerUser sender = room.user(0);
+      int[] next = {0};
+      Bench.run("sendUserMessage", 1000, () -> {
+        next[0] = (next[0] + 1) % 1000;
+        chatServer.sendUserMessage(sender, LoopbackRoom.userName(next[0]), MESSAGE);
+      });
+      Bench.run("formMessage", "-", () -> chatServer.formMessage(sender, MESSAGE));
+    }
+
+    for (int users : whoisSizes) {
+      try (LoopbackRoom room = new LoopbackRoom(users, ChatServer.Engine.NIO)) {
+        ChatServer chatServer = room.getServer();
+        String requester = LoopbackRoom.userName(0);
+        Bench.run("getWHOIS", users, () -> chatServer.getWHOIS(requester));
+      }
+    }
+
+    for (ChatServer.Engine engine : ChatServer.Engine.values()) {
+      try (LoopbackRoom room = new LoopbackRoom(0, engine)) {
+        int port = room.getPort();
+        int[] next = {0};
+        Bench.run("handshake", engine, () -> handshake(port, "guest" + next[0]++));
+      }
+    }
+  }
+
+  private static void handshake(int port, String userName) throws Exception {
+    try (Socket socket = new Socket("127.0.0.1", port)) {
+      socket.setSoLinger(true, 0);
+      DataOutputStream writer = new DataOutputStream(socket.getOutputStream());
+      writer.write(FrameCodec.preamble(FrameCodec.VERSION));
+      writer.write(FrameCodec.encodeHello(0, userName));
+      writer.flush();
+
+      DataInputStream reader = new DataInputStream(socket.getInputStream());
+      reader.readFully(new byte[FrameCodec.MAGIC.length + 1]);
+      reader.readFully(new byte[reader.readInt()]);
+    }
+  }
+
+  private static int[] sizes(String list) {
+    String[] parts = list.split(",");
+    int[] sizes = new int[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      sizes[i] = Integer.parseInt(parts[i].trim());
+    }
+    return sizes;
+  }
+}
@@ -0,0 +1,73 @@
+// Log-linear latency histogram in the spirit of HdrHistogram: every power of two is split into 128
+// linear sub-buckets, which keeps each recorded value within 1% of its true value at any magnitude.
+// Not thread-safe; give each thread its own and add() them up at the end.
+final class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 7;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final long HIGHEST_TRACKABLE = 3_600_000_000_000L;
+
+  private final long[] counts = new long[index(HIGHEST_TRACKABLE) + 1];
+  private long totalCount = 0;
+  private long min = Long.MAX_VALUE;
+  private long max = 0;
+  private double sum = 0;
+
+  void record(long value) {
+    value = Math.max(0, Math.min(value, HIGHEST_TRACKABLE));
+    counts[index(value)]++;
+    totalCount++;
+    min = Math.min(min, value);
+    max = Math.max(max, value);
+    sum += value;
+  }
+
+  void add(LatencyHistogram other) {
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] += other.counts[i];
+    }
+    totalCount += other.totalCount;
+    min = Math.min(min, other.min);
+    max = Math.max(max, other.max);
+    sum += other.sum;
+  }
+
+  long getTotalCount() {
+    return totalCount;
+  }
+
+  long getMin() {
+    return totalCount > 0 ? min : 0;
+  }
+
+  long getMax() {
+    return max;
+  }
+
+  double getMean() {
+    return totalCount > 0 ? sum / totalCount : 0;
+  }
+
+  // The highest value that is equivalent to the one at the given percentile.
+  long getValueAtPercentile(double percentile) {
+    long target = Math.max(1, (long) Math.ceil(percentile / 100 * totalCount));
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= target) {
+        return Math.min(highestEquivalent(i), max);
+      }
+    }
+    return max;
+  }
+
+  private static int index(long value) {
+    int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+    return (int) ((shift << SUB_BUCKET_BITS) + (value >>> shift));
+  }
+
+  private static long highestEquivalent(int index) {
+    int shift = Math.max(0, (index >>> SUB_BUCKET_BITS) - 1);
+    long lowest = (long) (index - (shift << SUB_BUCKET_BITS)) << shift;
+    return lowest + (1L << shift) - 1;
+  }
+}
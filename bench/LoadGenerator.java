@@ -0,0 +1,586 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Drives many simulated framed-protocol clients from a few selector threads and reports delivery
+// latency, throughput and failed sends.
+//
+// java -cp <classes> LoadGenerator [key=value...]
+//   sessions=1000 rate=2000 duration=10 mix=broadcast:70,direct:20,whois:5,pengu:5
+//   payload=64 threads=2 host=127.0.0.1 port=0 engine=NIO
+//
+// rate is the total number of commands per second across all sessions. port=0 starts a server in
+// the same JVM on a free port. Latency is measured for broadcast and direct messages, from the time
+// each command was scheduled to be sent until a simulated client receives it, so a stalled server
+// can't hide its backlog by slowing the generator down.
+public class LoadGenerator {
+  private static final String[] KINDS = {"broadcast", "direct", "whois", "pengu"};
+  private static final byte[] MARKER = "lg:".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] WELCOME = "Hello!".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] NOT_SENT = "The message hasn't been sent".getBytes(StandardCharsets.US_ASCII);
+  private static final int MAX_PENDING_BYTES = 1 << 20;
+
+  private String host = "127.0.0.1";
+  private int port = 0;
+  private ChatServer.Engine engine = ChatServer.Engine.NIO;
+  private int sessions = 1000;
+  private int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+  private double rate = 2000;
+  private long durationNanos = TimeUnit.SECONDS.toNanos(10);
+  private long drainNanos = TimeUnit.SECONDS.toNanos(2);
+  private int[] mix = {70, 20, 5, 5};
+  private int payloadSize = 64;
+
+  private final AtomicInteger loggedIn = new AtomicInteger(0);
+  private volatile long startNanos = 0;
+  private volatile long stopNanos = Long.MAX_VALUE;
+
+  public static void main(String[] args) throws Exception {
+    LoadGenerator generator = new LoadGenerator();
+    for (String arg : args) {
+      String[] option = arg.split("=", 2);
+      if (option.length != 2) {
+        throw new IllegalArgumentException("expected key=value: " + arg);
+      }
+      generator.set(option[0], option[1]);
+    }
+    generator.run().print(System.out);
+  }
+
+  public void setHost(String host) {
+    this.host = host;
+  }
+
+  public void setPort(int port) {
+    this.port = port;
+  }
+
+  public void setEngine(ChatServer.Engine engine) {
+    this.engine = engine;
+  }
+
+  public void setSessions(int sessions) {
+    this.sessions = sessions;
+  }
+
+  public void setThreads(int threads) {
+    this.threads = Math.max(1, threads);
+  }
+
+  public void setRate(double commandsPerSecond) {
+    this.rate = commandsPerSecond;
+  }
+
+  public void setDuration(long duration, TimeUnit unit) {
+    this.durationNanos = unit.toNanos(duration);
+  }
+
+  public void setDrain(long drain, TimeUnit unit) {
+    this.drainNanos = unit.toNanos(drain);
+  }
+
+  // Relative weights of broadcast, @user, WHOIS and PENGU commands.
+  public void setMix(int broadcast, int direct, int whois, int pengu) {
+    this.mix = new int[] {broadcast, direct, whois, pengu};
+  }
+
+  public void setPayloadSize(int payloadSize) {
+    this.payloadSize = payloadSize;
+  }
+
+  private void set(String key, String value) {
+    switch (key) {
+      case "host":
+        setHost(value);
+        break;
+      case "port":
+        setPort(Integer.parseInt(value));
+        break;
+      case "engine":
+        setEngine(ChatServer.Engine.valueOf(value.toUpperCase()));
+        break;
+      case "sessions":
+        setSessions(Integer.parseInt(value));
+        break;
+      case "threads":
+        setThreads(Integer.parseInt(value));
+        break;
+      case "rate":
+        setRate(Double.parseDouble(value));
+        break;
+      case "duration":
+        setDuration(Long.parseLong(value), TimeUnit.SECONDS);
+        break;
+      case "drain":
+        setDrain(Long.parseLong(value), TimeUnit.SECONDS);
+        break;
+      case "payload":
+        setPayloadSize(Integer.parseInt(value));
+        break;
+      case "mix":
+        int[] weights = new int[KINDS.length];
+        for (String part : value.split(",")) {
+          String[] weight = part.split(":", 2);
+          int kind = kindOf(weight[0].trim());
+          weights[kind] = Integer.parseInt(weight[1].trim());
+        }
+        setMix(weights[0], weights[1], weights[2], weights[3]);
+        break;
+      default:
+        throw new IllegalArgumentException("unknown option: " + key);
+    }
+  }
+
+  private static int kindOf(String name) {
+    for (int i = 0; i < KINDS.length; i++) {
+      if (KINDS[i].equals(name)) {
+        return i;
+      }
+    }
+    throw new IllegalArgumentException("unknown command kind: " + name);
+  }
+
+  static String userName(int index) {
+    return "load" + index;
+  }
+
+  public Report run() throws Exception {
+    ChatServer chatServer = null;
+    int target = port;
+    if (target == 0) {
+      target = freePort();
+      chatServer = new ChatServer(target);
+      chatServer.setEngine(engine);
+      chatServer.start();
+      while (!chatServer.isAlive()) {
+        Thread.sleep(10);
+      }
+    }
+
+    List<Worker> workers = new ArrayList<>();
+    try {
+      for (int i = 0; i < threads; i++) {
+        workers.add(new Worker(i));
+      }
+      for (int i = 0; i < sessions; i++) {
+        Worker worker = workers.get(i % threads);
+        worker.connect(new InetSocketAddress(host, target), userName(i));
+      }
+      for (Worker worker : workers) {
+        worker.start();
+      }
+
+      long loginDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+      while (loggedIn.get() < sessions && System.nanoTime() < loginDeadline) {
+        Thread.sleep(10);
+      }
+      startNanos = System.nanoTime();
+      stopNanos = startNanos + durationNanos;
+      for (Worker worker : workers) {
+        worker.selector.wakeup();
+      }
+      for (Worker worker : workers) {
+        worker.join();
+      }
+    } finally {
+      if (chatServer != null) {
+        chatServer.stop();
+      }
+      for (Worker worker : workers) {
+        worker.close();
+      }
+    }
+
+    Report report = new Report(sessions, loggedIn.get(), durationNanos);
+    for (Worker worker : workers) {
+      report.add(worker);
+    }
+    return report;
+  }
+
+  private static int freePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  private static boolean startsWith(ByteBuffer payload, byte[] prefix) {
+    if (payload.remaining() < prefix.length) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length; i++) {
+      if (payload.get(payload.position() + i) != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // The send time embedded after the marker, or -1 if the message doesn't carry one.
+  private static long sentAt(ByteBuffer payload) {
+    int end = payload.limit() - MARKER.length;
+    for (int i = payload.position(); i <= end; i++) {
+      if (payload.get(i) == MARKER[0] && payload.get(i + 1) == MARKER[1] && payload.get(i + 2) == MARKER[2]) {
+        long value = 0;
+        int digits = 0;
+        for (int j = i + MARKER.length; j < payload.limit(); j++) {
+          byte b = payload.get(j);
+          if (b < '0' || b > '9') {
+            break;
+          }
+          value = value * 10 + (b - '0');
+          digits++;
+        }
+        return digits > 0 ? value : -1;
+      }
+    }
+    return -1;
+  }
+
+  private class Worker extends Thread {
+    private final Selector selector;
+    private final List<Session> sessions = new ArrayList<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+    private final SplittableRandom random;
+    private final String padding;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final long[] sent = new long[KINDS.length];
+    private long delivered = 0;
+    private long received = 0;
+    private long failed = 0;
+    private long disconnected = 0;
+
+    Worker(int index) throws IOException {
+      super("load-generator-" + index);
+      this.selector = Selector.open();
+      this.random = new SplittableRandom(index);
+      StringBuilder builder = new StringBuilder();
+      for (int i = 0; i < payloadSize; i++) {
+        builder.append((char) ('a' + i % 26));
+      }
+      this.padding = builder.toString();
+    }
+
+    void connect(InetSocketAddress address, String userName) {
+      try {
+        SocketChannel channel = SocketChannel.open(address);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        channel.configureBlocking(false);
+        Session session = new Session(channel, userName);
+        session.key = channel.register(selector, SelectionKey.OP_READ, session);
+        session.write(ByteBuffer.wrap(FrameCodec.preamble(FrameCodec.VERSION)));
+        session.write(ByteBuffer.wrap(FrameCodec.encodeHello(0, userName)));
+        sessions.add(session);
+      } catch (IOException e) {
+        System.out.println("Connecting " + userName + " has failed (" + e.getMessage() + ")");
+        disconnected++;
+      }
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (startNanos == 0) {
+          poll(10);
+        }
+
+        // Commands are sent on a fixed schedule; when the worker falls behind, it catches up in
+        // bursts and the latency of each command still counts from its scheduled time.
+        double interval = 1e9 * threads / rate;
+        long scheduled = 0;
+        long next = startNanos;
+        long now = System.nanoTime();
+        while (now < stopNanos) {
+          for (int burst = 0; next <= now && burst < 1000; burst++) {
+            send(next);
+            next = startNanos + (long) (++scheduled * interval);
+          }
+          long waitMillis = TimeUnit.NANOSECONDS.toMillis(Math.min(next, stopNanos) - now);
+          poll(waitMillis);
+          now = System.nanoTime();
+        }
+
+        long drainUntil = stopNanos + drainNanos;
+        while ((now = System.nanoTime()) < drainUntil) {
+          poll(Math.max(1, TimeUnit.NANOSECONDS.toMillis(drainUntil - now)));
+        }
+      } catch (IOException e) {
+        System.out.println("The load generator has failed (" + e.getMessage() + ")");
+      }
+    }
+
+    private void poll(long timeoutMillis) throws IOException {
+      if (timeoutMillis > 0) {
+        selector.select(timeoutMillis);
+      } else {
+        selector.selectNow();
+      }
+
+      Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while (keys.hasNext()) {
+        SelectionKey key = keys.next();
+        keys.remove();
+        Session session = (Session) key.attachment();
+        try {
+          if (key.isValid() && key.isWritable()) {
+            session.flush();
+          }
+          if (key.isValid() && key.isReadable()) {
+            session.read();
+          }
+        } catch (IOException e) {
+          session.close();
+        }
+      }
+    }
+
+    private void send(long scheduledAt) {
+      Session session = sessions.isEmpty() ? null : sessions.get(random.nextInt(sessions.size()));
+      int kind = nextKind();
+      sent[kind]++;
+      if (session == null || !session.ready) {
+        failed++;
+        return;
+      }
+
+      String command;
+      if (kind == 0) {
+        command = "lg:" + scheduledAt + " " + padding;
+      } else if (kind == 1) {
+        command = "@" + userName(random.nextInt(LoadGenerator.this.sessions)) + " lg:" + scheduledAt + " " + padding;
+      } else if (kind == 2) {
+        command = "WHOIS";
+      } else {
+        command = "PENGU";
+      }
+
+      if (session.pendingBytes > MAX_PENDING_BYTES) {
+        failed++;
+        return;
+      }
+      try {
+        session.write(ByteBuffer.wrap(FrameCodec.encodeText(command)));
+      } catch (IOException e) {
+        failed++;
+        session.close();
+      }
+    }
+
+    private int nextKind() {
+      int total = 0;
+      for (int weight : mix) {
+        total += weight;
+      }
+      int pick = random.nextInt(Math.max(1, total));
+      for (int i = 0; i < mix.length; i++) {
+        pick -= mix[i];
+        if (pick < 0) {
+          return i;
+        }
+      }
+      return 0;
+    }
+
+    void close() {
+      for (Session session : sessions) {
+        try {
+          session.channel.close();
+        } catch (IOException e) {
+          System.out.println("Closing " + session.userName + " has failed (" + e.getMessage() + ")");
+        }
+      }
+      try {
+        selector.close();
+      } catch (IOException e) {
+        System.out.println("Closing the selector has failed (" + e.getMessage() + ")");
+      }
+    }
+
+    private class Session {
+      private final SocketChannel channel;
+      private final String userName;
+      private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+      private final FrameCodec.Decoder decoder = new FrameCodec.Decoder();
+      private long pendingBytes = 0;
+      private int preambleRead = 0;
+      private boolean ready = false;
+      private boolean closed = false;
+      private SelectionKey key;
+
+      Session(SocketChannel channel, String userName) {
+        this.channel = channel;
+        this.userName = userName;
+      }
+
+      void write(ByteBuffer frame) throws IOException {
+        if (pending.isEmpty()) {
+          channel.write(frame);
+          if (!frame.hasRemaining()) {
+            return;
+          }
+        }
+        pending.add(frame);
+        pendingBytes += frame.remaining();
+        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+      }
+
+      void flush() throws IOException {
+        while (!pending.isEmpty()) {
+          ByteBuffer frame = pending.peek();
+          int written = channel.write(frame);
+          pendingBytes -= written;
+          if (frame.hasRemaining()) {
+            return;
+          }
+          pending.poll();
+        }
+        key.interestOps(SelectionKey.OP_READ);
+      }
+
+      void read() throws IOException {
+        readBuffer.clear();
+        if (channel.read(readBuffer) < 0) {
+          close();
+          return;
+        }
+        readBuffer.flip();
+        while (preambleRead < FrameCodec.MAGIC.length + 1 && readBuffer.hasRemaining()) {
+          readBuffer.get();
+          preambleRead++;
+        }
+        decoder.decode(readBuffer, this::onFrame);
+      }
+
+      private void onFrame(byte type, ByteBuffer payload) {
+        if (type == FrameCodec.PING) {
+          try {
+            write(ByteBuffer.wrap(FrameCodec.encode(FrameCodec.PONG, new byte[0])));
+          } catch (IOException e) {
+            close();
+          }
+          return;
+        }
+        if (type != FrameCodec.TEXT) {
+          return;
+        }
+        received++;
+        if (!ready) {
+          if (startsWith(payload, WELCOME)) {
+            ready = true;
+            loggedIn.incrementAndGet();
+          }
+          return;
+        }
+        if (startsWith(payload, NOT_SENT)) {
+          failed++;
+          return;
+        }
+
+        long sentAt = sentAt(payload);
+        if (sentAt >= 0) {
+          delivered++;
+          latency.record(System.nanoTime() - sentAt);
+        }
+      }
+
+      void close() {
+        if (closed) {
+          return;
+        }
+        closed = true;
+        ready = false;
+        disconnected++;
+        key.cancel();
+        try {
+          channel.close();
+        } catch (IOException e) {
+          System.out.println("Closing " + userName + " has failed (" + e.getMessage() + ")");
+        }
+      }
+    }
+  }
+
+  public static class Report {
+    private final int sessions;
+    private final int loggedIn;
+    private final long durationNanos;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final long[] sent = new long[KINDS.length];
+    private long delivered = 0;
+    private long received = 0;
+    private long failed = 0;
+    private long disconnected = 0;
+
+    private Report(int sessions, int loggedIn, long durationNanos) {
+      this.sessions = sessions;
+      this.loggedIn = loggedIn;
+      this.durationNanos = durationNanos;
+    }
+
+    private void add(Worker worker) {
+      latency.add(worker.latency);
+      for (int i = 0; i < sent.length; i++) {
+        sent[i] += worker.sent[i];
+      }
+      delivered += worker.delivered;
+      received += worker.received;
+      failed += worker.failed;
+      disconnected += worker.disconnected;
+    }
+
+    public long getSent() {
+      long total = 0;
+      for (long count : sent) {
+        total += count;
+      }
+      return total;
+    }
+
+    public long getDelivered() {
+      return delivered;
+    }
+
+    public long getFailed() {
+      return failed;
+    }
+
+    public long getDisconnected() {
+      return disconnected;
+    }
+
+    public long getLatencyAtPercentile(double percentile, TimeUnit unit) {
+      return unit.convert(latency.getValueAtPercentile(percentile), TimeUnit.NANOSECONDS);
+    }
+
+    public void print(java.io.PrintStream out) {
+      double seconds = durationNanos / 1e9;
+      out.println(String.format("sessions      %d (%d logged in)", sessions, loggedIn));
+      out.println(String.format("sent          %d (%.1f/s): broadcast %d, direct %d, whois %d, pengu %d",
+        getSent(), getSent() / seconds, sent[0], sent[1], sent[2], sent[3]));
+      out.println(String.format("delivered     %d (%.1f/s), %d frames received in total",
+        delivered, delivered / seconds, received));
+      out.println(String.format("failed sends  %d, disconnected %d", failed, disconnected));
+      out.println(String.format("latency (ms)  count %d, mean %.3f", latency.getTotalCount(), latency.getMean() / 1e6));
+      out.println(String.format("%14s %12s", "percentile", "ms"));
+      for (double percentile : new double[] {0, 50, 90, 99, 99.9, 99.99, 100}) {
+        long value = percentile == 0 ? latency.getMin()
+          : percentile == 100 ? latency.getMax() : latency.getValueAtPercentile(percentile);
+        out.println(String.format("%14s %12.3f", percentile == 0 ? "min" : percentile == 100 ? "max"
+          : String.valueOf(percentile), value / 1e6));
+      }
+    }
+  }
+}
@@ -0,0 +1,105 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// A ChatServer on a free loopback port with N logged-in users whose sockets are drained and
+// discarded by a single client-side selector thread.
+final class LoopbackRoom implements AutoCloseable {
+  private final ChatServer chatServer;
+  private final int port;
+  private final Selector selector;
+  private final Thread drainer;
+  private final AtomicBoolean stopFlag = new AtomicBoolean(false);
+
+  LoopbackRoom(int users, ChatServer.Engine engine) throws Exception {
+    port = freePort();
+    chatServer = new ChatServer(port);
+    chatServer.setEngine(engine);
+    chatServer.setOutboundQueueCapacity(4096);
+    chatServer.setSlowConsumerPolicy(ChatServer.SlowConsumerPolicy.DROP_OLDEST);
+    chatServer.start();
+    while (!chatServer.isAlive()) {
+      Thread.sleep(10);
+    }
+
+    selector = Selector.open();
+    for (int i = 0; i < users; i++) {
+      SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+      channel.write(ByteBuffer.wrap(FrameCodec.preamble(FrameCodec.VERSION)));
+      channel.write(ByteBuffer.wrap(FrameCodec.encodeHello(0, userName(i))));
+      channel.configureBlocking(false);
+      channel.register(selector, SelectionKey.OP_READ);
+    }
+    drainer = new Thread(this::drain, "loopback-drainer");
+    drainer.setDaemon(true);
+    drainer.start();
+
+    while (chatServer.getUserCount() < users) {
+      Thread.sleep(10);
+    }
+  }
+
+  static String userName(int index) {
+    return "user" + index;
+  }
+
+  ChatServer getServer() {
+    return chatServer;
+  }
+
+  int getPort() {
+    return port;
+  }
+
+  ChatServer.ServerUser user(int index) {
+    return chatServer.getUser(userName(index));
+  }
+
+  private void drain() {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+    while (!stopFlag.get()) {
+      try {
+        selector.select(100);
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          buffer.clear();
+          if (((SocketChannel) key.channel()).read(buffer) < 0) {
+            key.cancel();
+            key.channel().close();
+          }
+        }
+      } catch (IOException e) {
+        System.out.println("Draining the clients has failed (" + e.getMessage() + ")");
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    stopFlag.set(true);
+    try {
+      drainer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    for (SelectionKey key : selector.keys()) {
+      key.channel().close();
+    }
+    selector.close();
+    chatServer.stop();
+  }
+
+  private static int freePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+}
@@ -0,0 +1,68 @@
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+// Opens the same number of idle sessions against each server execution model and reports
+// admission time, live platform threads and retained heap.
+//
+// java -cp <classes> SessionModeComparison [sessions] [port]
+public class SessionModeComparison {
+  public static void main(String[] args) throws Exception {
+    int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+    int port = args.length > 1 ? Integer.parseInt(args[1]) : 3100;
+
+    System.out.println(String.format("%-16s %10s %10s %14s %12s",
+      "mode", "sessions", "admit ms", "live threads", "heap MB"));
+    measure("platform", sessions, port, ChatServer.Engine.BLOCKING, ChatServer.ExecutionMode.PLATFORM_THREAD);
+    measure("virtual", sessions, port, ChatServer.Engine.BLOCKING, ChatServer.ExecutionMode.VIRTUAL_THREAD);
+    measure("nio", sessions, port, ChatServer.Engine.NIO, ChatServer.ExecutionMode.PLATFORM_THREAD);
+  }
+
+  private static void measure(String name, int sessions, int port,
+                              ChatServer.Engine engine, ChatServer.ExecutionMode mode) throws Exception {
+    ChatServer chatServer = new ChatServer(port);
+    chatServer.setEngine(engine);
+    chatServer.setExecutionMode(mode);
+    chatServer.start();
+    while (!chatServer.isAlive()) {
+      Thread.sleep(10);
+    }
+
+    System.gc();
+    long heapBefore = usedHeap();
+    long started = System.nanoTime();
+    List<Socket> sockets = new ArrayList<>();
+    try {
+      for (int i = 0; i < sessions; i++) {
+        Socket socket = new Socket("127.0.0.1", port);
+        OutputStream out = socket.getOutputStream();
+        out.write(LegacyCodec.STREAM_HEADER);
+        out.write(LegacyCodec.encode("user" + i));
+        out.flush();
+        sockets.add(socket);
+      }
+      while (chatServer.getUserCount() < sessions) {
+        Thread.sleep(10);
+      }
+      long admitted = System.nanoTime() - started;
+
+      System.gc();
+      System.out.println(String.format("%-16s %10d %10d %14d %12.1f",
+        name, sessions, admitted / 1_000_000,
+        ManagementFactory.getThreadMXBean().getThreadCount(),
+        (usedHeap() - heapBefore) / (1024.0 * 1024.0)));
+    } finally {
+      for (Socket socket : sockets) {
+        socket.close();
+      }
+      chatServer.stop();
+    }
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
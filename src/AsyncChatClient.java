@@ -0,0 +1,499 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import javax.net.ssl.SSLContext;
+
+// A chat session for programs rather than terminals. It speaks the framed protocol from a shared
+// ClientEventLoop: send() queues a frame and returns at once, and incoming messages are handed to
+// a listener and to the subscribers of getPublisher().
+//
+//   AsyncChatClient client = new AsyncChatClient(loop, "127.0.0.1", 3000);
+//   client.setName("alice");
+//   client.setListener(message -> System.out.println(message));
+//   client.connect().join();
+//   client.send("Hello!");
+public class AsyncChatClient implements AutoCloseable {
+  private static final int MAX_GATHER = 64;
+  private static final byte[] PONG = FrameCodec.encode(FrameCodec.PONG, new byte[0]);
+  private static final long FIRST_RECONNECT_DELAY_MILLIS = 100;
+  private static final long MAX_RECONNECT_DELAY_MILLIS = 5000;
+  private static final int RECONNECT_ATTEMPTS = 10;
+
+  public interface Listener {
+    // Runs on the event loop thread, so it must not block.
+    void onMessage(String message);
+
+    // After the connection is closed; cause is null if it closed normally.
+    default void onClose(Throwable cause) {
+    }
+  }
+
+  private final ClientEventLoop loop;
+  private final String host;
+  private final int port;
+  private String userName = "";
+  private boolean compression = false;
+  private boolean reconnect = false;
+  private SSLContext tlsContext;
+  private volatile Listener listener;
+  private volatile SubmissionPublisher<String> publisher;
+  private Executor publisherExecutor = ForkJoinPool.commonPool();
+  private final LongAdder dropped = new LongAdder();
+
+  private final CompletableFuture<String> connected = new CompletableFuture<>();
+  private final CompletableFuture<Void> closedFuture = new CompletableFuture<>();
+  private final Queue<Pending> outbound = new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+  private final AtomicBoolean connectStarted = new AtomicBoolean(false);
+  private volatile boolean closed = false;
+  private volatile boolean loggingOut = false;
+
+  // Owned by the event loop.
+  private SocketChannel channel;
+  private TlsChannel tls;
+  private SelectionKey key;
+  private boolean writable = false;
+  private final ArrayDeque<Pending> inflight = new ArrayDeque<>();
+  private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+  private final byte[] preamble = new byte[FrameCodec.MAGIC.length + 1];
+  private int preambleRead = 0;
+  private FrameCodec.Decoder decoder = new FrameCodec.Decoder();
+  private boolean loggedIn = false;
+  // For resumable sessions: the token, the number of the last message received, and whether a
+  // RESUME is waiting for its answer.
+  private String resumeToken;
+  private long sequence = 0;
+  private boolean resuming = false;
+  private int reconnectAttempts = 0;
+  private long reconnectDelay = FIRST_RECONNECT_DELAY_MILLIS;
+
+  public AsyncChatClient(String host, int port) throws IOException {
+    this(ClientEventLoop.shared(), host, port);
+  }
+
+  public AsyncChatClient(ClientEventLoop loop, String host, int port) {
+    this.loop = loop;
+    this.host = host;
+    this.port = port;
+  }
+
+  public void setName(String name) {
+    userName = name;
+  }
+
+  public String getName() {
+    return userName;
+  }
+
+  // Offers to take compressed messages, see ChatServer.setCompression.
+  public void setCompression(boolean compression) {
+    this.compression = compression;
+  }
+
+  // Asks the server for a resumable session. When the connection drops, the client reconnects with
+  // backoff and the server sends the messages it missed meanwhile; messages sent meanwhile wait in
+  // the queue. The client only closes once the session can't be resumed.
+  public void setReconnect(boolean reconnect) {
+    this.reconnect = reconnect;
+  }
+
+  // Connects over TLS with engines from the context, see ChatServer.setTls. Reconnects resume the
+  // TLS session, as do other clients that share the context.
+  public void setTls(SSLContext context) {
+    this.tlsContext = context;
+  }
+
+  public void setListener(Listener listener) {
+    this.listener = listener;
+  }
+
+  // Where the publisher delivers to its subscribers (the common pool by default).
+  public void setPublisherExecutor(Executor executor) {
+    this.publisherExecutor = executor;
+  }
+
+  // Incoming messages for Flow subscribers. Each subscriber buffers up to Flow.defaultBufferSize()
+  // messages; the event loop never waits for a slow subscriber, which loses the messages that don't
+  // fit instead (see getDroppedMessages).
+  public synchronized Flow.Publisher<String> getPublisher() {
+    if (publisher == null) {
+      publisher = new SubmissionPublisher<>(publisherExecutor, Flow.defaultBufferSize());
+      if (closed) {
+        publisher.close();
+      }
+    }
+    return publisher;
+  }
+
+  public long getDroppedMessages() {
+    return dropped.sum();
+  }
+
+  // Completes with the welcome message once the server has accepted the username, or fails with
+  // the server's answer if it hasn't.
+  public CompletableFuture<String> connect() {
+    if (connectStarted.compareAndSet(false, true)) {
+      run(this::openChannel);
+    }
+    return connected;
+  }
+
+  private void openChannel() {
+    if (closed) {
+      return;
+    }
+    try {
+      key = null;
+      channel = SocketChannel.open();
+      channel.configureBlocking(false);
+      channel.socket().setTcpNoDelay(true);
+      tls = tlsContext != null ? TlsChannel.client(tlsContext, host, port, channel, channel, loop.tlsBuffers) : null;
+      boolean done = channel.connect(new InetSocketAddress(host, port));
+      key = channel.register(loop.selector, done ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+      if (done) {
+        onConnected();
+      }
+    } catch (IOException e) {
+      connectionLost(e);
+    }
+  }
+
+  // Completes once the message has been written to the socket. Messages sent before connect()
+  // completes go out right after the login.
+  public CompletableFuture<Void> send(String message) {
+    CompletableFuture<Void> sent = new CompletableFuture<>();
+    try {
+      outbound.add(new Pending(ByteBuffer.wrap(FrameCodec.encodeText(message)), sent));
+    } catch (IOException e) {
+      sent.completeExceptionally(e);
+      return sent;
+    }
+    if (closed) {
+      failPending(new ClosedChannelException());
+    } else if (flushScheduled.compareAndSet(false, true)) {
+      run(this::flush);
+    }
+    return sent;
+  }
+
+  // Logs out and completes when the server has closed the connection.
+  public CompletableFuture<Void> logout() {
+    loggingOut = true;
+    send("LOGOUT");
+    return closedFuture;
+  }
+
+  public CompletableFuture<Void> onClose() {
+    return closedFuture;
+  }
+
+  @Override
+  public void close() {
+    run(() -> closeNow(null));
+  }
+
+  private void run(Runnable task) {
+    if (loop.isClosed()) {
+      closeNow(new ClosedChannelException());
+    } else {
+      loop.execute(task);
+    }
+  }
+
+  void finishConnect() throws IOException {
+    if (channel.finishConnect()) {
+      key.interestOps(SelectionKey.OP_READ);
+      onConnected();
+    }
+  }
+
+  private void onConnected() {
+    writable = true;
+    byte[] login;
+    if (resumeToken != null) {
+      login = FrameCodec.encodeSession(FrameCodec.RESUME, sequence, resumeToken);
+      resuming = true;
+    } else {
+      login = FrameCodec.encodeHello((compression ? FrameCodec.HELLO_DEFLATE : 0)
+        | (reconnect ? FrameCodec.HELLO_RESUMABLE : 0), userName);
+    }
+    // Ahead of any messages left in flight by a lost connection.
+    inflight.addFirst(new Pending(ByteBuffer.wrap(login), null));
+    inflight.addFirst(new Pending(ByteBuffer.wrap(FrameCodec.preamble(FrameCodec.VERSION)), null));
+    flush();
+  }
+
+  // Runs on the event loop. A resumable session reconnects after a delay that doubles with every
+  // failed attempt; anything else closes.
+  void connectionLost(IOException cause) {
+    if (closed) {
+      return;
+    }
+    if (!reconnect || resumeToken == null || loggingOut || cause instanceof StreamCorruptedException
+      || reconnectAttempts == RECONNECT_ATTEMPTS) {
+      closeNow(cause);
+      return;
+    }
+
+    writable = false;
+    try {
+      closeChannel();
+    } catch (IOException e) {
+      System.out.println("Closing the connection has failed (" + e.getMessage() + ")");
+    }
+    // The server never saw the frame that was cut off, so it goes out whole on the new connection.
+    // The frames before it may still be lost with the connection.
+    inflight.removeIf(pending -> pending.sent == null);
+    for (Pending pending : inflight) {
+      pending.frame.rewind();
+    }
+    preambleRead = 0;
+    decoder = new FrameCodec.Decoder();
+
+    // Jitter keeps the clients of a restarted server from coming back all at once.
+    long delay = reconnectDelay / 2 + ThreadLocalRandom.current().nextLong(reconnectDelay / 2 + 1);
+    reconnectDelay = Math.min(reconnectDelay * 2, MAX_RECONNECT_DELAY_MILLIS);
+    reconnectAttempts++;
+    CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS).execute(() -> run(this::openChannel));
+  }
+
+  private void closeChannel() throws IOException {
+    if (key != null) {
+      key.cancel();
+    }
+    if (tls != null) {
+      tls.close();
+    } else if (channel != null) {
+      channel.close();
+    }
+  }
+
+  // Runs on the event loop. Queued frames go out in gathered writes, and each send's future
+  // completes once its frame is fully written, or over TLS, encrypted.
+  void flush() {
+    flushScheduled.set(false);
+    if (!writable || closed) {
+      return;
+    }
+
+    try {
+      while (true) {
+        Pending next;
+        while (inflight.size() < MAX_GATHER && (next = outbound.poll()) != null) {
+          inflight.add(next);
+        }
+        if (inflight.isEmpty()) {
+          break;
+        }
+
+        int count = 0;
+        for (Pending pending : inflight) {
+          gather[count++] = pending.frame;
+          if (count == MAX_GATHER) {
+            break;
+          }
+        }
+        if (tls != null) {
+          tls.write(gather, 0, count);
+        } else {
+          channel.write(gather, 0, count);
+        }
+        Arrays.fill(gather, 0, count, null);
+        while (!inflight.isEmpty() && !inflight.peek().frame.hasRemaining()) {
+          Pending pending = inflight.poll();
+          if (pending.sent != null) {
+            pending.sent.complete(null);
+          }
+        }
+        if (!inflight.isEmpty()) {
+          break;
+        }
+      }
+      // Over TLS, frames left over once the encrypted bytes are all out wait for the handshake,
+      // which read() moves on.
+      boolean blocked = tls != null ? !tls.flush() : !inflight.isEmpty();
+      if (blocked) {
+        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+      } else {
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+      }
+    } catch (IOException e) {
+      connectionLost(e);
+    }
+  }
+
+  // A TLS session may have decrypted more than fits in the buffer, which is read on right away.
+  void read(ByteBuffer buffer) throws IOException {
+    int count;
+    do {
+      buffer.clear();
+      count = tls != null ? tls.read(buffer) : channel.read(buffer);
+      if (count < 0) {
+        connectionLost(loggedIn ? null : new EOFException("the server closed the connection"));
+        return;
+      }
+      buffer.flip();
+
+      while (preambleRead < preamble.length && buffer.hasRemaining()) {
+        preamble[preambleRead++] = buffer.get();
+        if (preambleRead == preamble.length
+          && (!FrameCodec.isMagic(preamble) || preamble[FrameCodec.MAGIC.length] < 1)) {
+          throw new StreamCorruptedException("the server doesn't speak the framed protocol");
+        }
+      }
+      decoder.decode(buffer, this::onFrame);
+    } while (count > 0 && hasBufferedInput() && tls.isOpen());
+
+    if (tls != null && tls.isOpen()) {
+      // Frames may have waited for the handshake, and the handshake may have an answer to send.
+      flush();
+    }
+  }
+
+  boolean hasBufferedInput() {
+    return tls != null && tls.hasBufferedInput();
+  }
+
+  private void onFrame(byte type, ByteBuffer payload) throws IOException {
+    if (type == FrameCodec.TEXT) {
+      onMessage(FrameCodec.text(payload));
+    } else if (type == FrameCodec.DEFLATED) {
+      onMessage(FrameCodec.inflate(payload));
+    } else if (type == FrameCodec.SESSION) {
+      if (payload.remaining() < 8) {
+        throw new StreamCorruptedException("truncated session frame");
+      }
+      sequence = payload.getLong();
+      resumeToken = FrameCodec.text(payload);
+      resuming = false;
+      reconnectAttempts = 0;
+      reconnectDelay = FIRST_RECONNECT_DELAY_MILLIS;
+    } else if (type == FrameCodec.PING) {
+      outbound.add(new Pending(ByteBuffer.wrap(PONG), null));
+      flush();
+    } else if (type != FrameCodec.PONG) {
+      throw new StreamCorruptedException("unexpected frame type: " + type);
+    }
+  }
+
+  private void onMessage(String message) {
+    if (closed) {
+      return;
+    }
+    if (resuming) {
+      // The server answers a RESUME it refuses with a message instead of a SESSION frame.
+      closeNow(new IOException(message));
+      return;
+    }
+    sequence++;
+    if (!loggedIn) {
+      if (message.startsWith("Hello!")) {
+        loggedIn = true;
+        connected.complete(message);
+      } else {
+        closeNow(new IOException(message));
+      }
+      return;
+    }
+
+    Listener listener = this.listener;
+    if (listener != null) {
+      try {
+        listener.onMessage(message);
+      } catch (RuntimeException e) {
+        System.out.println("Handling a message has failed (" + e.getMessage() + ")");
+      }
+    }
+    SubmissionPublisher<String> publisher = this.publisher;
+    if (publisher != null) {
+      publisher.offer(message, (subscriber, dropped) -> {
+        this.dropped.increment();
+        return false;
+      });
+    }
+  }
+
+  // Runs on the event loop, or on the caller's thread once the loop is closed.
+  void closeNow(Throwable cause) {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    writable = false;
+    try {
+      closeChannel();
+    } catch (IOException e) {
+      System.out.println("Closing the connection has failed (" + e.getMessage() + ")");
+    }
+
+    IOException failure = cause instanceof IOException ? (IOException) cause : new ClosedChannelException();
+    Pending pending;
+    while ((pending = inflight.poll()) != null) {
+      if (pending.sent != null) {
+        pending.sent.completeExceptionally(failure);
+      }
+    }
+    failPending(failure);
+    connected.completeExceptionally(failure);
+
+    Listener listener = this.listener;
+    if (listener != null) {
+      try {
+        listener.onClose(cause);
+      } catch (RuntimeException e) {
+        System.out.println("Handling a closed connection has failed (" + e.getMessage() + ")");
+      }
+    }
+    synchronized (this) {
+      if (publisher != null) {
+        if (cause != null) {
+          publisher.closeExceptionally(cause);
+        } else {
+          publisher.close();
+        }
+      }
+    }
+    if (cause != null) {
+      closedFuture.completeExceptionally(cause);
+    } else {
+      closedFuture.complete(null);
+    }
+  }
+
+  private void failPending(IOException failure) {
+    Pending pending;
+    while ((pending = outbound.poll()) != null) {
+      if (pending.sent != null) {
+        pending.sent.completeExceptionally(failure);
+      }
+    }
+  }
+
+  private static final class Pending {
+    private final ByteBuffer frame;
+    private final CompletableFuture<Void> sent;
+
+    private Pending(ByteBuffer frame, CompletableFuture<Void> sent) {
+      this.frame = frame;
+      this.sent = sent;
+    }
+  }
+}
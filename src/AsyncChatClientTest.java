@@ -0,0 +1,182 @@
+import org.junit.Assert;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class AsyncChatClientTest {
+  @Test
+  @Order(1)
+  public void listenerAndPublisher() {
+    try (ClientEventLoop loop = new ClientEventLoop()) {
+      ChatServer chatServer = new ChatServer(3001);
+      chatServer.setJmxEnabled(false);
+      chatServer.start();
+      while (!chatServer.isAlive()) {
+        Thread.sleep(100);
+      }
+
+      AsyncChatClient alice = new AsyncChatClient(loop, "127.0.0.1", 3001);
+      alice.setName("alice");
+      assertTrue(alice.connect().get(5, TimeUnit.SECONDS).startsWith("Hello!"));
+
+      List<String> received = new CopyOnWriteArrayList<>();
+      CountDownLatch published = new CountDownLatch(2);
+      AsyncChatClient bob = new AsyncChatClient(loop, "127.0.0.1", 3001);
+      bob.setName("bob");
+      bob.setListener(received::add);
+      bob.getPublisher().subscribe(new Flow.Subscriber<String>() {
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+          subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(String message) {
+          published.countDown();
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+        }
+
+        @Override
+        public void onComplete() {
+        }
+      });
+      bob.connect().get(5, TimeUnit.SECONDS);
+
+      alice.send("first").get(5, TimeUnit.SECONDS);
+      alice.send("second").get(5, TimeUnit.SECONDS);
+      assertTrue(published.await(5, TimeUnit.SECONDS));
+      assertEquals(2, received.size());
+      assertEquals("alice: first", received.get(0).substring(16));
+      assertEquals("alice: second", received.get(1).substring(16));
+
+      AsyncChatClient impostor = new AsyncChatClient(loop, "127.0.0.1", 3001);
+      impostor.setName("alice");
+      CompletionException refused = assertThrows(CompletionException.class, () -> impostor.connect().join());
+      assertEquals("This username is already taken.", refused.getCause().getMessage());
+
+      bob.logout().get(5, TimeUnit.SECONDS);
+      alice.close();
+      chatServer.stop();
+    } catch (Exception e) {
+      Assert.fail("Using the asynchronous client has failed (" + e.getMessage() + ")");
+    }
+  }
+
+  @Test
+  @Order(2)
+  public void manyClientsShareOneLoop() {
+    try (ClientEventLoop loop = new ClientEventLoop()) {
+      ChatServer chatServer = new ChatServer(3001);
+      chatServer.setJmxEnabled(false);
+      chatServer.setEngine(ChatServer.Engine.NIO);
+      chatServer.start();
+      while (!chatServer.isAlive()) {
+        Thread.sleep(100);
+      }
+
+      int clients = 50;
+      int messages = 200;
+      AtomicInteger delivered = new AtomicInteger(0);
+      CountDownLatch done = new CountDownLatch((clients - 1) * messages);
+      List<AsyncChatClient> sessions = new ArrayList<>();
+      for (int i = 0; i < clients; i++) {
+        AsyncChatClient client = new AsyncChatClient(loop, "127.0.0.1", 3001);
+        client.setName("user" + i);
+        client.setListener(message -> {
+          if (message.contains("user0: message")) {
+            delivered.incrementAndGet();
+            done.countDown();
+          }
+        });
+        sessions.add(client);
+      }
+      List<CompletableFuture<String>> logins = new ArrayList<>();
+      for (AsyncChatClient client : sessions) {
+        logins.add(client.connect());
+      }
+      CompletableFuture.allOf(logins.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+
+      List<CompletableFuture<Void>> sends = new ArrayList<>();
+      for (int i = 0; i < messages; i++) {
+        sends.add(sessions.get(0).send("message " + i));
+      }
+      CompletableFuture.allOf(sends.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+      assertTrue(done.await(10, TimeUnit.SECONDS));
+      assertEquals((clients - 1) * messages, delivered.get());
+
+      chatServer.stop();
+    } catch (Exception e) {
+      Assert.fail("Sharing an event loop has failed (" + e.getMessage() + ")");
+    }
+  }
+
+  @Test
+  @Order(3)
+  public void reconnectsAndResumes() {
+    try (ClientEventLoop loop = new ClientEventLoop()) {
+      ChatServer chatServer = new ChatServer(3001);
+      chatServer.setJmxEnabled(false);
+      chatServer.setEngine(ChatServer.Engine.NIO);
+      chatServer.start();
+      while (!chatServer.isAlive()) {
+        Thread.sleep(100);
+      }
+
+      List<String> received = new CopyOnWriteArrayList<>();
+      CountDownLatch done = new CountDownLatch(20);
+      AsyncChatClient alice = new AsyncChatClient(loop, "127.0.0.1", 3001);
+      alice.setName("alice");
+      alice.setReconnect(true);
+      alice.setListener(message -> {
+        if (message.contains("bob: message")) {
+          received.add(message.substring(16));
+          done.countDown();
+        }
+      });
+      alice.connect().get(5, TimeUnit.SECONDS);
+      AsyncChatClient bob = new AsyncChatClient(loop, "127.0.0.1", 3001);
+      bob.setName("bob");
+      bob.connect().get(5, TimeUnit.SECONDS);
+
+      // The server drops alice's connection halfway through, and she gets every message once.
+      for (int i = 0; i < 20; i++) {
+        if (i == 10) {
+          chatServer.getUser("alice").closeConnection();
+        }
+        bob.send("message " + i).get(5, TimeUnit.SECONDS);
+      }
+      assertTrue(done.await(10, TimeUnit.SECONDS));
+      List<String> expected = new ArrayList<>();
+      for (int i = 0; i < 20; i++) {
+        expected.add("bob: message " + i);
+      }
+      assertEquals(expected, new ArrayList<>(received));
+      assertEquals(1, chatServer.getMetrics().getSessionsResumed());
+
+      alice.logout().get(5, TimeUnit.SECONDS);
+      bob.close();
+      chatServer.stop();
+    } catch (Exception e) {
+      Assert.fail("Resuming a session has failed (" + e.getMessage() + ")");
+    }
+  }
+}
@@ -0,0 +1,52 @@
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Direct buffers of one size, lent to connections while they have bytes in flight and taken back
+// when they are drained, so that idle connections hold none. Keeps at most maxPooled free buffers
+// and lets the rest go to the garbage collector.
+final class BufferPool {
+  private final int bufferSize;
+  private final int maxPooled;
+  private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger pooled = new AtomicInteger(0);
+
+  BufferPool(int bufferSize, int maxPooled) {
+    this.bufferSize = bufferSize;
+    this.maxPooled = maxPooled;
+  }
+
+  int getBufferSize() {
+    return bufferSize;
+  }
+
+  // A cleared buffer of at least capacity bytes; larger ones than the pool's are not pooled.
+  ByteBuffer acquire(int capacity) {
+    if (capacity > bufferSize) {
+      return ByteBuffer.allocateDirect(capacity);
+    }
+    ByteBuffer buffer = free.poll();
+    if (buffer == null) {
+      return ByteBuffer.allocateDirect(bufferSize);
+    }
+    pooled.decrementAndGet();
+    buffer.clear();
+    return buffer;
+  }
+
+  void release(ByteBuffer buffer) {
+    if (buffer.capacity() != bufferSize || !buffer.isDirect()) {
+      return;
+    }
+    if (pooled.incrementAndGet() <= maxPooled) {
+      free.add(buffer);
+    } else {
+      pooled.decrementAndGet();
+    }
+  }
+
+  int getPooled() {
+    return pooled.get();
+  }
+}
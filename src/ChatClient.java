@@ -1,18 +1,34 @@
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import javax.net.ssl.SSLContext;
 
 public class ChatClient {
+  private static final long FIRST_RECONNECT_DELAY_MILLIS = 100;
+  private static final long MAX_RECONNECT_DELAY_MILLIS = 5000;
+  private static final int RECONNECT_ATTEMPTS = 10;
+
   private String host = "127.0.0.1";
   private int port = 3000;
   private String userName = "";
 
-  private Socket socket;
-  private ObjectInputStream reader;
-  private ObjectOutputStream writer;
+  private WireFormat wireFormat = WireFormat.FRAMED;
+  private boolean compression = false;
+  private boolean reconnect = false;
+  private SSLContext tlsContext;
+  private final BufferPool tlsBuffers = new BufferPool(TlsChannel.BUFFER_SIZE, 4);
+  private long flushDelayNanos = 0;
+  private int maxBatchBytes = 8192;
+
+  private volatile Socket socket;
+  private volatile WireStream wire;
   private Thread readerThread;
   private Thread writerThread;
   private AtomicBoolean stopFlag = new AtomicBoolean(false);
@@ -37,22 +53,18 @@ public class ChatClient {
         userName = sc.nextLine();
       }
 
-      writer = new ObjectOutputStream(socket.getOutputStream());
-      reader = new ObjectInputStream(socket.getInputStream());
+      wire = open(socket);
+      wire.writeLogin(userName, (compression ? FrameCodec.HELLO_DEFLATE : 0)
+        | (reconnect ? FrameCodec.HELLO_RESUMABLE : 0));
 
-      writer.writeUTF(userName);
-      writer.flush();
-
-      String firstAnswer = reader.readUTF();
+      String firstAnswer = wire.read();
       if (messages != null) {
         messages.add(firstAnswer);
       }
       System.out.println(firstAnswer);
       if (!firstAnswer.substring(0, "Hello!".length()).equals("Hello!")) {
-        writer.close();
-        writer = null;
-        reader.close();
-        reader = null;
+        wire.close();
+        wire = null;
         socket.close();
         socket = null;
         return;
@@ -102,6 +114,36 @@ public class ChatClient {
     userName = name;
   }
 
+  public void setWireFormat(WireFormat format) {
+    wireFormat = format;
+  }
+
+  // Offers to accept compressed messages; the server compresses the long ones if it supports it.
+  // Only the framed protocol can carry them.
+  public void setCompression(boolean compression) {
+    this.compression = compression;
+  }
+
+  // Asks the server for a resumable session. When the connection drops, the client reconnects with
+  // backoff and the server sends the messages it missed meanwhile; lines typed meanwhile go out once
+  // it is back. Only the framed protocol supports it.
+  public void setReconnect(boolean reconnect) {
+    this.reconnect = reconnect;
+  }
+
+  // Connects over TLS with engines from the context, see ChatServer.setTls. Reconnects resume the
+  // TLS session rather than run a full handshake.
+  public void setTls(SSLContext context) {
+    this.tlsContext = context;
+  }
+
+  // With a positive maxDelayMicros, lines that are already waiting on the input are sent together
+  // in one write of up to maxBatchBytes, holding the first of them back for at most maxDelayMicros.
+  public void setWriteCoalescing(long maxDelayMicros, int maxBatchBytes) {
+    this.flushDelayNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, maxDelayMicros));
+    this.maxBatchBytes = Math.max(1, maxBatchBytes);
+  }
+
   public void setInputStream(InputStream stream) {
     inputStream = stream;
   }
@@ -112,41 +154,168 @@ public class ChatClient {
 
   public void sendMessages() {
     try {
-      Scanner sc = new Scanner(inputStream);
+      BufferedReader sc = new BufferedReader(new InputStreamReader(inputStream));
+      List<byte[]> batch = new ArrayList<>();
+      long batchStarted = 0;
+      int batched = 0;
       while (!stopFlag.get()) {
-        String msg = sc.nextLine();
-        writer.writeUTF(msg);
-        writer.flush();
+        String msg = sc.readLine();
+        if (msg == null) {
+          throw new EOFException("No line found");
+        }
+
+        byte[] frame = wireFormat.encode(msg);
+        batch.add(frame);
+        if (batched == 0) {
+          batchStarted = System.nanoTime();
+        }
+        batched += frame.length;
+        if (flushDelayNanos == 0 || !sc.ready() || batched >= maxBatchBytes
+          || System.nanoTime() - batchStarted >= flushDelayNanos || msg.equals("LOGOUT")) {
+          write(batch);
+          batch.clear();
+          batched = 0;
+        }
+
         if (msg.equals("LOGOUT")) {
           stopFlag.set(true);
           readerThread.interrupt();
         }
       }
 
-      writer.close();
-      writer = null;
+      wire.close();
     } catch (Exception e) {
       System.out.println("Sending a message has failed (" + e.getMessage() + ")");
     }
   }
 
+  // Writes the frames in one flush, and writes them again on the new connection if the connection
+  // drops and the reader reconnects. Frames that made it into the old connection's socket buffer
+  // before it dropped are lost.
+  private void write(List<byte[]> frames) throws IOException {
+    while (true) {
+      WireStream current = wire;
+      try {
+        for (byte[] frame : frames) {
+          current.append(frame);
+        }
+        current.flush();
+        return;
+      } catch (IOException e) {
+        if (!awaitReconnect(current)) {
+          throw e;
+        }
+      }
+    }
+  }
+
+  private WireStream open(Socket socket) throws IOException {
+    InputStream in = socket.getInputStream();
+    OutputStream out = socket.getOutputStream();
+    if (tlsContext != null) {
+      TlsChannel tls = TlsChannel.client(tlsContext, host, port, Channels.newChannel(in), Channels.newChannel(out),
+        tlsBuffers);
+      tls.handshake();
+      in = Channels.newInputStream(tls);
+      out = Channels.newOutputStream(tls);
+    }
+    return WireStream.connect(in, out, wireFormat, maxBatchBytes);
+  }
+
+  private synchronized boolean awaitReconnect(WireStream lost) {
+    try {
+      while (reconnect && wire == lost && !stopFlag.get()) {
+        wait();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return wire != lost;
+  }
+
   public void readMessages() {
     try {
       while (!stopFlag.get()) {
-        String msg = reader.readUTF();
+        String msg;
+        try {
+          msg = wire.read();
+        } catch (IOException e) {
+          if (stopFlag.get() || !reconnect()) {
+            throw e;
+          }
+          continue;
+        }
         if (messages != null) {
           messages.add(msg);
         }
-        System.out.println(reader.readUTF());
+        System.out.println(msg);
       }
 
-      reader.close();
-      reader = null;
+      wire.close();
     } catch (Exception e) {
       System.out.println("Getting a message has failed (" + e.getMessage() + ")");
     }
   }
 
+  // Runs on the reader thread. Resumes the session on a new connection, trying again with growing
+  // delays while the server can't be reached, and returns false if it is gone for good.
+  private boolean reconnect() {
+    WireStream lost = wire;
+    if (!reconnect || lost.getResumeToken() == null) {
+      return false;
+    }
+
+    long delay = FIRST_RECONNECT_DELAY_MILLIS;
+    try {
+      lost.close();
+    } catch (IOException e) {
+      // It is broken already.
+    }
+    for (int attempt = 0; attempt < RECONNECT_ATTEMPTS && !stopFlag.get(); attempt++) {
+      try {
+        // Jitter keeps the clients of a restarted server from coming back all at once.
+        Thread.sleep(delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+      } catch (InterruptedException e) {
+        break;
+      }
+      delay = Math.min(delay * 2, MAX_RECONNECT_DELAY_MILLIS);
+
+      Socket next = null;
+      try {
+        next = new Socket(host, port);
+        WireStream resumed = open(next);
+        resumed.writeResume(lost.getResumeToken(), lost.getSequence());
+        if (!resumed.readResumed()) {
+          System.out.println("The session can't be resumed.");
+          next.close();
+          break;
+        }
+        synchronized (this) {
+          socket = next;
+          wire = resumed;
+          notifyAll();
+        }
+        System.out.println("Reconnected to ChatServer");
+        return true;
+      } catch (IOException e) {
+        System.out.println("Reconnecting has failed (" + e.getMessage() + ")");
+        try {
+          if (next != null) {
+            next.close();
+          }
+        } catch (IOException closeException) {
+          // Nothing more to do with it.
+        }
+      }
+    }
+
+    synchronized (this) {
+      stopFlag.set(true);
+      notifyAll();
+    }
+    return false;
+  }
+
   public void closeConnection() {
     try {
       stopFlag.set(true);
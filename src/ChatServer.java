@@ -1,22 +1,120 @@
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.time.LocalTime;
-import java.time.format.DateTimeFormatter;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.stream.Collectors;
+import javax.management.ObjectName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
 
 public class ChatServer {
+  public enum Engine {
+    BLOCKING,
+    NIO
+  }
+
+  public enum ExecutionMode {
+    PLATFORM_THREAD,
+    VIRTUAL_THREAD
+  }
+
+  public enum SlowConsumerPolicy {
+    DROP_OLDEST,
+    DROP_NEWEST,
+    DISCONNECT
+  }
+
+  public enum RateLimitPolicy {
+    REPLY,
+    DROP
+  }
+
+  private static final OutboundMessage PING = OutboundMessage.control(FrameCodec.PING);
+  private static final int TLS_POOLED_BUFFERS = 1024;
+
   private int port = 3000;
+  private Engine engine = Engine.BLOCKING;
+  private int eventLoops = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+  private ExecutionMode executionMode = ExecutionMode.PLATFORM_THREAD;
+  private Executor executor;
+  private Executor sessionExecutor;
+  private ExecutorService ownedExecutor;
+  private int outboundQueueCapacity = 1024;
+  private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DISCONNECT;
+  private long flushDelayNanos = 0;
+  private int maxBatchBytes = 64 * 1024;
+  private int whoisPageSize = 100;
+  private int parallelFanOutThreshold = 8192;
+  private int fanOutParallelism = Runtime.getRuntime().availableProcessors();
+  private volatile ForkJoinPool fanOutPool;
+  private int acceptBacklog = 50;
+  private int maxHandshakes = 1024;
+  private long handshakeTimeoutNanos = TimeUnit.SECONDS.toNanos(10);
+  private TokenBucket sessionRateLimit;
+  private final TokenBucket[] commandRateLimits = new TokenBucket[ServerMetrics.MessageType.values().length];
+  private TokenBucket globalRateLimit;
+  private RateLimitPolicy rateLimitPolicy = RateLimitPolicy.REPLY;
+  private int compressionThreshold = 1024;
+  private long heartbeatIntervalNanos = TimeUnit.SECONDS.toNanos(30);
+  private long idleTimeoutNanos = TimeUnit.SECONDS.toNanos(90);
+  private int replayCapacity = 256;
+  private long resumeTimeoutNanos = TimeUnit.SECONDS.toNanos(30);
+  private SSLContext tlsContext;
+  private BufferPool tlsBuffers;
+  private Semaphore handshakes;
+  private TimerWheel timers;
+  private Path historyDirectory;
+  private int historyReplay = 50;
+  private int historySegmentSize = 64 * 1024 * 1024;
+  private int historySegments = 16;
+  private MessageHistory history;
+  private Path mailboxDirectory;
+  private long mailboxMaxBytes = 1024 * 1024;
+  private long mailboxMaxAgeMillis = TimeUnit.DAYS.toMillis(7);
+  private OfflineMailbox mailbox;
+  private ExecutorService mailboxExecutor;
+  private InetSocketAddress clusterAddress;
+  private List<InetSocketAddress> clusterMembers;
+  private ClusterNode cluster;
+  private boolean jmxEnabled = true;
+  private MetricsReporter metricsReporter;
+  private long reportPeriodNanos;
+  private ScheduledExecutorService reporterExecutor;
+  private ObjectName metricsName;
+  private final ServerMetrics metrics = new ServerMetrics(this);
   private ServerSocket serverSocket;
+  private NioEngine nioEngine;
   private Thread serverThread;
   private AtomicBoolean stopFlag = new AtomicBoolean(false);
   private AtomicBoolean isAliveFlag = new AtomicBoolean(false);
   private int userId = 0;
-  private Map<Integer, ServerUser> unhandledUsers = new HashMap<>();
-  private Map<String, ServerUser> users = new HashMap<>();
+  private Map<Integer, ServerUser> unhandledUsers = new ConcurrentHashMap<>();
+  private UserRegistry users = new UserRegistry();
+  private RoomDirectory rooms = new RoomDirectory();
+  private Map<String, ServerUser> resumableSessions = new ConcurrentHashMap<>();
+  private final SecureRandom tokens = new SecureRandom();
+  private final CommandRouter commands = createCommands();
 
   static final String[] penguinFacts = {
     "Penguins are flightless birds.",
@@ -36,8 +134,237 @@ public class ChatServer {
     this.port = port;
   }
 
+  public void setEngine(Engine engine) {
+    this.engine = engine;
+  }
+
+  public void setEventLoops(int eventLoops) {
+    this.eventLoops = Math.max(1, eventLoops);
+  }
+
+  public void setExecutionMode(ExecutionMode executionMode) {
+    this.executionMode = executionMode;
+  }
+
+  public void setExecutor(Executor executor) {
+    this.executor = executor;
+  }
+
+  public void setOutboundQueueCapacity(int capacity) {
+    this.outboundQueueCapacity = Math.max(1, capacity);
+  }
+
+  public void setSlowConsumerPolicy(SlowConsumerPolicy policy) {
+    this.slowConsumerPolicy = policy;
+  }
+
+  // Frames already queued for a session always share one write of up to maxBatchBytes. A positive
+  // maxDelayMicros also lets the writer wait that long for more frames before flushing.
+  public void setWriteCoalescing(long maxDelayMicros, int maxBatchBytes) {
+    this.flushDelayNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, maxDelayMicros));
+    this.maxBatchBytes = Math.max(1, maxBatchBytes);
+  }
+
+  // Messages to at least threshold recipients are handed out by a work-stealing pool of parallelism
+  // threads, so that the last recipient of a large room isn't served by one core. The sender waits
+  // until every recipient has the message, which keeps each sender's messages in order. The pool is
+  // started by the first such message. A threshold of 0, or a parallelism of 1, keeps every fan-out on
+  // the sender's thread.
+  public void setParallelFanOut(int threshold, int parallelism) {
+    this.parallelFanOutThreshold = Math.max(0, threshold);
+    this.fanOutParallelism = Math.max(1, parallelism);
+  }
+
+  // The length of the queue of connections that the OS has accepted but the server hasn't yet.
+  public void setAcceptBacklog(int acceptBacklog) {
+    this.acceptBacklog = Math.max(1, acceptBacklog);
+  }
+
+  // Handshakes run off the accept thread. At most maxConcurrent of them are in progress at once,
+  // further connections are closed right away, and a connection that hasn't logged in within the
+  // timeout is closed.
+  public void setHandshakeLimits(int maxConcurrent, long timeout, TimeUnit unit) {
+    this.maxHandshakes = Math.max(1, maxConcurrent);
+    this.handshakeTimeoutNanos = unit.toNanos(Math.max(1, timeout));
+  }
+
+  // Clients that offer to take compressed frames get messages whose text has at least
+  // thresholdBytes bytes compressed (1 KB by default). Each message is compressed at most once and
+  // the result is shared by all of its recipients.
+  public void setCompression(boolean enabled, int thresholdBytes) {
+    this.compressionThreshold = enabled ? Math.max(0, thresholdBytes) : -1;
+  }
+
+  // Every session may send perSecond commands a second on average, and up to burst at once.
+  // A perSecond of 0 removes the limit.
+  public void setSessionRateLimit(double perSecond, int burst) {
+    this.sessionRateLimit = perSecond > 0 ? new TokenBucket(perSecond, burst) : null;
+  }
+
+  // Like setSessionRateLimit, for one command type per session: BROADCAST, DIRECT, WHOIS, PENGU,
+  // or SYSTEM for the room commands and those added with setCommand.
+  public void setCommandRateLimit(ServerMetrics.MessageType type, double perSecond, int burst) {
+    this.commandRateLimits[type.ordinal()] = perSecond > 0 ? new TokenBucket(perSecond, burst) : null;
+  }
+
+  // A ceiling on the commands all sessions together may send.
+  public void setGlobalRateLimit(double perSecond, int burst) {
+    this.globalRateLimit = perSecond > 0 ? new TokenBucket(perSecond, burst) : null;
+  }
+
+  // Whether limited commands are answered with a notice (the default) or dropped quietly.
+  public void setRateLimitPolicy(RateLimitPolicy policy) {
+    this.rateLimitPolicy = policy;
+  }
+
+  // Routes lines whose first word is verb to the handler, in place of any built-in command of that
+  // name; lines that go on after the verb only if it takesArguments. Such commands are rate limited
+  // as SYSTEM. An async one runs on the session executor rather than on the session's reader, for
+  // handlers that block or take long, and its replies may come after those to later lines.
+  public void setCommand(String verb, boolean takesArguments, boolean async, CommandRouter.Handler handler) {
+    commands.register(verb, takesArguments, ServerMetrics.MessageType.SYSTEM,
+      async ? CommandRouter.async(handler, task -> sessionExecutor.execute(task)) : handler);
+  }
+
+  // Framed sessions that have sent nothing for an interval are sent a PING, and sessions that have
+  // sent nothing, not even a PONG, for idleTimeout are logged out. An interval of 0 turns this off.
+  // Legacy clients can't answer pings and rely on TCP keepalive instead.
+  public void setHeartbeat(long interval, long idleTimeout, TimeUnit unit) {
+    this.heartbeatIntervalNanos = unit.toNanos(Math.max(0, interval));
+    this.idleTimeoutNanos = Math.max(heartbeatIntervalNanos, unit.toNanos(idleTimeout));
+  }
+
+  // Framed clients that ask for it get a token at login, with which they can pick their session up
+  // again on a new connection after losing the old one. For up to timeout the session keeps its name
+  // and its queue, and the client is sent what it missed of the last replayMessages messages.
+  // A replayMessages of 0 turns this off.
+  public void setSessionResumption(int replayMessages, long timeout, TimeUnit unit) {
+    this.replayCapacity = Math.max(0, replayMessages);
+    this.resumeTimeoutNanos = unit.toNanos(Math.max(0, timeout));
+  }
+
+  // Serves every connection over TLS with engines from the context, or in plaintext if it is null
+  // (the default). Clients that reconnect with the same context resume their TLS session instead
+  // of running a full handshake, within the context's session timeout. Encryption buffers come from
+  // a pool and are only held while a connection has bytes in flight.
+  public void setTls(SSLContext context) {
+    this.tlsContext = context;
+  }
+
+  // Registers getMetrics() with the platform MBean server while the server runs (on by default).
+  public void setJmxEnabled(boolean jmxEnabled) {
+    this.jmxEnabled = jmxEnabled;
+  }
+
+  public void setMetricsReporter(MetricsReporter reporter, long period, TimeUnit unit) {
+    this.metricsReporter = reporter;
+    this.reportPeriodNanos = unit.toNanos(Math.max(1, period));
+  }
+
+  public ServerMetricsMXBean getMetrics() {
+    return metrics;
+  }
+
+  // The number of users listed per WHOIS page.
+  public void setWhoisPageSize(int pageSize) {
+    this.whoisPageSize = Math.max(1, pageSize);
+  }
+
+  // Keeps broadcasts and direct messages in a log under directory, and replays the last
+  // historyReplay messages of the lobby and to the user right after the welcome message.
+  public void setHistory(Path directory) {
+    this.historyDirectory = directory;
+  }
+
+  public void setHistoryReplay(int lastMessages) {
+    this.historyReplay = Math.max(0, lastMessages);
+  }
+
+  // Old segments are deleted once there are more than maxSegments.
+  public void setHistorySegments(int segmentSize, int maxSegments) {
+    this.historySegmentSize = segmentSize;
+    this.historySegments = maxSegments;
+  }
+
+  // Spools direct messages to users who have logged in before but are offline, under directory,
+  // and delivers them when the user logs in again.
+  public void setOfflineMessages(Path directory) {
+    this.mailboxDirectory = directory;
+  }
+
+  // Messages that would grow a user's spool past maxBytes are refused, and messages older than
+  // maxAge are dropped instead of delivered.
+  public void setOfflineMessageLimits(long maxBytes, long maxAge, TimeUnit unit) {
+    this.mailboxMaxBytes = maxBytes;
+    this.mailboxMaxAgeMillis = unit.toMillis(maxAge);
+  }
+
+  long getFlushDelayNanos() {
+    return flushDelayNanos;
+  }
+
+  int getMaxBatchBytes() {
+    return maxBatchBytes;
+  }
+
+  public Map<String, Integer> getQueueDepths() {
+    Map<String, Integer> depths = new TreeMap<>();
+    for (ServerUser user : users.values()) {
+      depths.put(user.getUserName(), user.getQueueDepth());
+    }
+    return depths;
+  }
+
+  public int getMaxQueueDepth() {
+    int max = 0;
+    for (ServerUser user : users.snapshot()) {
+      max = Math.max(max, user.getQueueDepth());
+    }
+    return max;
+  }
+
+  // Joins this server to a cluster: it listens for the other members on the peer address, and the
+  // members list, which may include this server, must be the same on every member.
+  public void setCluster(InetSocketAddress peerAddress, List<InetSocketAddress> members) {
+    this.clusterAddress = peerAddress;
+    this.clusterMembers = new ArrayList<>(members);
+  }
+
+  public Map<String, Integer> getRoomSizes() {
+    return rooms.counts();
+  }
+
   public void start() throws IOException {
-    serverSocket = new ServerSocket(port);
+    if (historyDirectory != null) {
+      history = new MessageHistory(historyDirectory, historySegmentSize, historySegments);
+      history.open();
+    }
+    if (mailboxDirectory != null) {
+      mailbox = new OfflineMailbox(mailboxDirectory, mailboxMaxBytes, mailboxMaxAgeMillis);
+      mailbox.open();
+      mailboxExecutor = Executors.newSingleThreadExecutor(command -> {
+        Thread thread = new Thread(command, "chat-mailbox");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    if (clusterAddress != null) {
+      cluster = new ClusterNode(this, clusterAddress, clusterMembers);
+      cluster.start();
+    }
+    sessionExecutor = createSessionExecutor();
+    if (tlsContext != null) {
+      tlsBuffers = new BufferPool(TlsChannel.BUFFER_SIZE, TLS_POOLED_BUFFERS);
+    }
+    handshakes = new Semaphore(maxHandshakes);
+    timers = new TimerWheel("chat-timers", 100, TimeUnit.MILLISECONDS, 512);
+    timers.start();
+    if (engine == Engine.NIO) {
+      nioEngine = new NioEngine(this, port, eventLoops);
+      nioEngine.bind(acceptBacklog);
+    } else {
+      serverSocket = new ServerSocket(port, acceptBacklog);
+    }
     serverThread = new Thread() {
       private ChatServer server;
 
@@ -57,6 +384,51 @@ public class ChatServer {
     }.setServer(this);
 
     serverThread.start();
+    startMetrics();
+  }
+
+  private void startMetrics() {
+    if (jmxEnabled) {
+      try {
+        metricsName = new ObjectName("ChatServer:type=Metrics,port=" + port);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, metricsName);
+      } catch (Exception e) {
+        System.out.println("Registering the metrics has failed (" + e.getMessage() + ")");
+        metricsName = null;
+      }
+    }
+
+    if (metricsReporter != null) {
+      reporterExecutor = Executors.newSingleThreadScheduledExecutor(command -> {
+        Thread thread = new Thread(command, "chat-metrics-reporter");
+        thread.setDaemon(true);
+        return thread;
+      });
+      MetricsReporter reporter = metricsReporter;
+      reporterExecutor.scheduleAtFixedRate(() -> {
+        try {
+          reporter.report(metrics);
+        } catch (Exception e) {
+          System.out.println("Reporting the metrics has failed (" + e.getMessage() + ")");
+        }
+      }, reportPeriodNanos, reportPeriodNanos, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  private void stopMetrics() {
+    if (reporterExecutor != null) {
+      reporterExecutor.shutdownNow();
+      reporterExecutor = null;
+    }
+
+    if (metricsName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+      } catch (Exception e) {
+        System.out.println("Unregistering the metrics has failed (" + e.getMessage() + ")");
+      }
+      metricsName = null;
+    }
   }
 
   public boolean isAlive() {
@@ -65,36 +437,36 @@ public class ChatServer {
 
   public void stop() throws IOException {
     stopFlag.set(true);
+    stopMetrics();
     IOException closeSocketException = null;
     try {
       if (serverSocket != null) {
         serverSocket.close();
       }
+      if (nioEngine != null) {
+        nioEngine.close();
+      }
     } catch (Exception e) {
       System.out.println("Closing the socket has failed (" + e.getMessage() + ")");
       closeSocketException = new IOException(e.getMessage());
     }
 
-    synchronized (users) {
-      for (ServerUser user : users.values()) {
-        if (user != null) {
-          try {
-            user.close();
-          } catch (Exception e) {
-            System.err.println("Closing the userserver has failed (" + e.getMessage() + ").");
-          }
+    for (ServerUser user : users.values()) {
+      if (user != null) {
+        try {
+          user.close();
+        } catch (Exception e) {
+          System.err.println("Closing the userserver has failed (" + e.getMessage() + ").");
         }
       }
     }
 
-    synchronized (unhandledUsers) {
-      for (ServerUser unhandledUser : unhandledUsers.values()) {
-        if (unhandledUser != null) {
-          try {
-            unhandledUser.close();
-          } catch (Exception e) {
-            System.err.println("Closing the userserver has failed (" + e.getMessage() + ").");
-          }
+    for (ServerUser unhandledUser : unhandledUsers.values()) {
+      if (unhandledUser != null) {
+        try {
+          unhandledUser.close();
+        } catch (Exception e) {
+          System.err.println("Closing the userserver has failed (" + e.getMessage() + ").");
         }
       }
     }
@@ -111,246 +483,1080 @@ public class ChatServer {
       serverThread = null;
     }
 
+    if (timers != null) {
+      timers.stop();
+      timers = null;
+    }
+
+    if (fanOutPool != null) {
+      fanOutPool.shutdown();
+      fanOutPool = null;
+    }
+
+    if (ownedExecutor != null) {
+      ownedExecutor.shutdown();
+      ownedExecutor = null;
+    }
+
+    if (cluster != null) {
+      cluster.stop();
+      cluster = null;
+    }
+
+    if (history != null) {
+      history.close();
+      history = null;
+    }
+
+    if (mailboxExecutor != null) {
+      mailboxExecutor.shutdown();
+      mailboxExecutor = null;
+      mailbox = null;
+    }
+
     if (closeSocketException != null) {
       throw closeSocketException;
     }
   }
 
-  private void run() {
-    isAliveFlag.set(true);
-    while (!stopFlag.get()) {
+  private Executor createSessionExecutor() {
+    if (executor != null) {
+      return executor;
+    }
+
+    if (executionMode == ExecutionMode.VIRTUAL_THREAD) {
+      // Looked up reflectively so the server still builds and runs on JDKs without virtual threads.
       try {
-        Socket userSocket = serverSocket.accept();
-        ServerUser user = new ServerUser(this, userId++, userSocket);
-        synchronized (unhandledUsers) {
-          unhandledUsers.put(user.getUserId(), user);
-        }
-        user.initialize();
-      } catch (Exception e) {
-        System.out.println("Accepting a connection has failed (" + e.getMessage() + ")");
+        ownedExecutor = (ExecutorService) Executors.class
+          .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        return ownedExecutor;
+      } catch (ReflectiveOperationException e) {
+        System.out.println("Virtual threads are not available, using platform threads (" + e + ")");
       }
     }
-    isAliveFlag.set(false);
-  }
 
-  private boolean handleUser(int id) {
-    synchronized (unhandledUsers) {
-      if (unhandledUsers.get(id).getUserName() != null) {
-        if (unhandledUsers.get(id).getUserName().contains(" ")) {
-          unhandledUsers.get(id).sendMessage("The username is invalid.");
-          return false;
-        }
+    return command -> new Thread(command).start();
+  }
 
-        synchronized (users) {
-          if (!users.containsKey(unhandledUsers.get(id).getUserName())) {
-            users.put(unhandledUsers.get(id).getUserName(), unhandledUsers.get(id));
-            sendBroadcastMessage(
-              unhandledUsers.get(id),
-              "***** " + unhandledUsers.get(id).getUserName() +
-                " has joined to the chat room.*****",
-              false);
-            unhandledUsers.remove(id);
-            return true;
-          } else {
-            unhandledUsers.get(id).sendMessage("This username is already taken.");
-            return false;
+  private void run() {
+    isAliveFlag.set(true);
+    if (nioEngine != null) {
+      nioEngine.run(stopFlag);
+    } else {
+      while (!stopFlag.get()) {
+        try {
+          Socket userSocket = serverSocket.accept();
+          metrics.connectionAccepted();
+          userSocket.setKeepAlive(true);
+          SocketUser user = new SocketUser(this, nextUserId(), userSocket);
+          if (!beginHandshake(user)) {
+            userSocket.close();
+            continue;
           }
+          sessionExecutor.execute(user::run);
+        } catch (Exception e) {
+          System.out.println("Accepting a connection has failed (" + e.getMessage() + ")");
         }
-      } else {
-        unhandledUsers.get(id).sendMessage("The username is invalid.");
-        return false;
       }
     }
+    isAliveFlag.set(false);
   }
 
-  private String formMessage(ServerUser from, String msg) {
-    return LocalTime.now().format(DateTimeFormatter.ofPattern("HH:mm:ss.SSSSSS")) + " " + from.getUserName() + ": " + msg;
+  boolean isTlsEnabled() {
+    return tlsContext != null;
   }
 
-  private boolean sendUserMessage(ServerUser from, String userName, String msg) {
-    synchronized (users) {
-      if (users.containsKey(userName)) {
-        return users.get(userName).sendMessage(formMessage(from, msg));
-      } else {
-        from.sendMessage(userName + " doesn't exist.");
-      }
-    }
+  TlsChannel newTlsChannel(ReadableByteChannel source, WritableByteChannel sink) throws SSLException {
+    return TlsChannel.server(tlsContext, source, sink, tlsBuffers,
+      (channel, resumed) -> metrics.tlsHandshakeFinished(resumed));
+  }
 
-    return false;
+  int nextUserId() {
+    return userId++;
   }
 
-  private boolean sendBroadcastMessage(
-    ServerUser from, String msg, boolean addUserName) {
-    List<ServerUser> local_users = null;
-    synchronized (users) {
-      local_users = users.values().stream().collect(Collectors.toList());
-    }
+  int getUserCount() {
+    return users.size();
+  }
+
+  int getUnhandledUserCount() {
+    return unhandledUsers.size();
+  }
+
+  ServerMetrics metrics() {
+    return metrics;
+  }
+
+  ServerUser getUser(String userName) {
+    return users.get(userName);
+  }
+
+  boolean isClusterConnected() {
+    return cluster != null && cluster.isConnected();
+  }
 
-    if (addUserName) {
-      msg = formMessage(from, msg);
+  // Drops this node's links to the rest of the cluster, as a network failure would.
+  void dropClusterLinks() {
+    ClusterNode cluster = this.cluster;
+    if (cluster != null) {
+      cluster.dropLinks();
     }
+  }
 
-    boolean result = true;
-    for (ServerUser user : local_users) {
-      if (user.equals(from)) {
-        continue;
-      }
+  // The names held here, detached sessions included, for the cluster to claim again.
+  List<String> getLocalUserNames() {
+    List<String> names = new ArrayList<>();
+    for (ServerUser user : users.values()) {
+      names.add(user.getUserName());
+    }
+    return names;
+  }
 
-      if (!user.sendMessage(msg)) {
-        result = false;
-      }
+  // Logs out the local user whose name the cluster gave to a user on another node while a link was
+  // down.
+  void evictUser(String userName) {
+    ServerUser user = users.get(userName);
+    if (user != null) {
+      System.out.println("Logging out a user whose name was taken on another node (" + userName + ")");
+      deleteUser(user);
+      user.close();
     }
-    return result;
   }
 
-  private boolean deleteUser(String userName) {
-    synchronized (users) {
-      if (users.containsKey(userName)) {
-        users.get(userName).close();
-        users.remove(userName);
-        return true;
-      }
+  // Admits a freshly accepted connection to the handshake stage, or returns false if too many
+  // handshakes are in progress already.
+  boolean beginHandshake(ServerUser user) {
+    if (!handshakes.tryAcquire()) {
+      metrics.handshakeRejected();
       return false;
     }
+    user.handshaking.set(true);
+    addUnhandledUser(user);
+    user.handshakeDeadline = timers.schedule(() -> {
+      if (user.endHandshake()) {
+        metrics.handshakeTimedOut();
+        removeUnhandledUser(user);
+        user.close();
+      }
+    }, handshakeTimeoutNanos, TimeUnit.NANOSECONDS);
+    return true;
   }
 
-  private String randomFactPengu() {
-    Random random = new Random();
-    return penguinFacts[random.nextInt(penguinFacts.length)];
+  private void scheduleHeartbeat(ServerUser user, long delayNanos) {
+    TimerWheel timers = this.timers;
+    if (timers != null) {
+      timers.schedule(() -> checkHeartbeat(user), delayNanos, TimeUnit.NANOSECONDS);
+    }
   }
 
-  private String getWHOIS(String exclude) {
-    List<String> usersWHOIS = new ArrayList<>();
-    synchronized (users) {
-      users.values().stream().filter(user -> user.getUserName() != exclude)
-        .sorted(Comparator.comparing(ServerUser::getUserName))
-        .forEach(user -> usersWHOIS.add(user.getWHOIS()));
+  // Runs on the timer thread. Sessions keep a single timeout each, which is only rescheduled when
+  // it fires, so reading a message costs nothing but a timestamp.
+  private void checkHeartbeat(ServerUser user) {
+    if (user.stopFlag.get() || user.detached) {
+      return;
     }
 
-    String result = new String();
-    for (int i = 0; i < usersWHOIS.size(); i++) {
-      if (i != 0) {
-        result += "\n";
+    long idle = System.nanoTime() - user.getLastReadNanos();
+    if (idle >= idleTimeoutNanos) {
+      System.out.println("Reaping an idle session (" + user.getUserName() + ")");
+      metrics.sessionReaped();
+      if (!user.detach()) {
+        deleteUser(user);
+        user.close();
       }
-      result += String.valueOf(i + 1) + ") " + usersWHOIS.get(i);
+      return;
     }
-
-    return result;
+    if (idle < heartbeatIntervalNanos) {
+      scheduleHeartbeat(user, heartbeatIntervalNanos - idle);
+      return;
+    }
+    user.send(PING);
+    scheduleHeartbeat(user, Math.min(heartbeatIntervalNanos, idleTimeoutNanos - idle));
   }
 
-  private static class ServerUser extends Thread {
-    private ChatServer server;
-    private int userId;
-    private Socket clientSocket;
-    private ObjectInputStream reader;
-    private ObjectOutputStream writer;
-    private AtomicBoolean stopFlag = new AtomicBoolean(false);
-    private String userName;
-    private final LocalTime since = LocalTime.now();
-
-    public ServerUser(ChatServer server, int userId, Socket socket) throws Exception {
-      this.server = server;
-      this.userId = userId;
-      this.clientSocket = socket;
+  // Issues the session's resume token. The SESSION frame is queued behind whatever the session has
+  // been sent so far, and the replay ring starts numbering after it.
+  private void startResumableSession(ServerUser user) {
+    byte[] bytes = new byte[16];
+    tokens.nextBytes(bytes);
+    StringBuilder token = new StringBuilder();
+    for (byte b : bytes) {
+      token.append(String.format("%02x", b));
     }
 
-    private void initialize() throws Exception {
-      reader = new ObjectInputStream(clientSocket.getInputStream());
-      writer = new ObjectOutputStream(clientSocket.getOutputStream());
-      super.start();
+    OutboundMessage session =
+      OutboundMessage.control(FrameCodec.encodeSession(FrameCodec.SESSION, 0, token.toString()));
+    user.resumeToken = token.toString();
+    user.replay = new ReplayRing(replayCapacity, 0, session);
+    resumableSessions.put(user.resumeToken, user);
+    user.send(session);
+  }
+
+  // Keeps a resumable session whose connection was lost, until it is resumed or the timeout passes.
+  // Returns false if the session has to be logged out instead.
+  boolean detach(ServerUser user) {
+    TimerWheel timers = this.timers;
+    synchronized (user) {
+      if (user.successor != null) {
+        // Resumed on another connection already.
+        return true;
+      }
+      if (user.stopFlag.get() || stopFlag.get() || timers == null || users.get(user.getUserName()) != user) {
+        return false;
+      }
+      if (user.detached) {
+        return true;
+      }
+      user.detached = true;
     }
 
-    @Override
-    public void run() {
-      try {
-        userName = reader.readUTF();
-        if (!server.handleUser(userId)) {
+    user.closeConnection();
+    timers.schedule(() -> {
+      synchronized (user) {
+        if (user.successor != null) {
           return;
         }
+        user.stopFlag.set(true);
+      }
+      deleteUser(user);
+      user.close();
+    }, resumeTimeoutNanos, TimeUnit.NANOSECONDS);
+    return true;
+  }
 
-        sendMessage(
-          "Hello! Welcome to the chatroom.\n " +
-            "Instructions:\n" +
-            "- Simply type the message to send broadcast to all active clients\n" +
-            "- Type '@username<space>yourmessage' without quotes to send message to desired client\n" +
-            "- Type 'WHOIS' without quotes to see list of active clients\n" +
-            "- Type 'LOGOUT' without quotes to logoff from server\n" +
-            "- Type 'PENGU' without quotes to request a random penguin fact");
-
-        while (!stopFlag.get()) {
-          String message = reader.readUTF();
+  // Moves the session with the token onto a new connection, whose user takes over its id, name and
+  // room, and queues the messages the client missed. The previous user passes on whatever is still
+  // sent to it. The previous connection is closed in case it hasn't noticed it is gone yet.
+  private boolean resumeSession(ServerUser user, String token, long sequence) {
+    removeUnhandledUser(user);
+    ServerUser previous = token != null ? resumableSessions.get(token) : null;
+    if (previous == null) {
+      return false;
+    }
 
-          if (message.length() > 0 && message.substring(0, 1).equals("@")) {
-            String[] line = message.split(" ", 2);
-            if (!server.sendUserMessage(this, line[0].substring(1), line[1])) {
-              sendMessage("The message hasn't been sent.");
-            }
-          } else if (message.equals("WHOIS")) {
-            sendMessage(server.getWHOIS(userName));
-          } else if (message.equals("LOGOUT")) {
-            break;
-          } else if (message.equals("PENGU")) {
-            String fact = server.randomFactPengu();
-            sendMessage(fact);
-            server.sendBroadcastMessage(this, fact, false);
-          } else {
-            if (!server.sendBroadcastMessage(this, message, true)) {
-              sendMessage("The message hasn't been sent to all users.");
-            }
-          }
+    List<OutboundMessage> missed;
+    synchronized (previous) {
+      if (previous.successor != null || previous.stopFlag.get()) {
+        return false;
+      }
+      missed = previous.replay.seal(sequence);
+      if (missed != null) {
+        OutboundMessage session =
+          OutboundMessage.control(FrameCodec.encodeSession(FrameCodec.SESSION, sequence, token));
+        user.takeOver(previous);
+        user.replay = new ReplayRing(replayCapacity, sequence, session);
+        user.outbound.put(session);
+        for (OutboundMessage message : missed) {
+          user.outbound.put(message);
         }
-      } catch (IOException e) {
-        System.out.println("Reading a message has failed (" + e.getMessage() + ")");
+        previous.successor = user;
+        previous.outbound.transferTo(user.outbound);
+      } else {
+        previous.stopFlag.set(true);
       }
-      this.server.deleteUser(userName);
     }
 
-    public String getUserName() {
-      return userName;
+    if (missed == null || !users.replace(previous, user)) {
+      // Too much was missed, or the session expired just now.
+      deleteUser(previous);
+      previous.close();
+      return false;
+    }
+    resumableSessions.replace(token, previous, user);
+    RoomDirectory.Room room = previous.room;
+    if (room != null) {
+      rooms.replace(room, previous, user);
     }
+    previous.closeConnection();
+    metrics.sessionResumed();
+    return true;
+  }
 
-    public int getUserId() {
-      return userId;
+  void addUnhandledUser(ServerUser user) {
+    unhandledUsers.put(user.getUserId(), user);
+  }
+
+  void removeUnhandledUser(ServerUser user) {
+    unhandledUsers.remove(user.getUserId(), user);
+  }
+
+  // Admission claims the name atomically, here and then across the cluster, and announces the
+  // newcomer without holding any lock. The cluster may answer on one of its own threads.
+  private CompletableFuture<Boolean> claimUser(int id) {
+    ServerUser user = unhandledUsers.remove(id);
+    if (user == null) {
+      return CompletableFuture.completedFuture(false);
     }
 
-    public synchronized boolean sendMessage(String msg) {
-      try {
-        writer.writeUTF(msg);
-        writer.flush();
-      } catch (IOException e) {
-        System.out.println("Sending a message has failed (" + e.getMessage() + ")");
-        close();
-        return false;
+    String userName = user.getUserName();
+    if (userName == null || userName.contains(" ")) {
+      user.sendMessage("The username is invalid.");
+      return CompletableFuture.completedFuture(false);
+    }
+
+    if (!users.claim(userName, user)) {
+      user.sendMessage("This username is already taken.");
+      return CompletableFuture.completedFuture(false);
+    }
+    ClusterNode cluster = this.cluster;
+    if (cluster == null) {
+      return CompletableFuture.completedFuture(true);
+    }
+    return cluster.claim(userName).thenApply(granted -> {
+      if (!granted) {
+        users.remove(user);
+        user.sendMessage("This username is already taken.");
       }
+      return granted;
+    });
+  }
+
+  private void admitUser(ServerUser user) {
+    // Whatever reaches the user live from now on is not replayed.
+    user.historyMark = history != null ? history.getLastSequence() : -1;
+    user.room = rooms.join(RoomDirectory.LOBBY, user);
+
+    sendBroadcastMessage(user, "***** " + user.getUserName() + " has joined to the chat room.*****", false);
+  }
+
+  // Takes a token from the session's bucket for the command type, the session's own bucket and the
+  // global one, in that order. A command that fails a later check still spends the earlier tokens.
+  private boolean admit(ServerUser user, ServerMetrics.MessageType type) {
+    long now = System.nanoTime();
+    TokenBucket command = user.commandLimits != null ? user.commandLimits[type.ordinal()] : null;
+    TokenBucket global = globalRateLimit;
+    if ((command == null || command.tryAcquire(now))
+      && (user.sessionLimit == null || user.sessionLimit.tryAcquire(now))
+      && (global == null || global.tryAcquire(now))) {
       return true;
     }
 
-    public void close() {
-      stopFlag.set(true);
-      try {
-        interrupt();
+    metrics.messageLimited();
+    if (rateLimitPolicy == RateLimitPolicy.REPLY) {
+      user.sendMessage("You are sending messages too fast, the message hasn't been sent.");
+    }
+    return false;
+  }
 
-        if (reader != null) {
-          reader.close();
-        }
-        if (writer != null) {
-          writer.close();
-        }
-        if (clientSocket != null) {
-          clientSocket.close();
-        }
-      } catch (Exception e) {
-        System.out.println("Closing a user has failed (" + e.getMessage() + ")");
+  OutboundMessage formMessage(ServerUser from, String msg) {
+    return OutboundMessage.chat(from.getUserNameBytes(), msg);
+  }
+
+  boolean sendUserMessage(ServerUser from, String userName, String msg) {
+    ServerUser user = users.get(userName);
+    if (user != null) {
+      OutboundMessage message = formMessage(from, msg);
+      if (history != null) {
+        history.add(MessageHistory.USER, user.getUserNameBytes(), message);
       }
+      return user.sendMessage(message, ServerMetrics.MessageType.DIRECT);
     }
 
-    private String getWHOIS() {
-      return getUserName() + " since " + since.format(DateTimeFormatter.ofPattern("HH:mm:ss.SSSSSS"));
+    ClusterNode cluster = this.cluster;
+    String node = cluster != null ? cluster.locate(userName) : null;
+    if (node != null) {
+      if (!cluster.forwardDirect(node, userName, formMessage(from, msg))) {
+        return false;
+      }
+      metrics.messagesOut(ServerMetrics.MessageType.DIRECT, 1);
+      return true;
     }
 
-    @Override
-    public int hashCode() {
-      return userName.hashCode();
+    if (mailbox != null && mailbox.isKnown(userName)) {
+      return storeOfflineMessage(from, userName, formMessage(from, msg));
+    }
+
+    from.sendMessage(userName + " doesn't exist.");
+    return false;
+  }
+
+  boolean sendBroadcastMessage(
+    ServerUser from, String msg, boolean addUserName) {
+    return sendBroadcastMessage(from, msg, addUserName,
+      addUserName ? ServerMetrics.MessageType.BROADCAST : ServerMetrics.MessageType.SYSTEM);
+  }
+
+  // Broadcasts reach the sender's room only.
+  private boolean sendBroadcastMessage(
+    ServerUser from, String msg, boolean addUserName, ServerMetrics.MessageType type) {
+    RoomDirectory.Room room = from.room;
+    OutboundMessage message = addUserName ? formMessage(from, msg) : new OutboundMessage(msg);
+    if (room == null) {
+      return fanOut(users.snapshot(), from, message, type);
+    }
+    if (history != null && type == ServerMetrics.MessageType.BROADCAST) {
+      history.add(MessageHistory.ROOM, room.getNameBytes(), message);
+    }
+    return sendRoomMessage(room, from, message, type);
+  }
+
+  // Rooms span the cluster, so whatever is said in one also goes to its members on other nodes.
+  private boolean sendRoomMessage(
+    RoomDirectory.Room room, ServerUser from, OutboundMessage message, ServerMetrics.MessageType type) {
+    ClusterNode cluster = this.cluster;
+    if (cluster != null) {
+      cluster.relayBroadcast(room.getName(), type, message);
+    }
+    return fanOut(room.members(), from, message, type);
+  }
+
+  // A direct message forwarded by the node of the sender.
+  void deliverDirect(String userName, OutboundMessage message) {
+    ServerUser user = users.get(userName);
+    if (user == null) {
+      return;
+    }
+    if (history != null) {
+      history.add(MessageHistory.USER, user.getUserNameBytes(), message);
+    }
+    user.sendMessage(message, ServerMetrics.MessageType.DIRECT);
+  }
+
+  // A room message relayed from another node.
+  void deliverRoomMessage(String roomName, ServerMetrics.MessageType type, OutboundMessage message) {
+    RoomDirectory.Room room = rooms.get(roomName);
+    if (history != null && type == ServerMetrics.MessageType.BROADCAST) {
+      history.add(MessageHistory.ROOM, roomName.getBytes(StandardCharsets.UTF_8), message);
+    }
+    if (room != null) {
+      fanOut(room.members(), null, message, type);
+    }
+  }
+
+  private boolean fanOut(
+    ServerUser[] local_users, ServerUser from, OutboundMessage message, ServerMetrics.MessageType type) {
+    if (parallelFanOutThreshold > 0 && fanOutParallelism > 1 && local_users.length >= parallelFanOutThreshold) {
+      return parallelFanOut(local_users, from, message, type);
+    }
+
+    long started = System.nanoTime();
+    boolean result = true;
+    int sent = 0;
+    for (ServerUser user : local_users) {
+      if (user.equals(from)) {
+        continue;
+      }
+
+      if (user.send(message)) {
+        sent++;
+      } else {
+        result = false;
+      }
+    }
+    metrics.messagesOut(type, sent);
+    metrics.fanOutCompleted(System.nanoTime() - started);
+    return result;
+  }
+
+  private boolean parallelFanOut(
+    ServerUser[] local_users, ServerUser from, OutboundMessage message, ServerMetrics.MessageType type) {
+    long started = System.nanoTime();
+    int slice = Math.max(256, local_users.length / (fanOutParallelism * 4));
+    FanOut task = new FanOut(local_users, 0, local_users.length, slice, from, message);
+    fanOutPool().invoke(task);
+    metrics.messagesOut(type, task.sent);
+    metrics.fanOutCompleted(System.nanoTime() - started);
+    return !task.failed;
+  }
+
+  private ForkJoinPool fanOutPool() {
+    ForkJoinPool pool = fanOutPool;
+    if (pool == null) {
+      synchronized (this) {
+        pool = fanOutPool;
+        if (pool == null) {
+          pool = new ForkJoinPool(fanOutParallelism, forkJoinPool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+            thread.setName("chat-fanout-" + thread.getPoolIndex());
+            return thread;
+          }, null, false);
+          fanOutPool = pool;
+        }
+      }
+    }
+    return pool;
+  }
+
+  // A range of recipients. Ranges above the slice size split in half, and idle workers steal the
+  // halves that haven't been started yet.
+  private static final class FanOut extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final ServerUser[] users;
+    private final int from;
+    private final int to;
+    private final int slice;
+    private final ServerUser sender;
+    private final OutboundMessage message;
+    private int sent = 0;
+    private boolean failed = false;
+
+    private FanOut(ServerUser[] users, int from, int to, int slice, ServerUser sender, OutboundMessage message) {
+      this.users = users;
+      this.from = from;
+      this.to = to;
+      this.slice = slice;
+      this.sender = sender;
+      this.message = message;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from > slice) {
+        int middle = (from + to) >>> 1;
+        FanOut left = new FanOut(users, from, middle, slice, sender, message);
+        FanOut right = new FanOut(users, middle, to, slice, sender, message);
+        left.fork();
+        right.compute();
+        left.join();
+        sent = left.sent + right.sent;
+        failed = left.failed || right.failed;
+        return;
+      }
+
+      for (int i = from; i < to; i++) {
+        ServerUser user = users[i];
+        if (user.equals(sender)) {
+          continue;
+        }
+        if (user.send(message)) {
+          sent++;
+        } else {
+          failed = true;
+        }
+      }
+    }
+  }
+
+  private boolean storeOfflineMessage(ServerUser from, String userName, OutboundMessage message) {
+    try {
+      if (!mailbox.store(userName, message)) {
+        from.sendMessage("The mailbox of " + userName + " is full.");
+        return false;
+      }
+    } catch (IOException e) {
+      System.out.println("Storing an offline message has failed (" + e.getMessage() + ")");
+      return false;
+    }
+
+    from.sendMessage(userName + " is offline, the message will be delivered when " + userName + " logs in.");
+    ServerUser user = users.get(userName);
+    if (user != null) {
+      // The user logged in while the message was being stored, and may have drained the spool already.
+      deliverOfflineMessages(user);
+    }
+    return true;
+  }
+
+  // Runs on the mailbox thread so that a large spool doesn't hold up the login, and sends the whole
+  // spool as one batch through the user's outbound queue.
+  private void deliverOfflineMessages(ServerUser user) {
+    OfflineMailbox mailbox = this.mailbox;
+    ExecutorService mailboxExecutor = this.mailboxExecutor;
+    if (mailbox == null || mailboxExecutor == null) {
+      return;
+    }
+
+    try {
+      mailboxExecutor.execute(() -> {
+        try {
+          mailbox.drain(user.getUserName(), messages -> {
+            if (users.get(user.getUserName()) != user || !user.send(OutboundMessage.batch(messages))) {
+              return false;
+            }
+            metrics.messagesOut(ServerMetrics.MessageType.DIRECT, messages.size());
+            return true;
+          });
+        } catch (IOException e) {
+          System.out.println("Delivering the offline messages has failed (" + e.getMessage() + ")");
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // The server is stopping; the messages stay in the spool.
+    }
+  }
+
+  private void replayHistory(ServerUser user) {
+    RoomDirectory.Room room = user.room;
+    if (history == null || historyReplay == 0 || room == null) {
+      return;
+    }
+    history.replayLast(room.getNameBytes(), user.getUserNameBytes(), historyReplay, user.historyMark,
+      frame -> user.send(OutboundMessage.framed(frame)));
+  }
+
+  private boolean deleteUser(ServerUser user) {
+    if (user.resumeToken != null) {
+      resumableSessions.remove(user.resumeToken, user);
+    }
+    if (users.remove(user)) {
+      ClusterNode cluster = this.cluster;
+      if (cluster != null) {
+        cluster.release(user.getUserName());
+      }
+      RoomDirectory.Room room = user.room;
+      if (room != null) {
+        rooms.leave(room, user);
+      }
+      user.close();
+      return true;
+    }
+    return false;
+  }
+
+  private CommandRouter createCommands() {
+    CommandRouter router = new CommandRouter(ServerMetrics.MessageType.BROADCAST,
+      (user, command) -> user.broadcast(command.getLine()));
+    router.registerPrefix('@', ServerMetrics.MessageType.DIRECT, (user, command) -> user.sendDirect(command));
+    router.register("WHOIS", true, ServerMetrics.MessageType.WHOIS, (user, command) -> {
+      user.sendWHOIS(command.getArguments().trim());
+      return true;
+    });
+    router.register("JOIN", true, ServerMetrics.MessageType.SYSTEM, (user, command) -> {
+      user.joinRoom(command.getArguments().trim());
+      return true;
+    });
+    router.register("LEAVE", false, ServerMetrics.MessageType.SYSTEM, (user, command) -> user.leaveRoom());
+    router.register("ROOMS", false, ServerMetrics.MessageType.SYSTEM, (user, command) -> user.sendRooms());
+    router.register("PENGU", false, ServerMetrics.MessageType.PENGU, (user, command) -> user.sendPengu());
+    router.register("LOGOUT", false, null, (user, command) -> false);
+    return router;
+  }
+
+  private String randomFactPengu() {
+    Random random = new Random();
+    return penguinFacts[random.nextInt(penguinFacts.length)];
+  }
+
+  String getWHOIS(String exclude) {
+    return getWHOIS(exclude, "", 1);
+  }
+
+  // One page of the users whose names start with prefix, in name order and numbered across pages.
+  // Only the entries before the page and on it are visited, so no WHOIS sorts or copies the roster.
+  String getWHOIS(String exclude, String prefix, int page) {
+    StringBuilder result = new StringBuilder();
+    int skip = (page - 1) * whoisPageSize;
+    int number = 0;
+    for (ServerUser user : users.sorted(prefix)) {
+      String userName = user.getUserName();
+      if (!userName.startsWith(prefix)) {
+        break;
+      }
+      if (userName.equals(exclude)) {
+        continue;
+      }
+
+      number++;
+      if (number <= skip) {
+        continue;
+      }
+      if (number > skip + whoisPageSize) {
+        result.append("\n").append("Type 'WHOIS ");
+        if (prefix.length() > 0) {
+          result.append(prefix).append("* ");
+        }
+        result.append(page + 1).append("' without quotes to see the next page");
+        break;
+      }
+
+      if (number != skip + 1) {
+        result.append("\n");
+      }
+      result.append(number).append(") ").append(user.getWHOIS());
+    }
+
+    return result.toString();
+  }
+
+  abstract static class ServerUser {
+    private static final String TOO_LONG = "The message is too long.";
+    static final String WELCOME =
+      "Hello! Welcome to the chatroom.\n " +
+        "Instructions:\n" +
+        "- Simply type the message to send broadcast to all active clients\n" +
+        "- Type '@username<space>yourmessage' without quotes to send message to desired client\n" +
+        "- Type 'WHOIS' without quotes to see list of active clients\n" +
+        "- Type 'LOGOUT' without quotes to logoff from server\n" +
+        "- Type 'PENGU' without quotes to request a random penguin fact";
+
+    protected final ChatServer server;
+    private int userId;
+    protected AtomicBoolean stopFlag = new AtomicBoolean(false);
+    protected final OutboundQueue outbound;
+    private String userName;
+    private byte[] userNameBytes;
+    private volatile RoomDirectory.Room room;
+    private long historyMark = -1;
+    private String since = MessageClock.now();
+    private final long acceptedAt = System.nanoTime();
+    private final AtomicBoolean handshaking = new AtomicBoolean(false);
+    private int helloFlags = 0;
+    // Messages with at least this many bytes of text are sent compressed; set at login.
+    protected int deflateThreshold = Integer.MAX_VALUE;
+    // This session's own copies of the configured rate limits, or null where there is none.
+    private final TokenBucket sessionLimit;
+    private final TokenBucket[] commandLimits;
+    private volatile TimerWheel.Timeout handshakeDeadline;
+    // Resumable sessions only: the messages written so far, and once the connection is lost, whether
+    // the session waits for the client to come back and the user that took it over when it did.
+    private String resumeToken;
+    private volatile ReplayRing replay;
+    private volatile boolean detached = false;
+    private volatile ServerUser successor;
+
+    ServerUser(ChatServer server, int userId) {
+      this.server = server;
+      this.userId = userId;
+      this.outbound = new OutboundQueue(server.outboundQueueCapacity);
+      this.sessionLimit = server.sessionRateLimit != null ? server.sessionRateLimit.copy() : null;
+      TokenBucket[] commandLimits = null;
+      for (int i = 0; i < server.commandRateLimits.length; i++) {
+        if (server.commandRateLimits[i] != null) {
+          if (commandLimits == null) {
+            commandLimits = new TokenBucket[server.commandRateLimits.length];
+          }
+          commandLimits[i] = server.commandRateLimits[i].copy();
+        }
+      }
+      this.commandLimits = commandLimits;
+    }
+
+    boolean login(String name) {
+      return finishLogin(beginLogin(name, 0).join());
+    }
+
+    // Claims the name, which may take a round trip to another member of the cluster. The engine
+    // passes the outcome to finishLogin on the session's own thread.
+    CompletableFuture<Boolean> beginLogin(String name, int helloFlags) {
+      this.helloFlags = helloFlags;
+      if ((helloFlags & FrameCodec.HELLO_DEFLATE) != 0 && server.compressionThreshold >= 0) {
+        deflateThreshold = server.compressionThreshold;
+      }
+      // If the deadline beat us to it, it is closing the session, which mustn't get in meanwhile.
+      // Sessions that never began a handshake, like the benchmarks' in-memory ones, have no deadline.
+      if (!endHandshake() && handshakeDeadline != null) {
+        return CompletableFuture.completedFuture(false);
+      }
+      userName = name;
+      userNameBytes = name != null ? name.getBytes(StandardCharsets.UTF_8) : null;
+      return server.claimUser(userId);
+    }
+
+    boolean finishLogin(boolean claimed) {
+      if (claimed && stopFlag.get()) {
+        // Closed while the cluster answered, so the name is given back.
+        server.deleteUser(this);
+        claimed = false;
+      }
+      if (!claimed) {
+        outbound.finish();
+        wakeWriter();
+        return false;
+      }
+
+      server.admitUser(this);
+      server.metrics.handshakeCompleted(System.nanoTime() - acceptedAt);
+      if ((helloFlags & FrameCodec.HELLO_RESUMABLE) != 0 && server.replayCapacity > 0
+        && getWireFormat() == WireFormat.FRAMED) {
+        server.startResumableSession(this);
+      }
+      sendMessage(WELCOME);
+      server.replayHistory(this);
+      server.deliverOfflineMessages(this);
+      if (server.heartbeatIntervalNanos > 0 && getWireFormat() == WireFormat.FRAMED) {
+        server.scheduleHeartbeat(this, server.heartbeatIntervalNanos);
+      }
+      return true;
+    }
+
+    // Logs in as the session with the token instead, from after the given message on.
+    boolean resume(String token, long sequence) {
+      if (!endHandshake() && handshakeDeadline != null) {
+        return false;
+      }
+      if (!server.resumeSession(this, token, sequence)) {
+        sendMessage("The session can't be resumed.");
+        outbound.finish();
+        wakeWriter();
+        return false;
+      }
+
+      wakeWriter();
+      if (server.heartbeatIntervalNanos > 0) {
+        server.scheduleHeartbeat(this, server.heartbeatIntervalNanos);
+      }
+      return true;
+    }
+
+    // Called with the lock of previous held, before anyone can reach this user.
+    private void takeOver(ServerUser previous) {
+      userId = previous.userId;
+      userName = previous.userName;
+      userNameBytes = previous.userNameBytes;
+      room = previous.room;
+      historyMark = previous.historyMark;
+      since = previous.since;
+      deflateThreshold = previous.deflateThreshold;
+      resumeToken = previous.resumeToken;
+    }
+
+    // Called by the engines when the connection is lost, rather than logged out of.
+    boolean detach() {
+      return replay != null && server.detach(this);
+    }
+
+    boolean handleMessage(String message) {
+      int wordEnd = CommandRouter.wordEnd(message);
+      CommandRouter.Route route = server.commands.route(message, wordEnd);
+      ServerMetrics.MessageType type = route.getType();
+      if (type != null && !server.admit(this, type)) {
+        return true;
+      }
+      if (type != null && type != ServerMetrics.MessageType.SYSTEM) {
+        server.metrics.messageIn(type);
+      }
+      return route.handle(this, message, wordEnd);
+    }
+
+    private boolean sendDirect(CommandRouter.Command command) {
+      if (!command.hasArguments()) {
+        sendMessage("Usage: @username message");
+        return true;
+      }
+      String text = command.getArguments();
+      if (!OutboundMessage.fitsChat(userNameBytes, text)) {
+        sendMessage(TOO_LONG);
+      } else if (!server.sendUserMessage(this, command.getWord(), text)) {
+        sendMessage("The message hasn't been sent.");
+      }
+      return true;
+    }
+
+    private boolean leaveRoom() {
+      if (room == null || room.getName().equals(RoomDirectory.LOBBY)) {
+        sendMessage("You are in the " + RoomDirectory.LOBBY + " already.");
+      } else {
+        joinRoom(RoomDirectory.LOBBY);
+      }
+      return true;
+    }
+
+    private boolean sendRooms() {
+      StringBuilder result = new StringBuilder();
+      for (Map.Entry<String, Integer> entry : server.rooms.counts().entrySet()) {
+        if (result.length() > 0) {
+          result.append("\n");
+        }
+        result.append(entry.getKey()).append(" (").append(entry.getValue()).append(")");
+      }
+      sendMessage(result.toString());
+      return true;
+    }
+
+    private boolean sendPengu() {
+      String fact = server.randomFactPengu();
+      sendMessage(fact, ServerMetrics.MessageType.PENGU);
+      server.sendBroadcastMessage(this, fact, false, ServerMetrics.MessageType.PENGU);
+      return true;
+    }
+
+    private boolean broadcast(String message) {
+      if (!OutboundMessage.fitsChat(userNameBytes, message)) {
+        sendMessage(TOO_LONG);
+      } else if (!server.sendBroadcastMessage(this, message, true)) {
+        sendMessage("The message hasn't been sent to all users.");
+      }
+      return true;
+    }
+
+    void logout() {
+      server.deleteUser(this);
+    }
+
+    // Frees the handshake slot the first time it is called, whether the handshake completed or
+    // failed. Returns false if it was freed already.
+    boolean endHandshake() {
+      if (!handshaking.compareAndSet(true, false)) {
+        return false;
+      }
+      server.handshakes.release();
+      TimerWheel.Timeout deadline = handshakeDeadline;
+      if (deadline != null) {
+        deadline.cancel();
+      }
+      return true;
+    }
+
+    public String getUserName() {
+      return userName;
+    }
+
+    byte[] getUserNameBytes() {
+      return userNameBytes;
+    }
+
+    public int getUserId() {
+      return userId;
+    }
+
+    public int getQueueDepth() {
+      return outbound.size();
+    }
+
+    public long getDroppedMessages() {
+      return outbound.getDropped();
+    }
+
+    public boolean sendMessage(String msg) {
+      return sendMessage(msg, ServerMetrics.MessageType.SYSTEM);
+    }
+
+    boolean sendMessage(String msg, ServerMetrics.MessageType type) {
+      return sendMessage(new OutboundMessage(msg), type);
+    }
+
+    boolean sendMessage(OutboundMessage message, ServerMetrics.MessageType type) {
+      if (!send(message)) {
+        return false;
+      }
+      server.metrics.messagesOut(type, 1);
+      return true;
+    }
+
+    // Queues the message for this session's writer, so a slow reader never blocks the sender.
+    boolean send(OutboundMessage message) {
+      ServerUser successor = this.successor;
+      if (successor != null) {
+        forwardQueued(successor);
+        return successor.send(message);
+      }
+      if (stopFlag.get()) {
+        return false;
+      }
+
+      long dropped = outbound.getDropped();
+      boolean queued = outbound.offer(message, server.slowConsumerPolicy);
+      if (outbound.getDropped() != dropped) {
+        server.metrics.sendFailed();
+      }
+      if (!queued) {
+        if (server.slowConsumerPolicy == SlowConsumerPolicy.DISCONNECT) {
+          System.out.println("Disconnecting a slow consumer (" + userName + ")");
+          server.deleteUser(this);
+          close();
+        }
+        return false;
+      }
+      successor = this.successor;
+      if (successor != null) {
+        // Resumed on another connection while the message was being queued.
+        forwardQueued(successor);
+        return true;
+      }
+      wakeWriter();
+      return true;
+    }
+
+    // Once the session has been resumed, senders that still hold this user pass on the messages that
+    // were queued here first, so the messages of each sender stay in order.
+    private void forwardQueued(ServerUser successor) {
+      synchronized (this) {
+        outbound.transferTo(successor.outbound);
+      }
+      successor.wakeWriter();
+    }
+
+    // Called by the writer for every message it takes off the queue, before writing it. Returns
+    // false if the session has been resumed on another connection, which the message goes to instead.
+    boolean recordSent(OutboundMessage message) {
+      ReplayRing replay = this.replay;
+      if (replay == null || replay.add(message)) {
+        return true;
+      }
+      ServerUser successor;
+      synchronized (this) {
+        successor = this.successor;
+      }
+      if (successor != null) {
+        successor.send(message);
+      }
+      return false;
+    }
+
+    abstract void wakeWriter();
+
+    abstract WireFormat getWireFormat();
+
+    abstract long getLastReadNanos();
+
+    public abstract void close();
+
+    // Closes the connection but keeps the session and its queue.
+    abstract void closeConnection();
+
+    private void joinRoom(String roomName) {
+      if (roomName.isEmpty() || roomName.contains(" ")) {
+        sendMessage("The room name is invalid.");
+        return;
+      }
+      RoomDirectory.Room previous = room;
+      if (previous != null && previous.getName().equals(roomName)) {
+        sendMessage("You are in the room '" + roomName + "' already.");
+        return;
+      }
+
+      RoomDirectory.Room next = server.rooms.join(roomName, this);
+      room = next;
+      if (server.users.get(userName) != this) {
+        // Logged out concurrently, after deleteUser left the previous room.
+        server.rooms.leave(next, this);
+        return;
+      }
+      if (previous != null) {
+        server.rooms.leave(previous, this);
+        server.sendRoomMessage(previous, this,
+          new OutboundMessage("***** " + userName + " has left the room.*****"), ServerMetrics.MessageType.SYSTEM);
+      }
+      sendMessage("You have joined the room '" + roomName + "'.");
+      server.sendRoomMessage(next, this,
+        new OutboundMessage("***** " + userName + " has joined the room.*****"), ServerMetrics.MessageType.SYSTEM);
+    }
+
+    // Accepts an optional name prefix ending with '*' and an optional page number, in that order.
+    private void sendWHOIS(String arguments) {
+      String prefix = "";
+      int page = 1;
+      int start = CommandRouter.skipSpaces(arguments, 0);
+      int end = CommandRouter.wordEnd(arguments, start);
+      if (end > start && arguments.charAt(end - 1) == '*') {
+        prefix = arguments.substring(start, end - 1);
+        start = CommandRouter.skipSpaces(arguments, end);
+        end = CommandRouter.wordEnd(arguments, start);
+      }
+      if (end > start) {
+        try {
+          page = Integer.parseInt(arguments, start, end, 10);
+        } catch (NumberFormatException e) {
+          page = 0;
+        }
+        start = CommandRouter.skipSpaces(arguments, end);
+      }
+
+      if (start < arguments.length() || page < 1) {
+        sendMessage("Usage: WHOIS [prefix*] [page]");
+        return;
+      }
+      sendMessage(server.getWHOIS(userName, prefix, page), ServerMetrics.MessageType.WHOIS);
+    }
+
+    private String getWHOIS() {
+      return getUserName() + " since " + since;
+    }
+
+    @Override
+    public int hashCode() {
+      return userName.hashCode();
     }
 
     @Override
@@ -364,4 +1570,161 @@ public class ChatServer {
       return Objects.equals(userName, ((ServerUser) obj).userName);
     }
   }
+
+  private static class SocketUser extends ServerUser {
+    private Socket clientSocket;
+    private TlsChannel tls;
+    private WireStream wire;
+    private volatile Thread readerThread;
+    private volatile Thread writerThread;
+
+    public SocketUser(ChatServer server, int userId, Socket socket) throws Exception {
+      super(server, userId);
+      this.clientSocket = socket;
+    }
+
+    // Runs the handshake, which may wait for the client, on the session's own thread.
+    private void run() {
+      readerThread = Thread.currentThread();
+      boolean loggedIn = false;
+      boolean refused = false;
+      boolean lost = false;
+      try {
+        InputStream in = clientSocket.getInputStream();
+        OutputStream out = clientSocket.getOutputStream();
+        if (server.isTlsEnabled()) {
+          tls = server.newTlsChannel(Channels.newChannel(in), Channels.newChannel(out));
+          in = Channels.newInputStream(tls);
+          out = Channels.newOutputStream(tls);
+        }
+        wire = WireStream.accept(in, out, Math.min(server.maxBatchBytes, 64 * 1024));
+        if (stopFlag.get()) {
+          return;
+        }
+        server.sessionExecutor.execute(this::writeMessages);
+        String name = wire.readLogin();
+        // The session has a thread of its own, which may as well wait for the cluster.
+        loggedIn = wire.getResumeToken() != null
+          ? resume(wire.getResumeToken(), wire.getSequence())
+          : finishLogin(beginLogin(name, wire.getHelloFlags()).join());
+        if (!loggedIn) {
+          refused = true;
+          return;
+        }
+
+        while (!stopFlag.get()) {
+          if (!handleMessage(wire.read())) {
+            break;
+          }
+        }
+      } catch (IOException e) {
+        System.out.println("Reading a message has failed (" + e.getMessage() + ")");
+        lost = true;
+      } finally {
+        readerThread = null;
+        server.removeUnhandledUser(this);
+        // The writer closes a refused session once the reply is out, and a detached one waits for
+        // its client to come back.
+        if (!refused && !(loggedIn && lost && detach())) {
+          if (loggedIn) {
+            logout();
+          }
+          close();
+        }
+      }
+    }
+
+    private void writeMessages() {
+      writerThread = Thread.currentThread();
+      try {
+        while (!stopFlag.get()) {
+          OutboundMessage message = outbound.take();
+          long deadline = System.nanoTime() + server.flushDelayNanos;
+          int batched = 0;
+          while (message != null && message != OutboundQueue.END) {
+            byte[] frame = recordSent(message) ? message.bytes(wire.getFormat(), deflateThreshold) : null;
+            if (frame != null) {
+              wire.append(frame);
+              batched += frame.length;
+            }
+            if (batched >= server.maxBatchBytes) {
+              break;
+            }
+
+            message = outbound.poll();
+            if (message == null && server.flushDelayNanos > 0) {
+              long remaining = deadline - System.nanoTime();
+              if (remaining > 0) {
+                message = outbound.poll(remaining, TimeUnit.NANOSECONDS);
+              }
+            }
+          }
+          wire.flush();
+
+          if (message == OutboundQueue.END) {
+            close();
+            break;
+          }
+        }
+      } catch (InterruptedException e) {
+        // The session is closing.
+      } catch (IOException e) {
+        // The reader fails next and logs the session out, or detaches it.
+        System.out.println("Sending a message has failed (" + e.getMessage() + ")");
+        server.metrics.sendFailed();
+        closeConnection();
+      } finally {
+        writerThread = null;
+      }
+    }
+
+    @Override
+    void wakeWriter() {
+      // The writer blocks on the queue itself.
+    }
+
+    @Override
+    WireFormat getWireFormat() {
+      return wire != null ? wire.getFormat() : null;
+    }
+
+    @Override
+    long getLastReadNanos() {
+      return wire.getLastReadNanos();
+    }
+
+    @Override
+    public void close() {
+      stopFlag.set(true);
+      endHandshake();
+      interrupt(readerThread);
+      closeConnection();
+      outbound.clear();
+    }
+
+    @Override
+    void closeConnection() {
+      try {
+        interrupt(writerThread);
+
+        if (wire != null) {
+          wire.close();
+        }
+        if (tls != null) {
+          tls.close();
+        }
+        if (clientSocket != null) {
+          clientSocket.close();
+        }
+      } catch (Exception e) {
+        System.out.println("Closing a user has failed (" + e.getMessage() + ")");
+      }
+    }
+
+    private static void interrupt(Thread thread) {
+      if (thread != null && thread != Thread.currentThread()) {
+        thread.interrupt();
+      }
+    }
+  }
 }
@@ -5,12 +5,41 @@ import org.junit.jupiter.api.Order;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestMethodOrder;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.net.ssl.SSLContext;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @TestMethodOrder(MethodOrderer.OrderAnnotation.class)
 public class ChatServerTest {
@@ -256,4 +285,1358 @@ public class ChatServerTest {
       Assert.fail("Sending username has failed (" + e.getMessage() + ")");
     }
   }
+
+  @Test
+  @Order(6)
+  public void nioEngine() {
+    try {
+      ChatServer chatServer = new ChatServer(3000);
+      chatServer.setEngine(ChatServer.Engine.NIO);
+      chatServer.setEventLoops(2);
+      chatServer.start();
+      while (!chatServer.isAlive()) {
+        Thread.sleep(100);
+      }
+      Socket socket1 = new Socket("127.0.0.1", 3000);
+      ObjectOutputStream writer1 = new ObjectOutputStream(socket1.getOutputStream());
+      ObjectInputStream reader1 = new ObjectInputStream(socket1.getInputStream());
+
+      Socket socket2 = new Socket("127.0.0.1", 3000);
+      ObjectOutputStream writer2 = new ObjectOutputStream(socket2.getOutputStream());
+      ObjectInputStream reader2 = new ObjectInputStream(socket2.getInputStream());
+
+      writer1.writeUTF("alice");
+      writer1.flush();
+      Thread.sleep(100);
+      writer2.writeUTF("amanda");
+      writer2.flush();
+      Thread.sleep(100);
+
+      String result = reader1.readUTF();
+      assertEquals(hello, result);
+
+      result = reader2.readUTF();
+      assertEquals(hello, result);
+
+      result = reader1.readUTF();
+      assertEquals("***** amanda has joined to the chat room.*****", result);
+
+      writer1.writeUTF("WHOIS");
+      writer1.flush();
+      result = reader1.readUTF();
+      assert (result.startsWith("1) amanda since"));
+
+      writer1.writeUTF("Broadcast message");
+      writer1.flush();
+      result = reader2.readUTF();
+      assertEquals("alice: Broadcast message", result.substring(16));
+
+      String longMessage = String.join("", Collections.nCopies(3000, "ab"));
+      writer2.writeUTF("@alice " + longMessage);
+      writer2.flush();
+      result = reader1.readUTF();
+      assertEquals("amanda: " + longMessage, result.substring(16));
+
+      writer1.writeUTF("PENGU");
+      writer1.flush();
+      result = reader1.readUTF();
+      assert (result.contains("enguin"));
+      result = reader2.readUTF();
+      assert (result.contains("enguin"));
+
+      writer2.writeUTF("LOGOUT");
+      writer2.flush();
+      Thread.sleep(100);
+
+      writer1.writeUTF("@amanda Test");
+      writer1.flush();
+      result = reader1.readUTF();
+      assertEquals("amanda doesn't exist.", result);
+
+      chatServer.stop();
+    } catch (Exception e) {
+      Assert.fail("Using the NIO engine has failed (" + e.getMessage() + ")");
+    }
+  }
+
+  @Test
+  @Order(7)
+  public void sessionExecutor() {
+    ExecutorService executor = Executors.newCachedThreadPool();
+    try {
+      ChatServer chatServer = new ChatServer(3000);
+      chatServer.setExecutor(executor);
+      chatServer.start();
+      while (!chatServer.isAlive()) {
+        Thread.sleep(100);
+      }
+      Socket socket1 = new Socket("127.0.0.1", 3000);
+      ObjectOutputStream writer1 = new ObjectOutputStream(socket1.getOutputStream());
+      ObjectInputStream reader1 = new ObjectInputStream(socket1.getInputStream());
+
+      Socket socket2 = new Socket("127.0.0.1", 3000);
+      ObjectOutputStream writer2 = new ObjectOutputStream(socket2.getOutputStream());
+      ObjectInputStream reader2 = new ObjectInputStream(socket2.getInputStream());
+
+      writer1.writeUTF("alice");
+      writer1.flush();
+      Thread.sleep(100);
+      writer2.writeUTF("amanda");
+      writer2.flush();
+      Thread.sleep(100);
+
+      String result = reader1.readUTF();
+      assertEquals(hello, result);
+
+      result = reader2.readUTF();
+      assertEquals(hello, result);
+
+      result = reader1.readUTF();
+      assertEquals("***** amanda has joined to the chat room.*****", result);
+
+      writer2.writeUTF("@alice Test");
+      writer2.flush();
+      result = reader1.readUTF();
+      assertEquals("amanda: Test", result.substring(16));
+
+      chatServer.stop();
+    } catch (Exception e) {
+      Assert.fail("Using a session executor has failed (" + e.getMessage() + ")");
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  @Order(8)
+  public void framedProtocol() {
+    for (ChatServer.Engine engine : ChatServer.Engine.values()) {
+      try {
+        ChatServer chatServer = new ChatServer(3000);
+        chatServer.setEngine(engine);
+        chatServer.start();
+        while (!chatServer.isAlive()) {
+          Thread.sleep(100);
+        }
+        Socket socket1 = new Socket("127.0.0.1", 3000);
+        DataOutputStream writer1 = new DataOutputStream(socket1.getOutputStream());
+        DataInputStream reader1 = new DataInputStream(socket1.getInputStream());
+        writer1.write(FrameCodec.preamble(FrameCodec.VERSION));
+        writer1.write(FrameCodec.encodeHello(0, "alice"));
+        writer1.flush();
+        byte[] preamble = new byte[5];
+        reader1.readFully(preamble);
+        assertEquals(FrameCodec.VERSION, (int) preamble[4]);
+        assertEquals(hello, readFrame(reader1));
+
+        Socket socket2 = new Socket("127.0.0.1", 3000);
+        ObjectOutputStream writer2 = new ObjectOutputStream(socket2.getOutputStream());
+        ObjectInputStream reader2 = new ObjectInputStream(socket2.getInputStream());
+
+        writer2.writeUTF("amanda");
+        writer2.flush();
+        String result = reader2.readUTF();
+        assertEquals(hello, result);
+        assertEquals("***** amanda has joined to the chat room.*****", readFrame(reader1));
+
+        String longMessage = String.join("", Collections.nCopies(50000, "\u00e9"));
+        writer1.write(FrameCodec.encodeText("@alice " + longMessage));
+        writer1.flush();
+        result = readFrame(reader1);
+        assertEquals("alice: " + longMessage, result.substring(16));
+
+        writer2.writeUTF("Broadcast message");
+        writer2.flush();
+        result = readFrame(reader1);
+        assertEquals("amanda: Broadcast message", result.substring(16));
+
+        chatServer.stop();
+      } catch (Exception e) {
+        Assert.fail("Using the framed protocol with the " + engine + " engine has failed (" + e.getMessage() + ")");
+      }
+    }
+  }
+
+  @Test
+  @Order(9)
+  public void slowConsumer() {
+    for (ChatServer.Engine engine : ChatServer.Engine.values()) {
+      try {
+        ChatServer chatServer = new ChatServer(3000);
+        chatServer.setEngine(engine);
+        chatServer.setOutboundQueueCapacity(4);
+        chatServer.setSlowConsumerPolicy(ChatServer.SlowConsumerPolicy.DISCONNECT);
+        chatServer.start();
+        while (!chatServer.isAlive()) {
+          Thread.sleep(100);
+        }
+        Socket socket1 = new Socket("127.0.0.1", 3000);
+        ObjectOutputStream writer1 = new ObjectOutputStream(socket1.getOutputStream());
+        ObjectInputStream reader1 = new ObjectInputStream(socket1.getInputStream());
+
+        Socket socket2 = new Socket("127.0.0.1", 3000);
+        socket2.setReceiveBufferSize(4096);
+        ObjectOutputStream writer2 = new ObjectOutputStream(socket2.getOutputStream());
+
+        writer1.writeUTF("alice");
+        writer1.flush();
+        assertEquals(hello, reader1.readUTF());
+        writer2.writeUTF("bob");
+        writer2.flush();
+        assertEquals("***** bob has joined to the chat room.*****", reader1.readUTF());
+        assertEquals(2, chatServer.getQueueDepths().size());
+
+        String longMessage = String.join("", Collections.nCopies(60000, "x"));
+        for (int i = 0; i < 200 && chatServer.getQueueDepths().containsKey("bob"); i++) {
+          writer1.writeUTF(longMessage);
+          writer1.flush();
+          Thread.sleep(10);
+        }
+        assertEquals(Collections.singleton("alice"), chatServer.getQueueDepths().keySet());
+
+        chatServer.stop();
+      } catch (Exception e) {
+        Assert.fail("Disconnecting a slow consumer with the " + engine + " engine has failed (" + e.getMessage() + ")");
+      }
+    }
+  }
+
+  @Test
+  @Order(10)
+  public void concurrentAdmission() {
+    try {
+      ChatServer chatServer = new ChatServer(3000);
+      chatServer.setEngine(ChatServer.Engine.NIO);
+      chatServer.start();
+      while (!chatServer.isAlive()) {
+        Thread.sleep(100);
+      }
+
+      int clients = 20;
+      CountDownLatch ready = new CountDownLatch(clients);
+      AtomicInteger welcomed = new AtomicInteger(0);
+      AtomicInteger rejected = new AtomicInteger(0);
+      List<Thread> threads = new ArrayList<>();
+      List<Socket> sockets = Collections.synchronizedList(new ArrayList<>());
+      for (int i = 0; i < clients; i++) {
+        Thread thread = new Thread(() -> {
+          try {
+            Socket socket = new Socket("127.0.0.1", 3000);
+            sockets.add(socket);
+            ObjectOutputStream writer = new ObjectOutputStream(socket.getOutputStream());
+            ObjectInputStream reader = new ObjectInputStream(socket.getInputStream());
+            ready.countDown();
+            ready.await();
+            writer.writeUTF("alice");
+            writer.flush();
+            String result = reader.readUTF();
+            if (result.equals(hello)) {
+              welcomed.incrementAndGet();
+            } else if (result.equals("This username is already taken.")) {
+              rejected.incrementAndGet();
+            }
+          } catch (Exception e) {
+            System.out.println("Connecting has failed (" + e.getMessage() + ")");
+          }
+        });
+        thread.start();
+        threads.add(thread);
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+
+      assertEquals(1, welcomed.get());
+      assertEquals(clients - 1, rejected.get());
+      assertEquals(1, chatServer.getQueueDepths().size());
+
+      for (Socket socket : sockets) {
+        socket.close();
+      }
+      chatServer.stop();
+    } catch (Exception e) {
+      Assert.fail("Admitting users concurrently has failed (" + e.getMessage() + ")");
+    }
+  }
+
+  @Test
+  @Order(11)
+  public void writeCoalescing() {
+    for (ChatServer.Engine engine : ChatServer.Engine.values()) {
+      try {
+        ChatServer chatServer = new ChatServer(3000);
+        chatServer.setEngine(engine);
+        chatServer.setWriteCoalescing(2000, 4096);
+        chatServer.start();
+        while (!chatServer.isAlive()) {
+          Thread.sleep(100);
+        }
+        Socket socket1 = new Socket("127.0.0.1", 3000);
+        ObjectOutputStream writer1 = new ObjectOutputStream(socket1.getOutputStream());
+        ObjectInputStream reader1 = new ObjectInputStream(socket1.getInputStream());
+
+        Socket socket2 = new Socket("127.0.0.1", 3000);
+        ObjectOutputStream writer2 = new ObjectOutputStream(socket2.getOutputStream());
+        ObjectInputStream reader2 = new ObjectInputStream(socket2.getInputStream());
+
+        writer1.writeUTF("alice");
+        writer1.flush();
+        assertEquals(hello, reader1.readUTF());
+        writer2.writeUTF("amanda");
+        writer2.flush();
+        assertEquals(hello, reader2.readUTF());
+
+        for (int i = 0; i < 500; i++) {
+          writer1.writeUTF("Message " + i);
+        }
+        writer1.flush();
+        for (int i = 0; i < 500; i++) {
+          assertEquals("alice: Message " + i, reader2.readUTF().substring(16));
+        }
+
+        chatServer.stop();
+      } catch (Exception e) {
+        Assert.fail("Coalescing writes with the " + engine + " engine has failed (" + e.getMessage() + ")");
+      }
+    }
+  }
+
+  @Test
+  @Order(12)
+  public void metrics() {
+    try {
+      List<ServerMetricsMXBean> reports = new CopyOnWriteArrayList<>();
+      ChatServer chatServer = new ChatServer(3000);
+      chatServer.setMetricsReporter(reports::add, 50, TimeUnit.MILLISECONDS);
+      chatServer.start();
+      while (!chatServer.isAlive()) {
+        Thread.sleep(100);
+      }
+      Socket socket1 = new Socket("127.0.0.1", 3000);
+      ObjectOutputStream writer1 = new ObjectOutputStream(socket1.getOutputStream());
+      ObjectInputStream reader1 = new ObjectInputStream(socket1.getInputStream());
+
+      Socket socket2 = new Socket("127.0.0.1", 3000);
+      ObjectOutputStream writer2 = new ObjectOutputStream(socket2.getOutputStream());
+      ObjectInputStream reader2 = new ObjectInputStream(socket2.getInputStream());
+
+      writer1.writeUTF("alice");
+      writer1.flush();
+      assertEquals(hello, reader1.readUTF());
+      writer2.writeUTF("amanda");
+      writer2.flush();
+      assertEquals(hello, reader2.readUTF());
+      assertEquals("***** amanda has joined to the chat room.*****", reader1.readUTF());
+
+      writer1.writeUTF("Hi!");
+      writer1.flush();
+      assertEquals("alice: Hi!", reader2.readUTF().substring(16));
+      writer1.writeUTF("@amanda Hello!");
+      writer1.flush();
+      assertEquals("alice: Hello!", reader2.readUTF().substring(16));
+      writer1.writeUTF("WHOIS");
+      writer1.flush();
+      reader1.readUTF();
+      // Counters are bumped after the reply is queued, so the reply can arrive first.
+      Thread.sleep(100);
+
+      MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName("ChatServer:type=Metrics,port=3000");
+      assertEquals(2, mbeans.getAttribute(name, "ActiveSessions"));
+      assertEquals(0, mbeans.getAttribute(name, "UnhandledSessions"));
+      assertEquals(2L, mbeans.getAttribute(name, "AcceptedConnections"));
+      assertEquals(2L, mbeans.getAttribute(name, "Handshakes"));
+      assertEquals(3L, mbeans.getAttribute(name, "FanOuts"));
+      assertEquals(0L, mbeans.getAttribute(name, "SendFailures"));
+
+      ServerMetricsMXBean metrics = chatServer.getMetrics();
+      assertEquals(Long.valueOf(1), metrics.getMessagesIn().get("BROADCAST"));
+      assertEquals(Long.valueOf(1), metrics.getMessagesIn().get("DIRECT"));
+      assertEquals(Long.valueOf(1), metrics.getMessagesIn().get("WHOIS"));
+      assertEquals(Long.valueOf(0), metrics.getMessagesIn().get("PENGU"));
+      assertEquals(Long.valueOf(1), metrics.getMessagesOut().get("BROADCAST"));
+      assertEquals(Long.valueOf(1), metrics.getMessagesOut().get("DIRECT"));
+      assertEquals(Long.valueOf(1), metrics.getMessagesOut().get("WHOIS"));
+      assertTrue(metrics.getOutboundBacklog().containsKey("alice"));
+
+      Thread.sleep(200);
+      assertFalse(reports.isEmpty());
+
+      chatServer.stop();
+      assertFalse(mbeans.isRegistered(name));
+    } catch (Exception e) {
+      Assert.fail("Reading the metrics has failed (" + e.getMessage() + ")");
+    }
+  }
+
+  @Test
+  @Order(13)
+  public void whoisPages() {
+    try {
+      ChatServer chatServer = new ChatServer(3000);
+      chatServer.setWhoisPageSize(2);
+      chatServer.start();
+      while (!chatServer.isAlive()) {
+        Thread.sleep(100);
+      }
+      List<Socket> sockets = new ArrayList<>();
+      ObjectOutputStream writer = null;
+      ObjectInputStream reader = null;
+      for (String userName : new String[] {"amanda", "alice", "carol", "albert", "bob"}) {
+        Socket socket = new Socket("127.0.0.1", 3000);
+        sockets.add(socket);
+        writer = new ObjectOutputStream(socket.getOutputStream());
+        reader = new ObjectInputStream(socket.getInputStream());
+        writer.writeUTF(userName);
+        writer.flush();
+        assertEquals(hello, reader.readUTF());
+      }
+
+      writer.writeUTF("WHOIS");
+      writer.flush();
+      assertEquals("1) albert\n2) alice\nType 'WHOIS 2' without quotes to see the next page",
+        reader.readUTF().replaceAll(" since \\S+", ""));
+      writer.writeUTF("WHOIS 2");
+      writer.flush();
+      assertEquals("3) amanda\n4) carol", reader.readUTF().replaceAll(" since \\S+", ""));
+      writer.writeUTF("WHOIS a*");
+      writer.flush();
+      assertEquals("1) albert\n2) alice\nType 'WHOIS a* 2' without quotes to see the next page",
+        reader.readUTF().replaceAll(" since \\S+", ""));
+      writer.writeUTF("WHOIS a* 2");
+      writer.flush();
+      assertEquals("3) amanda", reader.readUTF().replaceAll(" since \\S+", ""));
+      writer.writeUTF("WHOIS  a*   2");
+      writer.flush();
+      assertEquals("3) amanda", reader.readUTF().replaceAll(" since \\S+", ""));
+      writer.writeUTF("WHOIS a* 2 3");
+      writer.flush();
+      assertEquals("Usage: WHOIS [prefix*] [page]", reader.readUTF());
+      writer.writeUTF("WHOIS c* 2");
+      writer.flush();
+      assertEquals("", reader.readUTF());
+      writer.writeUTF("WHOIS two");
+      writer.flush();
+      assertEquals("Usage: WHOIS [prefix*] [page]", reader.readUTF());
+
+      chatServer.stop();
+      for (Socket socket : sockets) {
+        socket.close();
+      }
+    } catch (Exception e) {
+      Assert.fail("Paging WHOIS has failed (" + e.getMessage() + ")");
+    }
+  }
+
+  @Test
+  @Order(14)
+  public void rooms() {
+    try {
+      ChatServer chatServer = new ChatServer(3000);
+      chatServer.start();
+      while (!chatServer.isAlive()) {
+        Thread.sleep(100);
+      }
+      Socket socket1 = new Socket("127.0.0.1", 3000);
+      ObjectOutputStream writer1 = new ObjectOutputStream(socket1.getOutputStream());
+      ObjectInputStream reader1 = new ObjectInputStream(socket1.getInputStream());
+
+      Socket socket2 = new Socket("127.0.0.1", 3000);
+      ObjectOutputStream writer2 = new ObjectOutputStream(socket2.getOutputStream());
+      ObjectInputStream reader2 = new ObjectInputStream(socket2.getInputStream());
+
+      Socket socket3 = new Socket("127.0.0.1", 3000);
+      ObjectOutputStream writer3 = new ObjectOutputStream(socket3.getOutputStream());
+      ObjectInputStream reader3 = new ObjectInputStream(socket3.getInputStream());
+
+      writer1.writeUTF("alice");
+      writer1.flush();
+      assertEquals(hello, reader1.readUTF());
+      writer2.writeUTF("amanda");
+      writer2.flush();
+      assertEquals(hello, reader2.readUTF());
+      assertEquals("***** amanda has joined to the chat room.*****", reader1.readUTF());
+      writer3.writeUTF("bob");
+      writer3.flush();
+      assertEquals(hello, reader3.readUTF());
+      assertEquals("***** bob has joined to the chat room.*****", reader1.readUTF());
+      assertEquals("***** bob has joined to the chat room.*****", reader2.readUTF());
+
+      writer1.writeUTF("JOIN rust");
+      writer1.flush();
+      assertEquals("You have joined the room 'rust'.", reader1.readUTF());
+      assertEquals("***** alice has left the room.*****", reader2.readUTF());
+      assertEquals("***** alice has left the room.*****", reader3.readUTF());
+      writer3.writeUTF("JOIN rust");
+      writer3.flush();
+      assertEquals("You have joined the room 'rust'.", reader3.readUTF());
+      assertEquals("***** bob has left the room.*****", reader2.readUTF());
+      assertEquals("***** bob has joined the room.*****", reader1.readUTF());
+
+      writer1.writeUTF("Hi!");
+      writer1.flush();
+      assertEquals("alice: Hi!", reader3.readUTF().substring(16));
+      writer2.writeUTF("ROOMS");
+      writer2.flush();
+      assertEquals("lobby (1)\nrust (2)", reader2.readUTF());
+
+      writer3.writeUTF("LEAVE");
+      writer3.flush();
+      assertEquals("You have joined the room 'lobby'.", reader3.readUTF());
+      assertEquals("***** bob has left the room.*****", reader1.readUTF());
+      assertEquals("***** bob has joined the room.*****", reader2.readUTF());
+
+      writer1.writeUTF("LOGOUT");
+      writer1.flush();
+      Thread.sleep(100);
+      Map<String, Integer> expected = new TreeMap<>();
+      expected.put("lobby", 2);
+      assertEquals(expected, chatServer.getRoomSizes());
+
+      chatServer.stop();
+    } catch (Exception e) {
+      Assert.fail("Using rooms has failed (" + e.getMessage() + ")");
+    }
+  }
+
+  @Test
+  @Order(15)
+  public void historyReplay() {
+    try {
+      Path directory = Files.createTempDirectory("history");
+      ChatServer chatServer = new ChatServer(3000);
+      chatServer.setHistory(directory);
+      chatServer.setHistoryReplay(2);
+      chatServer.start();
+      while (!chatServer.isAlive()) {
+        Thread.sleep(100);
+      }
+      Socket socket1 = new Socket("127.0.0.1", 3000);
+      ObjectOutputStream writer1 = new ObjectOutputStream(socket1.getOutputStream());
+      ObjectInputStream reader1 = new ObjectInputStream(socket1.getInputStream());
+      writer1.writeUTF("alice");
+      writer1.flush();
+      assertEquals(hello, reader1.readUTF());
+
+      writer1.writeUTF("One");
+      writer1.writeUTF("Two");
+      writer1.writeUTF("Three");
+      writer1.writeUTF("@bob Are you there?");
+      writer1.flush();
+      assertEquals("bob doesn't exist.", reader1.readUTF());
+      Thread.sleep(200);
+
+      Socket socket2 = new Socket("127.0.0.1", 3000);
+      ObjectOutputStream writer2 = new ObjectOutputStream(socket2.getOutputStream());
+      ObjectInputStream reader2 = new ObjectInputStream(socket2.getInputStream());
+      writer2.writeUTF("bob");
+      writer2.flush();
+      assertEquals(hello, reader2.readUTF());
+      assertEquals("alice: Two", reader2.readUTF().substring(16));
+      assertEquals("alice: Three", reader2.readUTF().substring(16));
+
+      writer1.writeUTF("Four");
+      writer1.flush();
+      assertEquals("alice: Four", reader2.readUTF().substring(16));
+
+      chatServer.stop();
+      try (Stream<Path> files = Files.list(directory)) {
+        for (Path file : (Iterable<Path>) files::iterator) {
+          Files.delete(file);
+        }
+      }
+      Files.delete(directory);
+    } catch (Exception e) {
+      Assert.fail("Replaying the history has failed (" + e.getMessage() + ")");
+    }
+  }
+
+  @Test
+  @Order(16)
+  public void offlineMessages() {
+    try {
+      Path directory = Files.createTempDirectory("mailbox");
+      ChatServer chatServer = new ChatServer(3000);
+      chatServer.setOfflineMessages(directory);
+      chatServer.start();
+      while (!chatServer.isAlive()) {
+        Thread.sleep(100);
+      }
+      Socket socket2 = new Socket("127.0.0.1", 3000);
+      ObjectOutputStream writer2 = new ObjectOutputStream(socket2.getOutputStream());
+      ObjectInputStream reader2 = new ObjectInputStream(socket2.getInputStream());
+      writer2.writeUTF("bob");
+      writer2.flush();
+      assertEquals(hello, reader2.readUTF());
+      writer2.writeUTF("LOGOUT");
+      writer2.flush();
+      Thread.sleep(100);
+
+      Socket socket1 = new Socket("127.0.0.1", 3000);
+      ObjectOutputStream writer1 = new ObjectOutputStream(socket1.getOutputStream());
+      ObjectInputStream reader1 = new ObjectInputStream(socket1.getInputStream());
+      writer1.writeUTF("alice");
+      writer1.flush();
+      assertEquals(hello, reader1.readUTF());
+      writer1.writeUTF("@bob Are you there?");
+      writer1.writeUTF("@bob Call me back.");
+      writer1.writeUTF("@carol Hi!");
+      writer1.flush();
+      assertEquals("bob is offline, the message will be delivered when bob logs in.", reader1.readUTF());
+      assertEquals("bob is offline, the message will be delivered when bob logs in.", reader1.readUTF());
+      assertEquals("carol doesn't exist.", reader1.readUTF());
+      assertEquals("The message hasn't been sent.", reader1.readUTF());
+
+      socket2 = new Socket("127.0.0.1", 3000);
+      writer2 = new ObjectOutputStream(socket2.getOutputStream());
+      reader2 = new ObjectInputStream(socket2.getInputStream());
+      writer2.writeUTF("bob");
+      writer2.flush();
+      assertEquals(hello, reader2.readUTF());
+      assertEquals("alice: Are you there?", reader2.readUTF().substring(16));
+      assertEquals("alice: Call me back.", reader2.readUTF().substring(16));
+
+      chatServer.stop();
+      try (Stream<Path> files = Files.list(directory)) {
+        for (Path file : (Iterable<Path>) files::iterator) {
+          Files.delete(file);
+        }
+      }
+      Files.delete(directory);
+    } catch (Exception e) {
+      Assert.fail("Delivering offline messages has failed (" + e.getMessage() + ")");
+    }
+  }
+
+  @Test
+  @Order(17)
+  public void cluster() {
+    for (ChatServer.Engine engine : ChatServer.Engine.values()) {
+      try {
+        List<InetSocketAddress> members = Arrays.asList(
+          new InetSocketAddress("127.0.0.1", 3100), new InetSocketAddress("127.0.0.1", 3101));
+        ChatServer chatServer1 = new ChatServer(3000);
+        chatServer1.setEngine(engine);
+        chatServer1.setCluster(members.get(0), members);
+        chatServer1.start();
+        ChatServer chatServer2 = new ChatServer(3001);
+        chatServer2.setEngine(engine);
+        chatServer2.setCluster(members.get(1), members);
+        chatServer2.start();
+        while (!chatServer1.isAlive() || !chatServer2.isAlive()
+          || !chatServer1.isClusterConnected() || !chatServer2.isClusterConnected()) {
+          Thread.sleep(100);
+        }
+
+        Socket socket1 = new Socket("127.0.0.1", 3000);
+        ObjectOutputStream writer1 = new ObjectOutputStream(socket1.getOutputStream());
+        ObjectInputStream reader1 = new ObjectInputStream(socket1.getInputStream());
+        writer1.writeUTF("alice");
+        writer1.flush();
+        assertEquals(hello, reader1.readUTF());
+
+        Socket socket2 = new Socket("127.0.0.1", 3001);
+        ObjectOutputStream writer2 = new ObjectOutputStream(socket2.getOutputStream());
+        ObjectInputStream reader2 = new ObjectInputStream(socket2.getInputStream());
+        writer2.writeUTF("alice");
+        writer2.flush();
+        assertEquals("This username is already taken.", reader2.readUTF());
+
+        // The first member owns the name, and the message sent right behind it waits for the answer.
+        socket2 = new Socket("127.0.0.1", 3001);
+        writer2 = new ObjectOutputStream(socket2.getOutputStream());
+        reader2 = new ObjectInputStream(socket2.getInputStream());
+        writer2.writeUTF("dave");
+        writer2.writeUTF("@alice Hello from the second node");
+        writer2.flush();
+        assertEquals(hello, reader2.readUTF());
+        assertEquals("***** dave has joined to the chat room.*****", reader1.readUTF());
+        assertEquals("dave: Hello from the second node", reader1.readUTF().substring(16));
+
+        writer1.writeUTF("Hello from the first node");
+        writer1.flush();
+        assertEquals("alice: Hello from the first node", reader2.readUTF().substring(16));
+
+        writer1.writeUTF("LOGOUT");
+        writer1.flush();
+        Thread.sleep(200);
+        Socket socket3 = new Socket("127.0.0.1", 3001);
+        ObjectOutputStream writer3 = new ObjectOutputStream(socket3.getOutputStream());
+        ObjectInputStream reader3 = new ObjectInputStream(socket3.getInputStream());
+        writer3.writeUTF("alice");
+        writer3.flush();
+        assertEquals(hello, reader3.readUTF());
+        assertEquals("***** alice has joined to the chat room.*****", reader2.readUTF());
+
+        // Names owned by a member that is gone are refused without waiting for it.
+        chatServer1.stop();
+        while (chatServer2.isClusterConnected()) {
+          Thread.sleep(100);
+        }
+        String name = "carol";
+        for (int i = 0; Math.floorMod(name.hashCode(), members.size()) != 0; i++) {
+          name = "carol" + i;
+        }
+        long started = System.nanoTime();
+        Socket socket4 = new Socket("127.0.0.1", 3001);
+        ObjectOutputStream writer4 = new ObjectOutputStream(socket4.getOutputStream());
+        ObjectInputStream reader4 = new ObjectInputStream(socket4.getInputStream());
+        writer4.writeUTF(name);
+        writer4.flush();
+        assertEquals("This username is already taken.", reader4.readUTF());
+        assertTrue(System.nanoTime() - started < TimeUnit.SECONDS.toNanos(2));
+
+        chatServer2.stop();
+      } catch (Exception e) {
+        Assert.fail("Running a cluster has failed (" + e.getMessage() + ")");
+      }
+    }
+  }
+
+  @Test
+  @Order(18)
+  public void handshakeLimits() {
+    for (ChatServer.Engine engine : ChatServer.Engine.values()) {
+      try {
+        ChatServer chatServer = new ChatServer(3000);
+        chatServer.setEngine(engine);
+        chatServer.setJmxEnabled(false);
+        chatServer.setHandshakeLimits(2, 500, TimeUnit.MILLISECONDS);
+        chatServer.start();
+        while (!chatServer.isAlive()) {
+          Thread.sleep(100);
+        }
+
+        // A connection that never sends its header doesn't hold up the next one.
+        Socket idle1 = new Socket("127.0.0.1", 3000);
+        Socket socket = new Socket("127.0.0.1", 3000);
+        ObjectOutputStream writer = new ObjectOutputStream(socket.getOutputStream());
+        ObjectInputStream reader = new ObjectInputStream(socket.getInputStream());
+        writer.writeUTF("alice");
+        writer.flush();
+        assertEquals(hello, reader.readUTF());
+
+        Socket idle2 = new Socket("127.0.0.1", 3000);
+        Socket rejected = new Socket("127.0.0.1", 3000);
+        rejected.setSoTimeout(2000);
+        assertEquals(-1, rejected.getInputStream().read());
+
+        idle1.setSoTimeout(2000);
+        idle2.setSoTimeout(2000);
+        assertEquals(-1, idle1.getInputStream().read());
+        assertEquals(-1, idle2.getInputStream().read());
+        assertEquals(1, chatServer.getMetrics().getHandshakesRejected());
+        assertEquals(2, chatServer.getMetrics().getHandshakesTimedOut());
+        assertEquals(0, chatServer.getUnhandledUserCount());
+
+        writer.writeUTF("LOGOUT");
+        writer.flush();
+        chatServer.stop();
+      } catch (Exception e) {
+        Assert.fail("Limiting the handshakes has failed (" + engine + ", " + e.getMessage() + ")");
+      }
+    }
+  }
+
+  @Test
+  @Order(19)
+  public void heartbeats() {
+    for (ChatServer.Engine engine : ChatServer.Engine.values()) {
+      try {
+        ChatServer chatServer = new ChatServer(3000);
+        chatServer.setEngine(engine);
+        chatServer.setJmxEnabled(false);
+        chatServer.setHeartbeat(200, 600, TimeUnit.MILLISECONDS);
+        chatServer.start();
+        while (!chatServer.isAlive()) {
+          Thread.sleep(100);
+        }
+
+        Socket socket1 = new Socket("127.0.0.1", 3000);
+        DataOutputStream writer1 = new DataOutputStream(socket1.getOutputStream());
+        DataInputStream reader1 = new DataInputStream(socket1.getInputStream());
+        writer1.write(FrameCodec.preamble(FrameCodec.VERSION));
+        writer1.write(FrameCodec.encodeHello(0, "alice"));
+        writer1.flush();
+        reader1.readFully(new byte[5]);
+        assertEquals(hello, readFrame(reader1));
+
+        Socket socket2 = new Socket("127.0.0.1", 3000);
+        DataOutputStream writer2 = new DataOutputStream(socket2.getOutputStream());
+        DataInputStream reader2 = new DataInputStream(socket2.getInputStream());
+        writer2.write(FrameCodec.preamble(FrameCodec.VERSION));
+        writer2.write(FrameCodec.encodeHello(0, "bob"));
+        writer2.flush();
+        reader2.readFully(new byte[5]);
+        assertEquals(hello, readFrame(reader2));
+        assertEquals("***** bob has joined to the chat room.*****", readFrame(reader1));
+
+        // bob answers every ping and outlives the idle timeout, alice doesn't and is reaped.
+        for (int i = 0; i < 5; i++) {
+          assertEquals(1, reader2.readInt());
+          assertEquals(FrameCodec.PING, reader2.readByte());
+          writer2.write(FrameCodec.encode(FrameCodec.PONG, new byte[0]));
+          writer2.flush();
+        }
+        int pings = 0;
+        try {
+          while (true) {
+            assertEquals(1, reader1.readInt());
+            assertEquals(FrameCodec.PING, reader1.readByte());
+            pings++;
+          }
+        } catch (EOFException e) {
+          // Closed by the server.
+        }
+        assertTrue(pings > 0);
+        assertEquals(1, chatServer.getMetrics().getSessionsReaped());
+        assertEquals(null, chatServer.getUser("alice"));
+        assertTrue(chatServer.getUser("bob") != null);
+
+        chatServer.stop();
+      } catch (Exception e) {
+        Assert.fail("Reaping idle sessions with the " + engine + " engine has failed (" + e.getMessage() + ")");
+      }
+    }
+  }
+
+  @Test
+  @Order(20)
+  public void rateLimits() {
+    try {
+      ChatServer chatServer = new ChatServer(3000);
+      chatServer.setJmxEnabled(false);
+      chatServer.setCommandRateLimit(ServerMetrics.MessageType.PENGU, 0.1, 2);
+      chatServer.start();
+      while (!chatServer.isAlive()) {
+        Thread.sleep(100);
+      }
+      Socket socket = new Socket("127.0.0.1", 3000);
+      ObjectOutputStream writer = new ObjectOutputStream(socket.getOutputStream());
+      ObjectInputStream reader = new ObjectInputStream(socket.getInputStream());
+      writer.writeUTF("alice");
+      writer.flush();
+      assertEquals(hello, reader.readUTF());
+
+      List<String> facts = Arrays.asList(ChatServer.penguinFacts);
+      for (int i = 0; i < 3; i++) {
+        writer.writeUTF("PENGU");
+      }
+      writer.writeUTF("WHOIS");
+      writer.flush();
+      assertTrue(facts.contains(reader.readUTF()));
+      assertTrue(facts.contains(reader.readUTF()));
+      assertEquals("You are sending messages too fast, the message hasn't been sent.", reader.readUTF());
+      assertEquals("", reader.readUTF());
+      assertEquals(1, chatServer.getMetrics().getMessagesLimited());
+
+      chatServer.setRateLimitPolicy(ChatServer.RateLimitPolicy.DROP);
+      writer.writeUTF("PENGU");
+      writer.writeUTF("WHOIS");
+      writer.flush();
+      assertEquals("", reader.readUTF());
+      assertEquals(2, chatServer.getMetrics().getMessagesLimited());
+
+      chatServer.stop();
+    } catch (Exception e) {
+      Assert.fail("Limiting the message rate has failed (" + e.getMessage() + ")");
+    }
+  }
+
+  @Test
+  @Order(21)
+  public void compression() {
+    for (ChatServer.Engine engine : ChatServer.Engine.values()) {
+      try {
+        ChatServer chatServer = new ChatServer(3000);
+        chatServer.setEngine(engine);
+        chatServer.setJmxEnabled(false);
+        chatServer.start();
+        while (!chatServer.isAlive()) {
+          Thread.sleep(100);
+        }
+
+        Socket socket1 = new Socket("127.0.0.1", 3000);
+        DataOutputStream writer1 = new DataOutputStream(socket1.getOutputStream());
+        DataInputStream reader1 = new DataInputStream(socket1.getInputStream());
+        writer1.write(FrameCodec.preamble(FrameCodec.VERSION));
+        writer1.write(FrameCodec.encodeHello(FrameCodec.HELLO_DEFLATE, "alice"));
+        writer1.flush();
+        reader1.readFully(new byte[5]);
+        assertEquals(hello, readFrame(reader1));
+
+        Socket socket2 = new Socket("127.0.0.1", 3000);
+        ObjectOutputStream writer2 = new ObjectOutputStream(socket2.getOutputStream());
+        ObjectInputStream reader2 = new ObjectInputStream(socket2.getInputStream());
+        writer2.writeUTF("amanda");
+        writer2.flush();
+        assertEquals(hello, reader2.readUTF());
+        assertEquals("***** amanda has joined to the chat room.*****", readFrame(reader1));
+
+        String trace = "java.lang.IllegalStateException: boom\n"
+          + String.join("", Collections.nCopies(100, "\tat ChatServer.run(ChatServer.java:42)\n"));
+        writer2.writeUTF(trace);
+        writer2.flush();
+        int length = reader1.readInt();
+        assertEquals(FrameCodec.DEFLATED, reader1.readByte());
+        assertTrue(length < trace.length() / 10);
+        byte[] payload = new byte[length - 1];
+        reader1.readFully(payload);
+        assertEquals("amanda: " + trace, FrameCodec.inflate(ByteBuffer.wrap(payload)).substring(16));
+
+        writer2.writeUTF("Short enough");
+        writer2.flush();
+        assertEquals("amanda: Short enough", readFrame(reader1).substring(16));
+
+        chatServer.stop();
+      } catch (Exception e) {
+        Assert.fail("Compressing messages with the " + engine + " engine has failed (" + e.getMessage() + ")");
+      }
+    }
+  }
+
+  @Test
+  @Order(22)
+  public void resumeSession() {
+    for (ChatServer.Engine engine : ChatServer.Engine.values()) {
+      try {
+        ChatServer chatServer = new ChatServer(3000);
+        chatServer.setEngine(engine);
+        chatServer.setJmxEnabled(false);
+        chatServer.setSessionResumption(256, 1, TimeUnit.SECONDS);
+        chatServer.start();
+        while (!chatServer.isAlive()) {
+          Thread.sleep(100);
+        }
+
+        Socket socket1 = new Socket("127.0.0.1", 3000);
+        DataOutputStream writer1 = new DataOutputStream(socket1.getOutputStream());
+        DataInputStream reader1 = new DataInputStream(socket1.getInputStream());
+        writer1.write(FrameCodec.preamble(FrameCodec.VERSION));
+        writer1.write(FrameCodec.encodeHello(FrameCodec.HELLO_RESUMABLE, "alice"));
+        writer1.flush();
+        reader1.readFully(new byte[5]);
+        String token = readSession(reader1, 0);
+        assertEquals(hello, readFrame(reader1));
+
+        Socket socket2 = new Socket("127.0.0.1", 3000);
+        ObjectOutputStream writer2 = new ObjectOutputStream(socket2.getOutputStream());
+        ObjectInputStream reader2 = new ObjectInputStream(socket2.getInputStream());
+        writer2.writeUTF("bob");
+        writer2.flush();
+        assertEquals(hello, reader2.readUTF());
+        assertEquals("***** bob has joined to the chat room.*****", readFrame(reader1));
+
+        // alice's connection drops, and bob goes on talking while she is away.
+        socket1.close();
+        writer2.writeUTF("one");
+        writer2.writeUTF("two");
+        writer2.flush();
+
+        Socket socket3 = new Socket("127.0.0.1", 3000);
+        DataOutputStream writer3 = new DataOutputStream(socket3.getOutputStream());
+        DataInputStream reader3 = new DataInputStream(socket3.getInputStream());
+        writer3.write(FrameCodec.preamble(FrameCodec.VERSION));
+        writer3.write(FrameCodec.encodeSession(FrameCodec.RESUME, 2, token));
+        writer3.flush();
+        reader3.readFully(new byte[5]);
+        assertEquals(token, readSession(reader3, 2));
+        assertEquals("bob: one", readFrame(reader3).substring(16));
+        assertEquals("bob: two", readFrame(reader3).substring(16));
+
+        writer3.write(FrameCodec.encodeText("I'm back"));
+        writer3.flush();
+        assertEquals("alice: I'm back", reader2.readUTF().substring(16));
+        writer2.writeUTF("three");
+        writer2.flush();
+        assertEquals("bob: three", readFrame(reader3).substring(16));
+        assertEquals(1, chatServer.getMetrics().getSessionsResumed());
+
+        // A token nobody holds is refused.
+        Socket socket4 = new Socket("127.0.0.1", 3000);
+        DataOutputStream writer4 = new DataOutputStream(socket4.getOutputStream());
+        DataInputStream reader4 = new DataInputStream(socket4.getInputStream());
+        writer4.write(FrameCodec.preamble(FrameCodec.VERSION));
+        writer4.write(FrameCodec.encodeSession(FrameCodec.RESUME, 0, "0123"));
+        writer4.flush();
+        reader4.readFully(new byte[5]);
+        assertEquals("The session can't be resumed.", readFrame(reader4));
+        socket4.close();
+
+        // Without a resume the name is released once the timeout has passed.
+        socket3.close();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (chatServer.getUser("alice") != null && System.nanoTime() < deadline) {
+          Thread.sleep(100);
+        }
+        assertEquals(null, chatServer.getUser("alice"));
+
+        socket2.close();
+        chatServer.stop();
+      } catch (Exception e) {
+        Assert.fail("Resuming a session with the " + engine + " engine has failed (" + e.getMessage() + ")");
+      }
+    }
+  }
+
+  @Test
+  @Order(23)
+  public void parallelFanOut() {
+    for (ChatServer.Engine engine : ChatServer.Engine.values()) {
+      try (ClientEventLoop loop = new ClientEventLoop()) {
+        ChatServer chatServer = new ChatServer(3000);
+        chatServer.setEngine(engine);
+        chatServer.setJmxEnabled(false);
+        chatServer.setParallelFanOut(4, 4);
+        chatServer.start();
+        while (!chatServer.isAlive()) {
+          Thread.sleep(100);
+        }
+
+        // Every recipient gets each sender's messages in the order they were sent.
+        int recipients = 30;
+        int messages = 200;
+        List<List<String>> received = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(recipients * messages);
+        List<AsyncChatClient> clients = new ArrayList<>();
+        for (int i = 0; i < recipients; i++) {
+          List<String> mine = new CopyOnWriteArrayList<>();
+          received.add(mine);
+          AsyncChatClient client = new AsyncChatClient(loop, "127.0.0.1", 3000);
+          client.setName("user" + i);
+          client.setListener(message -> {
+            if (message.contains("sender: ")) {
+              mine.add(message.substring(message.indexOf("sender: ")));
+              done.countDown();
+            }
+          });
+          client.connect().get(5, TimeUnit.SECONDS);
+          clients.add(client);
+        }
+        AsyncChatClient sender = new AsyncChatClient(loop, "127.0.0.1", 3000);
+        sender.setName("sender");
+        sender.connect().get(5, TimeUnit.SECONDS);
+        for (int i = 0; i < messages; i++) {
+          sender.send("message " + i);
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < messages; i++) {
+          expected.add("sender: message " + i);
+        }
+        for (List<String> mine : received) {
+          assertEquals(expected, mine);
+        }
+
+        chatServer.stop();
+      } catch (Exception e) {
+        Assert.fail("Fanning out in parallel with the " + engine + " engine has failed (" + e.getMessage() + ")");
+      }
+    }
+  }
+
+  @Test
+  @Order(24)
+  public void commands() {
+    for (ChatServer.Engine engine : ChatServer.Engine.values()) {
+      try {
+        CountDownLatch release = new CountDownLatch(1);
+        ChatServer chatServer = new ChatServer(3000);
+        chatServer.setEngine(engine);
+        chatServer.setJmxEnabled(false);
+        chatServer.setCommand("ECHO", true, false, (user, command) -> {
+          user.sendMessage(command.getArguments());
+          return true;
+        });
+        chatServer.setCommand("SLOW", false, true, (user, command) -> {
+          try {
+            release.await(5, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          user.sendMessage("Done.");
+          return true;
+        });
+        chatServer.start();
+        while (!chatServer.isAlive()) {
+          Thread.sleep(100);
+        }
+
+        Socket socket1 = new Socket("127.0.0.1", 3000);
+        ObjectOutputStream writer1 = new ObjectOutputStream(socket1.getOutputStream());
+        ObjectInputStream reader1 = new ObjectInputStream(socket1.getInputStream());
+        writer1.writeUTF("alice");
+        writer1.flush();
+        assertEquals(hello, reader1.readUTF());
+
+        Socket socket2 = new Socket("127.0.0.1", 3000);
+        ObjectOutputStream writer2 = new ObjectOutputStream(socket2.getOutputStream());
+        ObjectInputStream reader2 = new ObjectInputStream(socket2.getInputStream());
+        writer2.writeUTF("bob");
+        writer2.flush();
+        assertEquals(hello, reader2.readUTF());
+        assertEquals("***** bob has joined to the chat room.*****", reader1.readUTF());
+
+        // A bare name used to end the session.
+        writer1.writeUTF("@bob");
+        writer1.writeUTF("@bob Still here");
+        writer1.flush();
+        assertEquals("Usage: @username message", reader1.readUTF());
+        assertEquals("alice: Still here", reader2.readUTF().substring(16));
+
+        // Verbs that take no arguments leave chat that starts with them alone.
+        writer1.writeUTF("PENGU is cute");
+        writer1.writeUTF("ECHO  two spaces");
+        writer1.flush();
+        assertEquals("alice: PENGU is cute", reader2.readUTF().substring(16));
+        assertEquals(" two spaces", reader1.readUTF());
+
+        // The slow command doesn't hold up the ones after it.
+        writer1.writeUTF("SLOW");
+        writer1.writeUTF("ECHO after");
+        writer1.flush();
+        assertEquals("after", reader1.readUTF());
+        release.countDown();
+        assertEquals("Done.", reader1.readUTF());
+
+        chatServer.stop();
+      } catch (Exception e) {
+        Assert.fail("Routing commands with the " + engine + " engine has failed (" + e.getMessage() + ")");
+      }
+    }
+  }
+
+  @Test
+  @Order(25)
+  public void tls() {
+    for (ChatServer.Engine engine : ChatServer.Engine.values()) {
+      try (ClientEventLoop loop = new ClientEventLoop()) {
+        SSLContext clientContext = TlsChannelTest.clientContext();
+        ChatServer chatServer = new ChatServer(3000);
+        chatServer.setEngine(engine);
+        chatServer.setJmxEnabled(false);
+        chatServer.setTls(TlsChannelTest.serverContext());
+        chatServer.start();
+        while (!chatServer.isAlive()) {
+          Thread.sleep(100);
+        }
+
+        List<String> received = new CopyOnWriteArrayList<>();
+        AsyncChatClient alice = new AsyncChatClient(loop, "localhost", 3000);
+        alice.setName("alice");
+        alice.setTls(clientContext);
+        alice.setListener(received::add);
+        assertEquals(hello, alice.connect().get(10, TimeUnit.SECONDS));
+
+        // The blocking client resumes the TLS session alice's connection started.
+        PipedInputStream input = new PipedInputStream();
+        PipedOutputStream output = new PipedOutputStream();
+        input.connect(output);
+        List<String> messages = new CopyOnWriteArrayList<>();
+        ChatClient bob = new ChatClient("localhost", 3000);
+        bob.setName("bob");
+        bob.setTls(clientContext);
+        bob.setInputStream(input);
+        bob.setMessageList(messages);
+        output.write("Hi over TLS\n".getBytes());
+        output.flush();
+        bob.connectToServer();
+        assertEquals(hello, messages.get(0));
+
+        // Longer than a TLS record.
+        String longMessage = String.join("", Collections.nCopies(5000, "0123456789"));
+        alice.send(longMessage);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while ((messages.size() < 2 || received.size() < 2) && System.nanoTime() < deadline) {
+          Thread.sleep(10);
+        }
+        assertEquals("alice: " + longMessage, messages.get(1).substring(16));
+        assertEquals("***** bob has joined to the chat room.*****", received.get(0));
+        assertEquals("bob: Hi over TLS", received.get(1).substring(16));
+        assertEquals(2L, chatServer.getMetrics().getTlsHandshakes());
+        assertEquals(1L, chatServer.getMetrics().getTlsResumptions());
+
+        bob.closeConnection();
+        alice.close();
+        chatServer.stop();
+      } catch (Exception e) {
+        Assert.fail("Chatting over TLS with the " + engine + " engine has failed (" + e.getMessage() + ")");
+      }
+    }
+  }
+
+  @Test
+  @Order(26)
+  public void disconnectBeforeLogin() {
+    Thread.UncaughtExceptionHandler handler = Thread.getDefaultUncaughtExceptionHandler();
+    List<Throwable> uncaught = new CopyOnWriteArrayList<>();
+    Thread.setDefaultUncaughtExceptionHandler((thread, e) -> uncaught.add(e));
+    try {
+      for (ChatServer.Engine engine : ChatServer.Engine.values()) {
+        ChatServer chatServer = new ChatServer(3000);
+        chatServer.setEngine(engine);
+        chatServer.start();
+        while (!chatServer.isAlive()) {
+          Thread.sleep(100);
+        }
+
+        new Socket("127.0.0.1", 3000).close();
+        // Not a chat client: the server hangs up right away rather than at the handshake deadline.
+        Socket socket = new Socket("127.0.0.1", 3000);
+        socket.setSoTimeout(5000);
+        socket.getOutputStream().write("GET / HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        while (socket.getInputStream().read() >= 0) {
+        }
+        socket.close();
+        Thread.sleep(200);
+        assertEquals(Collections.emptyList(), uncaught);
+
+        chatServer.stop();
+      }
+    } catch (Exception e) {
+      Assert.fail("Disconnecting before the login has failed (" + e.getMessage() + ")");
+    } finally {
+      Thread.setDefaultUncaughtExceptionHandler(handler);
+    }
+  }
+
+  @Test
+  @Order(27)
+  public void longestMessages() {
+    for (ChatServer.Engine engine : ChatServer.Engine.values()) {
+      try (ClientEventLoop loop = new ClientEventLoop()) {
+        ChatServer chatServer = new ChatServer(3000);
+        chatServer.setEngine(engine);
+        chatServer.setJmxEnabled(false);
+        chatServer.start();
+        while (!chatServer.isAlive()) {
+          Thread.sleep(100);
+        }
+
+        List<String> toAlice = new CopyOnWriteArrayList<>();
+        AsyncChatClient alice = new AsyncChatClient(loop, "127.0.0.1", 3000);
+        alice.setName("alice");
+        alice.setListener(toAlice::add);
+        alice.connect().get(5, TimeUnit.SECONDS);
+        List<String> toBob = new CopyOnWriteArrayList<>();
+        AsyncChatClient bob = new AsyncChatClient(loop, "127.0.0.1", 3000);
+        bob.setName("bob");
+        bob.setListener(toBob::add);
+        bob.connect().get(5, TimeUnit.SECONDS);
+
+        // The timestamp and "alice: " take 23 bytes of the frame, so the longest message that
+        // arrives is that much shorter than the longest the server takes.
+        String longest = String.join("", Collections.nCopies(FrameCodec.MAX_FRAME_LENGTH - 23, "x"));
+        alice.send(longest);
+        alice.send(longest + "x");
+        alice.send("@bob " + longest + "x");
+        alice.send("Still here");
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while ((toBob.size() < 2 || toAlice.size() < 3) && System.nanoTime() < deadline) {
+          Thread.sleep(10);
+        }
+        assertEquals(2, toBob.size());
+        assertEquals("alice: " + longest, toBob.get(0).substring(16));
+        assertEquals("alice: Still here", toBob.get(1).substring(16));
+        assertEquals("***** bob has joined to the chat room.*****", toAlice.get(0));
+        assertEquals("The message is too long.", toAlice.get(1));
+        assertEquals("The message is too long.", toAlice.get(2));
+
+        alice.close();
+        bob.close();
+        chatServer.stop();
+      } catch (Exception e) {
+        Assert.fail("Sending the longest messages with the " + engine + " engine has failed (" + e.getMessage() + ")");
+      }
+    }
+  }
+
+  @Test
+  @Order(28)
+  public void clusterLinkDrop() {
+    for (ChatServer.Engine engine : ChatServer.Engine.values()) {
+      try {
+        List<InetSocketAddress> members = Arrays.asList(new InetSocketAddress("127.0.0.1", 3100),
+          new InetSocketAddress("127.0.0.1", 3101), new InetSocketAddress("127.0.0.1", 3102));
+        List<ChatServer> chatServers = new ArrayList<>();
+        for (int i = 0; i < members.size(); i++) {
+          ChatServer chatServer = new ChatServer(3000 + i);
+          chatServer.setEngine(engine);
+          chatServer.setJmxEnabled(false);
+          chatServer.setCluster(members.get(i), members);
+          chatServer.start();
+          chatServers.add(chatServer);
+        }
+        awaitCluster(chatServers);
+
+        // The second member owns the name, which is held on the first.
+        String name = "erin";
+        for (int i = 0; Math.floorMod(name.hashCode(), members.size()) != 1; i++) {
+          name = "erin" + i;
+        }
+        Socket socket1 = new Socket("127.0.0.1", 3000);
+        ObjectOutputStream writer1 = new ObjectOutputStream(socket1.getOutputStream());
+        ObjectInputStream reader1 = new ObjectInputStream(socket1.getInputStream());
+        writer1.writeUTF(name);
+        writer1.flush();
+        assertEquals(hello, reader1.readUTF());
+
+        // The owner releases the name when the link drops, and the first member claims it again
+        // once it has redialed.
+        chatServers.get(0).dropClusterLinks();
+        Thread.sleep(200);
+        awaitCluster(chatServers);
+        Thread.sleep(200);
+
+        Socket socket3 = new Socket("127.0.0.1", 3002);
+        ObjectOutputStream writer3 = new ObjectOutputStream(socket3.getOutputStream());
+        ObjectInputStream reader3 = new ObjectInputStream(socket3.getInputStream());
+        writer3.writeUTF(name);
+        writer3.flush();
+        assertEquals("This username is already taken.", reader3.readUTF());
+
+        socket3 = new Socket("127.0.0.1", 3002);
+        writer3 = new ObjectOutputStream(socket3.getOutputStream());
+        reader3 = new ObjectInputStream(socket3.getInputStream());
+        writer3.writeUTF("frank");
+        writer3.writeUTF("@" + name + " Hello from the third node");
+        writer3.flush();
+        assertEquals(hello, reader3.readUTF());
+        assertEquals("***** frank has joined to the chat room.*****", reader1.readUTF());
+        assertEquals("frank: Hello from the third node", reader1.readUTF().substring(16));
+
+        socket1.close();
+        socket3.close();
+        for (ChatServer chatServer : chatServers) {
+          chatServer.stop();
+        }
+      } catch (Exception e) {
+        Assert.fail("Dropping a cluster link with the " + engine + " engine has failed (" + e.getMessage() + ")");
+      }
+    }
+  }
+
+  private static void awaitCluster(List<ChatServer> chatServers) throws InterruptedException {
+    for (ChatServer chatServer : chatServers) {
+      while (!chatServer.isAlive() || !chatServer.isClusterConnected()) {
+        Thread.sleep(100);
+      }
+    }
+  }
+
+  private static String readSession(DataInputStream reader, long sequence) throws IOException {
+    byte[] token = new byte[reader.readInt() - 9];
+    assertEquals(FrameCodec.SESSION, reader.readByte());
+    assertEquals(sequence, reader.readLong());
+    reader.readFully(token);
+    return new String(token, StandardCharsets.UTF_8);
+  }
+
+  private static String readFrame(DataInputStream reader) throws IOException {
+    byte[] frame = new byte[reader.readInt() - 1];
+    assertEquals(FrameCodec.TEXT, reader.readByte());
+    reader.readFully(frame);
+    return new String(frame, StandardCharsets.UTF_8);
+  }
 }
@@ -0,0 +1,116 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// One selector thread that serves any number of AsyncChatClients, so embedding many sessions
+// doesn't cost a thread pair each. Everything a client does on its channel runs on this thread.
+public final class ClientEventLoop implements AutoCloseable {
+  private static final int READ_BUFFER_SIZE = 16 * 1024;
+  private static final AtomicInteger loops = new AtomicInteger(0);
+  private static ClientEventLoop shared;
+
+  final Selector selector;
+  final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+  // Encryption buffers for the clients that use TLS.
+  final BufferPool tlsBuffers = new BufferPool(TlsChannel.BUFFER_SIZE, 64);
+  private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+  private final Thread thread;
+  private volatile boolean closed = false;
+
+  public ClientEventLoop() throws IOException {
+    selector = Selector.open();
+    thread = new Thread(this::run, "chat-client-loop-" + loops.getAndIncrement());
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  // A loop for clients created without one, started on first use and never closed.
+  static synchronized ClientEventLoop shared() throws IOException {
+    if (shared == null) {
+      shared = new ClientEventLoop();
+    }
+    return shared;
+  }
+
+  void execute(Runnable task) {
+    tasks.add(task);
+    if (Thread.currentThread() != thread) {
+      selector.wakeup();
+    }
+  }
+
+  // Closes the loop and every client on it.
+  @Override
+  public void close() {
+    closed = true;
+    selector.wakeup();
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void run() {
+    while (!closed) {
+      try {
+        if (tasks.isEmpty()) {
+          selector.select();
+        } else {
+          selector.selectNow();
+        }
+
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+          task.run();
+        }
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          AsyncChatClient client = (AsyncChatClient) key.attachment();
+          try {
+            if (key.isValid() && key.isConnectable()) {
+              client.finishConnect();
+            }
+            if (key.isValid() && key.isWritable()) {
+              client.flush();
+            }
+            // Records that arrived while a TLS handshake waited to write get no readiness event.
+            if (key.isValid() && (key.isReadable() || client.hasBufferedInput())) {
+              client.read(readBuffer);
+            }
+          } catch (IOException e) {
+            client.connectionLost(e);
+          }
+        }
+      } catch (Exception e) {
+        System.out.println("Polling the connections has failed (" + e.getMessage() + ")");
+      }
+    }
+
+    for (SelectionKey key : selector.keys()) {
+      ((AsyncChatClient) key.attachment()).closeNow(new ClosedChannelException());
+    }
+    Runnable task;
+    while ((task = tasks.poll()) != null) {
+      task.run();
+    }
+    try {
+      selector.close();
+    } catch (IOException e) {
+      System.out.println("Closing the selector has failed (" + e.getMessage() + ")");
+    }
+  }
+
+  boolean isClosed() {
+    return closed;
+  }
+}
@@ -0,0 +1,539 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Links a ChatServer with the other members of its cluster. Every node dials every other member
+// and sends only over the link it dialed, so each pair of nodes has one link in each direction.
+//
+// Usernames are unique across the cluster: each name is owned by one member, picked by hashing the
+// name over the sorted member list, and only the owner decides who may claim it. Owners announce
+// every claim and release to all members, so each node can route direct messages to the node that
+// holds the recipient. Room broadcasts go straight to every member, since the links form a full
+// mesh, and are not passed on.
+//
+// An owner that loses a member's link releases the names it held, so whenever a node dials a member
+// it claims that member's names for its local users again. Whoever claimed a name first meanwhile
+// keeps it, and a local user whose name was taken is logged out.
+final class ClusterNode {
+  private static final byte HELLO = 1;
+  private static final byte CLAIM = 2;
+  private static final byte CLAIMED = 3;
+  private static final byte RELEASE = 4;
+  private static final byte ADDED = 5;
+  private static final byte REMOVED = 6;
+  private static final byte DIRECT = 7;
+  private static final byte BROADCAST = 8;
+  private static final byte KEEPALIVE = 9;
+
+  private static final long CLAIM_TIMEOUT_MILLIS = 5000;
+  // An idle link is written to this often, so a link the member dropped is noticed and redialed.
+  private static final long KEEPALIVE_MILLIS = 1000;
+  private static final int MAX_PENDING_FRAMES = 10_000;
+  private static final ServerMetrics.MessageType[] MESSAGE_TYPES = ServerMetrics.MessageType.values();
+
+  private final ChatServer server;
+  private final String nodeId;
+  private final int peerPort;
+  private final List<String> members = new ArrayList<>();
+  private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+  // Names this node owns, and the replica of every member's claims.
+  private final ConcurrentHashMap<String, String> owned = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, String> located = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<Long, CompletableFuture<Boolean>> claims = new ConcurrentHashMap<>();
+  private final AtomicLong nextId = new AtomicLong(0);
+  private final AtomicBoolean stopFlag = new AtomicBoolean(false);
+  private final List<Socket> inbound = Collections.synchronizedList(new ArrayList<>());
+  private ServerSocket acceptor;
+  private Thread acceptThread;
+
+  ClusterNode(ChatServer server, InetSocketAddress self, List<InetSocketAddress> members) {
+    this.server = server;
+    this.nodeId = id(self);
+    this.peerPort = self.getPort();
+    this.members.add(nodeId);
+    for (InetSocketAddress member : members) {
+      String id = id(member);
+      if (!id.equals(nodeId) && !this.members.contains(id)) {
+        this.members.add(id);
+        peers.put(id, new Peer(id, member));
+      }
+    }
+    Collections.sort(this.members);
+  }
+
+  private static String id(InetSocketAddress address) {
+    return address.getHostString() + ":" + address.getPort();
+  }
+
+  String getNodeId() {
+    return nodeId;
+  }
+
+  void start() throws IOException {
+    acceptor = new ServerSocket(peerPort);
+    acceptThread = new Thread(this::acceptPeers, "cluster-accept-" + peerPort);
+    acceptThread.setDaemon(true);
+    acceptThread.start();
+    for (Peer peer : peers.values()) {
+      peer.start();
+    }
+  }
+
+  void stop() {
+    stopFlag.set(true);
+    try {
+      acceptor.close();
+    } catch (IOException e) {
+      System.out.println("Closing the cluster socket has failed (" + e.getMessage() + ")");
+    }
+    synchronized (inbound) {
+      for (Socket socket : inbound) {
+        close(socket);
+      }
+    }
+    for (Peer peer : peers.values()) {
+      peer.stop();
+    }
+    for (CompletableFuture<Boolean> claim : claims.values()) {
+      claim.complete(false);
+    }
+  }
+
+  // True once this node can reach every other member.
+  boolean isConnected() {
+    for (Peer peer : peers.values()) {
+      if (!peer.connected || peer.heard.get() == null) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Drops the links this node dialed, as a network failure would. They reconnect on their own.
+  void dropLinks() {
+    for (Peer peer : peers.values()) {
+      Socket current = peer.socket;
+      if (current != null) {
+        close(current);
+      }
+    }
+  }
+
+  // Asks the owner of the name whether this node may give it to a local user. The answer comes on
+  // the link's reader thread, or as false after CLAIM_TIMEOUT_MILLIS, and right away if this node
+  // owns the name or can't reach its owner.
+  CompletableFuture<Boolean> claim(String userName) {
+    String owner = owner(userName);
+    if (owner.equals(nodeId)) {
+      return CompletableFuture.completedFuture(arbitrate(userName, nodeId));
+    }
+    Peer peer = peers.get(owner);
+    if (!peer.connected || peer.heard.get() == null) {
+      return CompletableFuture.completedFuture(false);
+    }
+
+    CompletableFuture<Boolean> claim = request(peer, userName);
+    if (claim == null) {
+      return CompletableFuture.completedFuture(false);
+    }
+    return claim.handle((granted, e) -> {
+      if (e != null) {
+        System.out.println("Claiming a username has failed (" + e + ")");
+        // Tell the owner to forget the claim in case it was granted after we gave up.
+        release(userName);
+        return false;
+      }
+      return granted;
+    });
+  }
+
+  // Sends a CLAIM to the owner, or returns null if the link is too far behind. The future fails
+  // after CLAIM_TIMEOUT_MILLIS.
+  private CompletableFuture<Boolean> request(Peer peer, String userName) {
+    long id = nextId.incrementAndGet();
+    CompletableFuture<Boolean> claim = new CompletableFuture<>();
+    claims.put(id, claim);
+    if (!peer.send(frame(CLAIM, out -> {
+      out.writeLong(id);
+      out.writeUTF(userName);
+    }))) {
+      claims.remove(id);
+      return null;
+    }
+    return claim.orTimeout(CLAIM_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+      .whenComplete((granted, e) -> claims.remove(id));
+  }
+
+  // Claims the names of the local users that the member owns, which it may have released while the
+  // link was down. A claim that times out is made again once the link is redialed.
+  private void reclaim(Peer peer) {
+    for (String userName : server.getLocalUserNames()) {
+      if (!owner(userName).equals(peer.id)) {
+        continue;
+      }
+      CompletableFuture<Boolean> claim = request(peer, userName);
+      if (claim == null) {
+        continue;
+      }
+      claim.thenAccept(granted -> {
+        if (stopFlag.get()) {
+          return;
+        }
+        if (!granted) {
+          server.evictUser(userName);
+        } else if (server.getUser(userName) == null) {
+          // Logged out while the claim was on its way.
+          release(userName);
+        }
+      });
+    }
+  }
+
+  void release(String userName) {
+    String owner = owner(userName);
+    if (owner.equals(nodeId)) {
+      forget(userName, nodeId);
+    } else {
+      peers.get(owner).send(frame(RELEASE, out -> out.writeUTF(userName)));
+    }
+  }
+
+  // The member that holds the user, or null.
+  String locate(String userName) {
+    return located.get(userName);
+  }
+
+  boolean forwardDirect(String node, String userName, OutboundMessage message) {
+    Peer peer = peers.get(node);
+    ByteBuffer text = message.buffer(WireFormat.FRAMED);
+    return peer != null && text != null && peer.send(frame(DIRECT, out -> {
+      out.writeUTF(userName);
+      writeFrame(out, text);
+    }));
+  }
+
+  void relayBroadcast(String room, ServerMetrics.MessageType type, OutboundMessage message) {
+    ByteBuffer text = message.buffer(WireFormat.FRAMED);
+    if (text == null) {
+      return;
+    }
+    byte[] frame = frame(BROADCAST, out -> {
+      out.writeUTF(room);
+      out.writeByte(type.ordinal());
+      writeFrame(out, text);
+    });
+    for (Peer peer : peers.values()) {
+      peer.send(frame);
+    }
+  }
+
+  private String owner(String userName) {
+    return members.get(Math.floorMod(userName.hashCode(), members.size()));
+  }
+
+  private boolean arbitrate(String userName, String node) {
+    String holder = owned.putIfAbsent(userName, node);
+    if (holder != null && !holder.equals(node)) {
+      return false;
+    }
+    located.put(userName, node);
+    broadcast(frame(ADDED, out -> {
+      out.writeUTF(userName);
+      out.writeUTF(node);
+    }));
+    return true;
+  }
+
+  private void forget(String userName, String node) {
+    if (owned.remove(userName, node)) {
+      located.remove(userName, node);
+      broadcast(frame(REMOVED, out -> {
+        out.writeUTF(userName);
+        out.writeUTF(node);
+      }));
+    }
+  }
+
+  private void broadcast(byte[] frame) {
+    for (Peer peer : peers.values()) {
+      peer.send(frame);
+    }
+  }
+
+  private void acceptPeers() {
+    while (!stopFlag.get()) {
+      try {
+        Socket socket = acceptor.accept();
+        socket.setTcpNoDelay(true);
+        inbound.add(socket);
+        Thread reader = new Thread(() -> readPeer(socket), "cluster-peer-" + peerPort);
+        reader.setDaemon(true);
+        reader.start();
+      } catch (IOException e) {
+        if (!stopFlag.get()) {
+          System.out.println("Accepting a peer has failed (" + e.getMessage() + ")");
+        }
+      }
+    }
+  }
+
+  private void readPeer(Socket socket) {
+    String node = null;
+    Peer peer = null;
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      if (in.readByte() != HELLO) {
+        throw new StreamCorruptedException("expected a cluster hello");
+      }
+      node = in.readUTF();
+      peer = peers.get(node);
+      if (peer == null) {
+        throw new StreamCorruptedException("unknown cluster member: " + node);
+      }
+      synchronized (peer) {
+        peer.heard.set(socket);
+      }
+      // The peer may have missed the names we own while it was away.
+      for (Map.Entry<String, String> entry : owned.entrySet()) {
+        peer.send(frame(ADDED, out -> {
+          out.writeUTF(entry.getKey());
+          out.writeUTF(entry.getValue());
+        }));
+      }
+
+      while (!stopFlag.get()) {
+        dispatch(peer, in);
+      }
+    } catch (IOException e) {
+      if (!stopFlag.get()) {
+        System.out.println("Reading from a peer has failed (" + e.getMessage() + ")");
+      }
+    } finally {
+      inbound.remove(socket);
+      close(socket);
+      if (peer != null) {
+        // A link that was replaced already says nothing about the member, and the names it claims
+        // on the new one must not be released.
+        synchronized (peer) {
+          if (peer.heard.compareAndSet(socket, null) && !stopFlag.get()) {
+            lost(node);
+          }
+        }
+      }
+    }
+  }
+
+  private void dispatch(Peer peer, DataInputStream in) throws IOException {
+    byte type = in.readByte();
+    switch (type) {
+      case CLAIM: {
+        long id = in.readLong();
+        String userName = in.readUTF();
+        boolean granted = arbitrate(userName, peer.id);
+        peer.send(frame(CLAIMED, out -> {
+          out.writeLong(id);
+          out.writeBoolean(granted);
+        }));
+        break;
+      }
+      case CLAIMED: {
+        CompletableFuture<Boolean> claim = claims.get(in.readLong());
+        boolean granted = in.readBoolean();
+        if (claim != null) {
+          claim.complete(granted);
+        }
+        break;
+      }
+      case RELEASE:
+        forget(in.readUTF(), peer.id);
+        break;
+      case ADDED:
+        located.put(in.readUTF(), in.readUTF());
+        break;
+      case REMOVED:
+        located.remove(in.readUTF(), in.readUTF());
+        break;
+      case DIRECT: {
+        String userName = in.readUTF();
+        server.deliverDirect(userName, readMessage(in));
+        break;
+      }
+      case BROADCAST: {
+        String room = in.readUTF();
+        int ordinal = in.readUnsignedByte();
+        if (ordinal >= MESSAGE_TYPES.length) {
+          throw new StreamCorruptedException("invalid message type: " + ordinal);
+        }
+        server.deliverRoomMessage(room, MESSAGE_TYPES[ordinal], readMessage(in));
+        break;
+      }
+      case KEEPALIVE:
+        break;
+      default:
+        throw new StreamCorruptedException("unexpected cluster message: " + type);
+    }
+  }
+
+  // Names held on a member we lost touch with are released, so its users can log in elsewhere.
+  private void lost(String node) {
+    for (Map.Entry<String, String> entry : owned.entrySet()) {
+      if (entry.getValue().equals(node)) {
+        forget(entry.getKey(), node);
+      }
+    }
+    located.values().removeIf(node::equals);
+  }
+
+  private static OutboundMessage readMessage(DataInputStream in) throws IOException {
+    return OutboundMessage.framed(ByteBuffer.wrap(readFrame(in)));
+  }
+
+  private static byte[] readFrame(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    FrameCodec.checkLength(length - FrameCodec.HEADER_SIZE + 1);
+    byte[] frame = new byte[length];
+    in.readFully(frame);
+    return frame;
+  }
+
+  private static void writeFrame(DataOutputStream out, ByteBuffer frame) throws IOException {
+    out.writeInt(frame.remaining());
+    if (frame.hasArray()) {
+      out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+    } else {
+      byte[] copy = new byte[frame.remaining()];
+      frame.get(copy);
+      out.write(copy);
+    }
+  }
+
+  private static byte[] frame(byte type, Writer writer) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try {
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeByte(type);
+      writer.write(out);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static void close(Socket socket) {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      System.out.println("Closing a peer has failed (" + e.getMessage() + ")");
+    }
+  }
+
+  private interface Writer {
+    void write(DataOutputStream out) throws IOException;
+  }
+
+  // The link this node dialed to one member. Frames are queued and written by the link's own thread,
+  // which reconnects with backoff, so callers never wait for the network.
+  private final class Peer {
+    private final String id;
+    private final InetSocketAddress address;
+    private final LinkedBlockingQueue<byte[]> pending = new LinkedBlockingQueue<>();
+    private volatile boolean connected = false;
+    // The link the member dialed to this node, while it is up.
+    private final AtomicReference<Socket> heard = new AtomicReference<>();
+    private volatile Socket socket;
+    private Thread writer;
+
+    private Peer(String id, InetSocketAddress address) {
+      this.id = id;
+      this.address = address;
+    }
+
+    void start() {
+      writer = new Thread(this::run, "cluster-link-" + id);
+      writer.setDaemon(true);
+      writer.start();
+    }
+
+    void stop() {
+      writer.interrupt();
+      Socket current = socket;
+      if (current != null) {
+        close(current);
+      }
+    }
+
+    // Returns false if the frame had to be dropped because the link is too far behind.
+    boolean send(byte[] frame) {
+      if (pending.size() >= MAX_PENDING_FRAMES) {
+        return false;
+      }
+      pending.add(frame);
+      return true;
+    }
+
+    private void run() {
+      long backoff = 50;
+      while (!stopFlag.get()) {
+        try (Socket current = new Socket()) {
+          current.connect(address, 1000);
+          current.setTcpNoDelay(true);
+          socket = current;
+          DataOutputStream out = new DataOutputStream(new BufferedOutputStream(current.getOutputStream()));
+          out.writeByte(HELLO);
+          out.writeUTF(nodeId);
+          out.flush();
+          connected = true;
+          backoff = 50;
+          reclaim(this);
+
+          while (!stopFlag.get()) {
+            byte[] next = pending.poll(KEEPALIVE_MILLIS, TimeUnit.MILLISECONDS);
+            out.write(next != null ? next : new byte[] {KEEPALIVE});
+            while ((next = pending.poll()) != null) {
+              out.write(next);
+            }
+            out.flush();
+          }
+        } catch (InterruptedException e) {
+          return;
+        } catch (IOException e) {
+          if (stopFlag.get()) {
+            return;
+          }
+          if (connected) {
+            System.out.println("Sending to a peer has failed (" + e.getMessage() + ")");
+          }
+        } finally {
+          connected = false;
+          socket = null;
+        }
+
+        try {
+          Thread.sleep(backoff);
+        } catch (InterruptedException e) {
+          return;
+        }
+        backoff = Math.min(backoff * 2, 2000);
+      }
+    }
+  }
+}
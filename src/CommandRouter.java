@@ -0,0 +1,174 @@
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+// Finds the handler for a line by its first word, or by its first character for prefix commands
+// like '@alice hi', and falls back to a default handler for plain chat. The word is matched in place
+// against the registered verbs, so routing a line allocates nothing; a handler only pays for the
+// substrings it asks for. Registering is rare and copies the tables, routing needs no lock.
+final class CommandRouter {
+  private static final int TABLE_SIZE = 128;
+
+  interface Handler {
+    // Returns false to log the user out.
+    boolean handle(ChatServer.ServerUser user, Command command);
+  }
+
+  // A line and the offsets of its first word; the parts are cut out only when asked for.
+  static final class Command {
+    private final String line;
+    private final int wordEnd;
+    private final int prefixLength;
+
+    Command(String line, int wordEnd, int prefixLength) {
+      this.line = line;
+      this.wordEnd = wordEnd;
+      this.prefixLength = prefixLength;
+    }
+
+    String getLine() {
+      return line;
+    }
+
+    // The first word without its prefix character: the verb, or the user name of '@alice hi'.
+    String getWord() {
+      return line.substring(prefixLength, wordEnd);
+    }
+
+    boolean hasArguments() {
+      return wordEnd < line.length();
+    }
+
+    // Everything after the first word and the space that ends it, or "" if there is nothing.
+    String getArguments() {
+      return wordEnd < line.length() ? line.substring(wordEnd + 1) : "";
+    }
+  }
+
+  static final class Route {
+    private final String verb;
+    private final boolean takesArguments;
+    private final ServerMetrics.MessageType type;
+    private final Handler handler;
+    private final int prefixLength;
+    private final Route next;
+
+    private Route(String verb, boolean takesArguments, ServerMetrics.MessageType type, Handler handler, Route next) {
+      this(verb, takesArguments, type, handler, 0, next);
+    }
+
+    private Route(String verb, boolean takesArguments, ServerMetrics.MessageType type, Handler handler, int prefixLength, Route next) {
+      this.verb = verb;
+      this.takesArguments = takesArguments;
+      this.type = type;
+      this.handler = handler;
+      this.prefixLength = prefixLength;
+      this.next = next;
+    }
+
+    // The type the command is rate limited and counted as, or null for one that is neither.
+    ServerMetrics.MessageType getType() {
+      return type;
+    }
+
+    boolean handle(ChatServer.ServerUser user, String line, int wordEnd) {
+      return handler.handle(user, new Command(line, wordEnd, prefixLength));
+    }
+
+    private boolean matches(String line, int wordEnd) {
+      return verb.length() == wordEnd && line.startsWith(verb) && (takesArguments || wordEnd == line.length());
+    }
+  }
+
+  // Chains of verbs by first character, non-ASCII ones all in slot 0, and prefix commands by character.
+  private volatile Route[] verbs = new Route[TABLE_SIZE];
+  private volatile Route[] prefixes = new Route[TABLE_SIZE];
+  private final Route fallback;
+
+  CommandRouter(ServerMetrics.MessageType type, Handler fallback) {
+    this.fallback = new Route(null, true, type, fallback, null);
+  }
+
+  // Routes lines that are exactly verb to the handler, or that start with verb and a space too if
+  // it takes arguments. Replaces any handler the verb had.
+  synchronized void register(String verb, boolean takesArguments, ServerMetrics.MessageType type, Handler handler) {
+    if (verb.isEmpty() || verb.indexOf(' ') >= 0) {
+      throw new IllegalArgumentException("invalid verb: " + verb);
+    }
+    Route[] table = verbs.clone();
+    int slot = slot(verb.charAt(0));
+    Route chain = null;
+    for (Route route = table[slot]; route != null; route = route.next) {
+      if (!route.verb.equals(verb)) {
+        chain = new Route(route.verb, route.takesArguments, route.type, route.handler, chain);
+      }
+    }
+    table[slot] = new Route(verb, takesArguments, type, handler, chain);
+    verbs = table;
+  }
+
+  // Routes lines that start with the character, and that no verb matches, to the handler.
+  synchronized void registerPrefix(char prefix, ServerMetrics.MessageType type, Handler handler) {
+    if (prefix == 0 || prefix >= TABLE_SIZE || prefix == ' ') {
+      throw new IllegalArgumentException("invalid prefix: " + prefix);
+    }
+    Route[] table = prefixes.clone();
+    table[prefix] = new Route(null, true, type, handler, 1, null);
+    prefixes = table;
+  }
+
+  Route route(String line, int wordEnd) {
+    if (line.isEmpty()) {
+      return fallback;
+    }
+    char first = line.charAt(0);
+    for (Route route = verbs[slot(first)]; route != null; route = route.next) {
+      if (route.matches(line, wordEnd)) {
+        return route;
+      }
+    }
+    Route prefix = first < TABLE_SIZE ? prefixes[first] : null;
+    return prefix != null ? prefix : fallback;
+  }
+
+  // Where the first word of the line ends: at the first space, or at the end of the line.
+  static int wordEnd(String line) {
+    return wordEnd(line, 0);
+  }
+
+  // Where the word starting at start ends: at the next space, or at the end of the line.
+  static int wordEnd(String line, int start) {
+    int end = line.indexOf(' ', start);
+    return end < 0 ? line.length() : end;
+  }
+
+  // Where the next word starts: after the spaces from the index on, or at the end of the line.
+  static int skipSpaces(String line, int from) {
+    while (from < line.length() && line.charAt(from) == ' ') {
+      from++;
+    }
+    return from;
+  }
+
+  // Runs the handler on the executor, so that a slow command doesn't hold up the session's reader.
+  // Its replies may then arrive after those to later lines, and it can't log the user out.
+  static Handler async(Handler handler, Executor executor) {
+    return (user, command) -> {
+      try {
+        executor.execute(() -> {
+          try {
+            handler.handle(user, command);
+          } catch (RuntimeException e) {
+            System.out.println("Running a command has failed (" + e.getMessage() + ")");
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        user.sendMessage("The command hasn't been run.");
+      }
+      return true;
+    };
+  }
+
+  private static int slot(char first) {
+    return first < TABLE_SIZE ? first : 0;
+  }
+}
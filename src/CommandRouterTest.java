@@ -0,0 +1,74 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CommandRouterTest {
+  private final List<String> handled = new ArrayList<>();
+
+  private CommandRouter.Handler record(String name) {
+    return (user, command) -> {
+      handled.add(name + "[" + command.getWord() + "|" + command.getArguments() + "]");
+      return !name.equals("logout");
+    };
+  }
+
+  private boolean dispatch(CommandRouter router, String line) {
+    int wordEnd = CommandRouter.wordEnd(line);
+    return router.route(line, wordEnd).handle(null, line, wordEnd);
+  }
+
+  @Test
+  public void routesByFirstWordAndPrefix() {
+    CommandRouter router = new CommandRouter(ServerMetrics.MessageType.BROADCAST, record("chat"));
+    router.registerPrefix('@', ServerMetrics.MessageType.DIRECT, record("direct"));
+    router.register("WHOIS", true, ServerMetrics.MessageType.WHOIS, record("whois"));
+    router.register("WHO", false, ServerMetrics.MessageType.SYSTEM, record("who"));
+    router.register("LOGOUT", false, null, record("logout"));
+
+    assertTrue(dispatch(router, "WHOIS a* 2"));
+    assertTrue(dispatch(router, "WHOIS"));
+    assertTrue(dispatch(router, "WHO"));
+    assertTrue(dispatch(router, "WHO is there"));
+    assertTrue(dispatch(router, "WHOISNT"));
+    assertTrue(dispatch(router, "@bob hi there"));
+    assertTrue(dispatch(router, "@bob"));
+    assertTrue(dispatch(router, ""));
+    assertFalse(dispatch(router, "LOGOUT"));
+    assertEquals(List.of("whois[WHOIS|a* 2]", "whois[WHOIS|]", "who[WHO|]", "chat[WHO|is there]",
+      "chat[WHOISNT|]", "direct[bob|hi there]", "direct[bob|]", "chat[|]", "logout[LOGOUT|]"), handled);
+
+    assertNull(router.route("LOGOUT", 6).getType());
+    assertEquals(ServerMetrics.MessageType.DIRECT, router.route("@bob", 4).getType());
+  }
+
+  @Test
+  public void replacesHandlers() {
+    CommandRouter router = new CommandRouter(ServerMetrics.MessageType.BROADCAST, record("chat"));
+    router.register("PENGU", false, ServerMetrics.MessageType.PENGU, record("pengu"));
+    router.register("PING", false, ServerMetrics.MessageType.SYSTEM, record("ping"));
+    router.register("PENGU", true, ServerMetrics.MessageType.SYSTEM, record("custom"));
+
+    dispatch(router, "PENGU please");
+    dispatch(router, "PING");
+    assertEquals(List.of("custom[PENGU|please]", "ping[PING|]"), handled);
+    assertEquals(ServerMetrics.MessageType.SYSTEM, router.route("PENGU", 5).getType());
+  }
+
+  @Test
+  public void runsAsyncHandlersOnTheExecutor() {
+    List<Runnable> tasks = new ArrayList<>();
+    CommandRouter router = new CommandRouter(ServerMetrics.MessageType.BROADCAST, record("chat"));
+    router.register("LOGOUT", false, null, CommandRouter.async(record("logout"), tasks::add));
+
+    assertTrue(dispatch(router, "LOGOUT"));
+    assertTrue(handled.isEmpty());
+    tasks.get(0).run();
+    assertEquals(List.of("logout[LOGOUT|]"), handled);
+  }
+}
@@ -0,0 +1,271 @@
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Frame layout: [int length][byte type][payload], where length counts the type byte and the payload.
+// A framed connection starts with MAGIC followed by a version byte in both directions.
+final class FrameCodec {
+  static final byte[] MAGIC = {'C', 'H', 'A', 'T'};
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 5;
+  static final int MAX_FRAME_LENGTH = 1 << 20;
+
+  static final byte HELLO = 1;
+  static final byte TEXT = 2;
+  // Heartbeats, with empty payloads. Either side answers a PING with a PONG.
+  static final byte PING = 3;
+  static final byte PONG = 4;
+  // A TEXT payload compressed with zlib, only sent to clients that set HELLO_DEFLATE.
+  static final byte DEFLATED = 5;
+  // Resumable sessions. SESSION goes to the client after its HELLO or RESUME and carries the number
+  // of the last message before it and the resume token; every TEXT or DEFLATED frame after it counts
+  // one up. The numbers aren't written into the frames, so that a frame can still be shared by all of
+  // its recipients. RESUME takes the place of HELLO on a new connection and carries the number of the
+  // last message the client has received and its token. Both payloads are [long sequence][token].
+  static final byte SESSION = 6;
+  static final byte RESUME = 7;
+
+  // HELLO flags.
+  static final int HELLO_DEFLATE = 1;
+  static final int HELLO_RESUMABLE = 2;
+
+  private FrameCodec() {
+  }
+
+  static byte[] preamble(int version) {
+    byte[] preamble = new byte[MAGIC.length + 1];
+    System.arraycopy(MAGIC, 0, preamble, 0, MAGIC.length);
+    preamble[MAGIC.length] = (byte) version;
+    return preamble;
+  }
+
+  static boolean isMagic(byte[] bytes) {
+    for (int i = 0; i < MAGIC.length; i++) {
+      if (bytes[i] != MAGIC[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  static byte[] encode(byte type, byte[] payload) {
+    return encode(type, payload, 0, payload.length);
+  }
+
+  static byte[] encode(byte type, byte[] payload, int offset, int length) {
+    byte[] frame = new byte[HEADER_SIZE + length];
+    writeHeader(frame, type, length);
+    System.arraycopy(payload, offset, frame, HEADER_SIZE, length);
+    return frame;
+  }
+
+  // Throws if the text is longer than a frame may carry.
+  static byte[] encodeText(String msg) throws StreamCorruptedException {
+    int length = utf8Length(msg);
+    checkLength(length + 1);
+    byte[] frame = new byte[HEADER_SIZE + length];
+    writeHeader(frame, TEXT, length);
+    writeUtf8(msg, frame, HEADER_SIZE);
+    return frame;
+  }
+
+  // The HELLO payload is a flags byte followed by the username.
+  static byte[] encodeHello(int flags, String userName) {
+    byte[] name = userName.getBytes(StandardCharsets.UTF_8);
+    byte[] frame = new byte[HEADER_SIZE + 1 + name.length];
+    writeHeader(frame, HELLO, 1 + name.length);
+    frame[HEADER_SIZE] = (byte) flags;
+    System.arraycopy(name, 0, frame, HEADER_SIZE + 1, name.length);
+    return frame;
+  }
+
+  static byte[] encodeSession(byte type, long sequence, String token) {
+    byte[] bytes = token.getBytes(StandardCharsets.UTF_8);
+    byte[] frame = new byte[HEADER_SIZE + 8 + bytes.length];
+    writeHeader(frame, type, 8 + bytes.length);
+    ByteBuffer.wrap(frame, HEADER_SIZE, 8).putLong(sequence);
+    System.arraycopy(bytes, 0, frame, HEADER_SIZE + 8, bytes.length);
+    return frame;
+  }
+
+  static String text(ByteBuffer payload) {
+    if (payload.hasArray()) {
+      return new String(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining(),
+        StandardCharsets.UTF_8);
+    }
+    return StandardCharsets.UTF_8.decode(payload.duplicate()).toString();
+  }
+
+  static int checkLength(int length) throws StreamCorruptedException {
+    if (length < 1 || length > MAX_FRAME_LENGTH + 1) {
+      throw new StreamCorruptedException("invalid frame length: " + length);
+    }
+    return length;
+  }
+
+  // The UTF-8 length of the text, counting unpaired surrogates as '?' like String.getBytes does.
+  static int utf8Length(CharSequence text) {
+    int length = 0;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c < 0x80) {
+        length++;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+        && Character.isLowSurrogate(text.charAt(i + 1))) {
+        length += 4;
+        i++;
+      } else if (Character.isSurrogate(c)) {
+        length++;
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+
+  // Writes the text as UTF-8 and returns the offset after it; dst must have utf8Length(text) bytes.
+  static int writeUtf8(CharSequence text, byte[] dst, int offset) {
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c < 0x80) {
+        dst[offset++] = (byte) c;
+      } else if (c < 0x800) {
+        dst[offset++] = (byte) (0xC0 | c >> 6);
+        dst[offset++] = (byte) (0x80 | c & 0x3F);
+      } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+        && Character.isLowSurrogate(text.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, text.charAt(++i));
+        dst[offset++] = (byte) (0xF0 | codePoint >> 18);
+        dst[offset++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+        dst[offset++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+        dst[offset++] = (byte) (0x80 | codePoint & 0x3F);
+      } else if (Character.isSurrogate(c)) {
+        dst[offset++] = '?';
+      } else {
+        dst[offset++] = (byte) (0xE0 | c >> 12);
+        dst[offset++] = (byte) (0x80 | c >> 6 & 0x3F);
+        dst[offset++] = (byte) (0x80 | c & 0x3F);
+      }
+    }
+    return offset;
+  }
+
+  // The DEFLATED frame for a TEXT frame, or null if compressing doesn't make it smaller.
+  static byte[] deflate(ByteBuffer textFrame) {
+    ByteBuffer payload = textFrame.duplicate();
+    payload.position(payload.position() + HEADER_SIZE);
+    byte[] frame = new byte[textFrame.remaining()];
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try {
+      deflater.setInput(payload);
+      deflater.finish();
+      int length = 0;
+      while (!deflater.finished() && HEADER_SIZE + length < frame.length) {
+        length += deflater.deflate(frame, HEADER_SIZE + length, frame.length - HEADER_SIZE - length);
+      }
+      if (!deflater.finished()) {
+        return null;
+      }
+      writeHeader(frame, DEFLATED, length);
+      return Arrays.copyOf(frame, HEADER_SIZE + length);
+    } finally {
+      deflater.end();
+    }
+  }
+
+  // The text of a DEFLATED payload, which may not inflate beyond MAX_FRAME_LENGTH.
+  static String inflate(ByteBuffer payload) throws IOException {
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(payload.duplicate());
+      byte[] text = new byte[Math.min(MAX_FRAME_LENGTH, Math.max(256, payload.remaining() * 4))];
+      int length = 0;
+      while (!inflater.finished()) {
+        if (length == text.length) {
+          if (text.length == MAX_FRAME_LENGTH) {
+            throw new StreamCorruptedException("deflated payload too long");
+          }
+          text = Arrays.copyOf(text, Math.min(MAX_FRAME_LENGTH, text.length * 2));
+        }
+        int inflated = inflater.inflate(text, length, text.length - length);
+        if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new StreamCorruptedException("truncated deflated payload");
+        }
+        length += inflated;
+      }
+      return new String(text, 0, length, StandardCharsets.UTF_8);
+    } catch (DataFormatException e) {
+      throw new StreamCorruptedException("invalid deflated payload: " + e.getMessage());
+    } finally {
+      inflater.end();
+    }
+  }
+
+  static void writeHeader(byte[] frame, byte type, int payloadLength) {
+    int length = payloadLength + 1;
+    frame[0] = (byte) (length >>> 24);
+    frame[1] = (byte) (length >>> 16);
+    frame[2] = (byte) (length >>> 8);
+    frame[3] = (byte) length;
+    frame[4] = type;
+  }
+
+  interface Listener {
+    // The payload is only valid for the duration of the call.
+    void onFrame(byte type, ByteBuffer payload) throws IOException;
+  }
+
+  static class Decoder {
+    private final byte[] header = new byte[HEADER_SIZE];
+    private int headerRead = 0;
+    private byte[] payload;
+    private int payloadLength = -1;
+    private int payloadRead = 0;
+
+    void decode(ByteBuffer in, Listener out) throws IOException {
+      while (in.hasRemaining()) {
+        if (payloadLength < 0) {
+          if (headerRead == 0 && in.remaining() >= HEADER_SIZE) {
+            int length = checkLength(in.getInt(in.position()));
+            if (in.remaining() >= 4 + length) {
+              // The whole frame is already buffered, hand out a view of it without copying.
+              byte type = in.get(in.position() + 4);
+              ByteBuffer frame = in.slice();
+              frame.position(HEADER_SIZE).limit(4 + length);
+              in.position(in.position() + 4 + length);
+              out.onFrame(type, frame.slice());
+              continue;
+            }
+          }
+
+          header[headerRead++] = in.get();
+          if (headerRead == HEADER_SIZE) {
+            payloadLength = checkLength(ByteBuffer.wrap(header).getInt()) - 1;
+            payload = new byte[payloadLength];
+            payloadRead = 0;
+          }
+        } else {
+          int length = Math.min(payloadLength - payloadRead, in.remaining());
+          in.get(payload, payloadRead, length);
+          payloadRead += length;
+        }
+
+        if (payloadLength >= 0 && payloadRead == payloadLength) {
+          byte type = header[4];
+          int length = payloadLength;
+          headerRead = 0;
+          payloadLength = -1;
+          out.onFrame(type, ByteBuffer.wrap(payload, 0, length));
+          payload = null;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,118 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class FrameCodecTest {
+  @Test
+  public void decodeWholeFrames() throws IOException {
+    ByteBuffer in = ByteBuffer.allocate(1024);
+    in.put(FrameCodec.encodeHello(0, "alice"));
+    in.put(FrameCodec.encodeText("first"));
+    in.put(FrameCodec.encodeText(""));
+    in.flip();
+
+    List<String> frames = new ArrayList<>();
+    new FrameCodec.Decoder().decode(in, (type, payload) -> frames.add(type + ":" + FrameCodec.text(payload)));
+
+    assertEquals(3, frames.size());
+    assertEquals(FrameCodec.HELLO + ":\u0000alice", frames.get(0));
+    assertEquals(FrameCodec.TEXT + ":first", frames.get(1));
+    assertEquals(FrameCodec.TEXT + ":", frames.get(2));
+  }
+
+  @Test
+  public void decodeFragmentedFrames() throws IOException {
+    String text = "\u043f\u0440\u0438\u0432\u0435\u0442 " + String.join("", Collections.nCopies(40000, "xy"));
+    byte[] first = FrameCodec.encodeText(text);
+    byte[] second = FrameCodec.encodeText("second");
+    byte[] stream = new byte[first.length + second.length];
+    System.arraycopy(first, 0, stream, 0, first.length);
+    System.arraycopy(second, 0, stream, first.length, second.length);
+
+    List<String> frames = new ArrayList<>();
+    FrameCodec.Decoder decoder = new FrameCodec.Decoder();
+    for (int offset = 0; offset < stream.length; offset += 3) {
+      decoder.decode(ByteBuffer.wrap(stream, offset, Math.min(3, stream.length - offset)),
+        (type, payload) -> frames.add(FrameCodec.text(payload)));
+    }
+
+    assertEquals(2, frames.size());
+    assertEquals(text, frames.get(0));
+    assertEquals("second", frames.get(1));
+  }
+
+  @Test
+  public void rejectOversizedFrame() {
+    ByteBuffer in = ByteBuffer.allocate(FrameCodec.HEADER_SIZE);
+    in.putInt(FrameCodec.MAX_FRAME_LENGTH + 2).put(FrameCodec.TEXT).flip();
+
+    assertThrows(StreamCorruptedException.class,
+      () -> new FrameCodec.Decoder().decode(in, (type, payload) -> { }));
+  }
+
+  @Test
+  public void refuseToEncodeOversizedText() throws IOException {
+    String text = String.join("", Collections.nCopies(FrameCodec.MAX_FRAME_LENGTH, "x"));
+    assertEquals(FrameCodec.MAX_FRAME_LENGTH + FrameCodec.HEADER_SIZE, FrameCodec.encodeText(text).length);
+    assertThrows(StreamCorruptedException.class, () -> FrameCodec.encodeText(text + "\u00e9"));
+  }
+
+  @Test
+  public void encodeUtf8Payload() throws IOException {
+    byte[] frame = FrameCodec.encodeText("caf\u00e9");
+    ByteBuffer buffer = ByteBuffer.wrap(frame);
+
+    assertEquals(6, buffer.getInt());
+    assertEquals(FrameCodec.TEXT, buffer.get());
+    assertEquals("caf\u00e9", StandardCharsets.UTF_8.decode(buffer).toString());
+  }
+
+  @Test
+  public void encodeMatchesStringEncoding() throws IOException {
+    String text = "a\u00e9\u20ac\ud83d\udc27 \ud83d broken";
+    byte[] expected = text.getBytes(StandardCharsets.UTF_8);
+    byte[] frame = FrameCodec.encodeText(text);
+
+    assertEquals(expected.length, FrameCodec.utf8Length(text));
+    assertArrayEquals(expected, Arrays.copyOfRange(frame, FrameCodec.HEADER_SIZE, frame.length));
+  }
+
+  @Test
+  public void deflateRoundTrip() throws IOException {
+    String text = "Exception in thread \"main\" java.lang.IllegalStateException\n"
+      + String.join("", Collections.nCopies(200, "\tat ChatServer.run(ChatServer.java:42)\n"));
+    ByteBuffer frame = ByteBuffer.wrap(FrameCodec.encodeText(text));
+    byte[] deflated = FrameCodec.deflate(frame);
+
+    assertEquals(FrameCodec.DEFLATED, deflated[4]);
+    assertTrue(deflated.length < frame.remaining() / 10);
+    ByteBuffer payload = ByteBuffer.wrap(deflated, FrameCodec.HEADER_SIZE, deflated.length - FrameCodec.HEADER_SIZE);
+    assertEquals(text, FrameCodec.inflate(payload));
+  }
+
+  @Test
+  public void deflateKeepsIncompressibleText() throws IOException {
+    assertNull(FrameCodec.deflate(ByteBuffer.wrap(FrameCodec.encodeText("hi"))));
+  }
+
+  @Test
+  public void rejectTruncatedDeflatedPayload() throws IOException {
+    byte[] deflated = FrameCodec.deflate(ByteBuffer.wrap(FrameCodec.encodeText(
+      String.join("", Collections.nCopies(100, "abc")))));
+    ByteBuffer payload = ByteBuffer.wrap(deflated, FrameCodec.HEADER_SIZE, 4);
+    assertThrows(StreamCorruptedException.class, () -> FrameCodec.inflate(payload));
+  }
+}
@@ -0,0 +1,119 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+final class LegacyCodec {
+  static final byte[] STREAM_HEADER = {(byte) 0xAC, (byte) 0xED, 0x00, 0x05};
+
+  private static final int TC_BLOCKDATA = 0x77;
+  private static final int TC_RESET = 0x79;
+  private static final int TC_BLOCKDATALONG = 0x7A;
+  private static final int MAX_BLOCK_SIZE = 1024;
+  private static final byte[] EMPTY = new byte[0];
+
+  private LegacyCodec() {
+  }
+
+  // Produces the same bytes ObjectOutputStream emits for writeUTF() followed by flush().
+  static byte[] encode(String msg) throws IOException {
+    ByteArrayOutputStream utf = new ByteArrayOutputStream(msg.length() + 2);
+    new DataOutputStream(utf).writeUTF(msg);
+    byte[] payload = utf.toByteArray();
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length + 8);
+    for (int offset = 0; offset < payload.length; offset += MAX_BLOCK_SIZE) {
+      int length = Math.min(MAX_BLOCK_SIZE, payload.length - offset);
+      if (length <= 0xFF) {
+        out.write(TC_BLOCKDATA);
+        out.write(length);
+      } else {
+        out.write(TC_BLOCKDATALONG);
+        out.write(length >>> 24);
+        out.write(length >>> 16);
+        out.write(length >>> 8);
+        out.write(length);
+      }
+      out.write(payload, offset, length);
+    }
+    return out.toByteArray();
+  }
+
+  // Incremental reader for the client side of an ObjectOutputStream that only calls writeUTF().
+  static class Decoder {
+    private int headerRead = 0;
+    private int tag = -1;
+    private int blockHeaderRead = 0;
+    private int blockRemaining = 0;
+    private byte[] data = EMPTY;
+    private int size = 0;
+
+    void decode(ByteBuffer in, Consumer<String> out) throws IOException {
+      while (in.hasRemaining()) {
+        if (headerRead < STREAM_HEADER.length) {
+          if (in.get() != STREAM_HEADER[headerRead++]) {
+            throw new StreamCorruptedException("invalid stream header");
+          }
+        } else if (tag >= 0) {
+          blockRemaining = (blockRemaining << 8) | (in.get() & 0xFF);
+          blockHeaderRead++;
+          if (blockHeaderRead == (tag == TC_BLOCKDATA ? 1 : 4)) {
+            if (blockRemaining < 0) {
+              throw new StreamCorruptedException("invalid block length");
+            }
+            tag = -1;
+            blockHeaderRead = 0;
+          }
+        } else if (blockRemaining > 0) {
+          int length = Math.min(blockRemaining, in.remaining());
+          ensureCapacity(size + length);
+          in.get(data, size, length);
+          size += length;
+          blockRemaining -= length;
+          if (blockRemaining == 0) {
+            drain(out);
+          }
+        } else {
+          tag = in.get() & 0xFF;
+          if (tag == TC_RESET) {
+            tag = -1;
+          } else if (tag != TC_BLOCKDATA && tag != TC_BLOCKDATALONG) {
+            throw new StreamCorruptedException(String.format("invalid type code: %02X", tag));
+          }
+        }
+      }
+    }
+
+    private void drain(Consumer<String> out) throws IOException {
+      int offset = 0;
+      while (size - offset >= 2) {
+        int length = ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+        if (size - offset < length + 2) {
+          break;
+        }
+        out.accept(new DataInputStream(new ByteArrayInputStream(data, offset, length + 2)).readUTF());
+        offset += length + 2;
+      }
+
+      if (offset == size) {
+        data = EMPTY;
+        size = 0;
+      } else if (offset > 0) {
+        System.arraycopy(data, offset, data, 0, size - offset);
+        size -= offset;
+      }
+    }
+
+    // The buffer may not grow beyond what a frame could carry, so a bogus block length can't make
+    // it allocate gigabytes.
+    private void ensureCapacity(int capacity) throws StreamCorruptedException {
+      if (capacity > FrameCodec.MAX_FRAME_LENGTH) {
+        throw new StreamCorruptedException("block too long: " + capacity);
+      }
+      if (capacity > data.length) {
+        byte[] grown = new byte[Math.max(capacity, Math.min(data.length * 2, 0xFFFF + 2))];
+        System.arraycopy(data, 0, grown, 0, size);
+        data = grown;
+      }
+    }
+  }
+}
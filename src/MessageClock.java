@@ -0,0 +1,69 @@
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+
+// Renders the current local time as HH:mm:ss.SSSSSS without allocating. The wall clock and the
+// zone offset are sampled once per second; within that second the time advances by System.nanoTime().
+final class MessageClock {
+  static final int LENGTH = 15;
+
+  private static volatile Second current = sample();
+
+  private MessageClock() {
+  }
+
+  static String now() {
+    byte[] text = new byte[LENGTH];
+    render(text, 0);
+    return new String(text, StandardCharsets.US_ASCII);
+  }
+
+  static void render(byte[] dst, int offset) {
+    Second second = current;
+    long micros = second.epochMicros + (System.nanoTime() - second.nanoTime) / 1000;
+    if (micros < second.epochMicros || micros >= second.end) {
+      second = sample();
+      current = second;
+      micros = second.epochMicros;
+    }
+
+    System.arraycopy(second.hms, 0, dst, offset, 8);
+    dst[offset + 8] = '.';
+    int fraction = (int) (micros % 1_000_000);
+    for (int i = offset + LENGTH - 1; i > offset + 8; i--) {
+      dst[i] = (byte) ('0' + fraction % 10);
+      fraction /= 10;
+    }
+  }
+
+  private static Second sample() {
+    Instant now = Instant.now();
+    long nanoTime = System.nanoTime();
+    int offset = ZoneId.systemDefault().getRules().getOffset(now).getTotalSeconds();
+    return new Second(now.getEpochSecond() * 1_000_000 + now.getNano() / 1000, nanoTime,
+      Math.floorMod(now.getEpochSecond() + offset, 86400));
+  }
+
+  private static final class Second {
+    private final long epochMicros;
+    private final long nanoTime;
+    private final long end;
+    private final byte[] hms = new byte[8];
+
+    private Second(long epochMicros, long nanoTime, long secondOfDay) {
+      this.epochMicros = epochMicros;
+      this.nanoTime = nanoTime;
+      this.end = (epochMicros / 1_000_000 + 1) * 1_000_000;
+      digits(hms, 0, (int) (secondOfDay / 3600));
+      hms[2] = ':';
+      digits(hms, 3, (int) (secondOfDay / 60 % 60));
+      hms[5] = ':';
+      digits(hms, 6, (int) (secondOfDay % 60));
+    }
+
+    private static void digits(byte[] dst, int offset, int value) {
+      dst[offset] = (byte) ('0' + value / 10);
+      dst[offset + 1] = (byte) ('0' + value % 10);
+    }
+  }
+}
@@ -0,0 +1,286 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+
+// An append-only log of chat messages in memory-mapped segment files. Each segment is a pair of
+// files named after the sequence number of its first message: <base>.log holds the records, and
+// <base>.idx holds the 4-byte offset of every record, so message n is found without scanning.
+//
+// Record: [int length][long sequence][byte scope][short name length][name][frame]
+// where scope says whether name is a room or a recipient and frame is the FrameCodec TEXT frame
+// that recipients were sent. Replays hand out read-only views of the mapped frames.
+//
+// Callers only queue messages; a single appender thread assigns sequence numbers and writes them,
+// so appending never blocks a fan-out.
+final class MessageHistory {
+  static final byte ROOM = 1;
+  static final byte USER = 2;
+
+  private static final int RECORD_HEADER = 4 + 8 + 1 + 2;
+  private static final int MAX_SCANNED = 64 * 1024;
+  private static final Entry STOP = new Entry((byte) 0, new byte[0], null);
+
+  private final Path directory;
+  private final int segmentSize;
+  private final int maxSegments;
+  private final CopyOnWriteArrayList<Segment> segments = new CopyOnWriteArrayList<>();
+  private final LinkedBlockingQueue<Entry> pending = new LinkedBlockingQueue<>();
+  private volatile long lastSequence = -1;
+  private int maxScanned = MAX_SCANNED;
+  private Thread appender;
+
+  MessageHistory(Path directory, int segmentSize, int maxSegments) {
+    this.directory = directory;
+    this.segmentSize = Math.max(FrameCodec.MAX_FRAME_LENGTH * 2, segmentSize);
+    this.maxSegments = Math.max(1, maxSegments);
+  }
+
+  void open() throws IOException {
+    Files.createDirectories(directory);
+    List<Long> bases = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.log")) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        bases.add(Long.parseLong(name.substring(0, name.length() - ".log".length())));
+      }
+    }
+    bases.sort(null);
+    for (long base : bases) {
+      Segment segment = Segment.map(directory, base, segmentSize);
+      segment.recover();
+      segments.add(segment);
+      lastSequence = Math.max(lastSequence, base + segment.count - 1);
+    }
+
+    appender = new Thread(this::append, "chat-history");
+    appender.setDaemon(true);
+    appender.start();
+  }
+
+  void close() {
+    if (appender == null) {
+      return;
+    }
+    pending.add(STOP);
+    try {
+      appender.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    appender = null;
+    for (Segment segment : segments) {
+      segment.force();
+    }
+  }
+
+  // How many of the newest records a replay looks at, at most, so that a user who was sent little
+  // doesn't make every login walk the whole log.
+  void setMaxScanned(int maxScanned) {
+    this.maxScanned = Math.max(1, maxScanned);
+  }
+
+  // The sequence number of the newest message that replays can see, or -1 if there is none.
+  long getLastSequence() {
+    return lastSequence;
+  }
+
+  void add(byte scope, byte[] name, OutboundMessage message) {
+    pending.add(new Entry(scope, name, message));
+  }
+
+  // Hands out, oldest first, the newest limit frames up to and including sequence upTo that were
+  // sent to the room or to the user, among the newest maxScanned messages.
+  void replayLast(byte[] room, byte[] userName, int limit, long upTo, Consumer<ByteBuffer> out) {
+    upTo = Math.min(upTo, lastSequence);
+    long oldest = upTo - maxScanned + 1;
+    ArrayDeque<ByteBuffer> frames = new ArrayDeque<>();
+    List<Segment> current = new ArrayList<>(segments);
+    for (int s = current.size() - 1; s >= 0 && frames.size() < limit; s--) {
+      Segment segment = current.get(s);
+      long last = Math.min(upTo, segment.base + segment.count - 1);
+      long first = Math.max(oldest, segment.base);
+      for (long sequence = last; sequence >= first && frames.size() < limit; sequence--) {
+        ByteBuffer frame = segment.frame(sequence, room, userName);
+        if (frame != null) {
+          frames.addFirst(frame);
+        }
+      }
+      if (first > segment.base) {
+        break;
+      }
+    }
+    frames.forEach(out);
+  }
+
+  private void append() {
+    while (true) {
+      Entry entry;
+      try {
+        entry = pending.take();
+      } catch (InterruptedException e) {
+        return;
+      }
+      if (entry == STOP) {
+        return;
+      }
+
+      try {
+        write(entry);
+      } catch (IOException e) {
+        System.out.println("Writing the history has failed (" + e.getMessage() + ")");
+      }
+    }
+  }
+
+  private void write(Entry entry) throws IOException {
+    ByteBuffer frame = entry.message.buffer(WireFormat.FRAMED);
+    if (frame == null) {
+      return;
+    }
+    int length = RECORD_HEADER + entry.name.length + frame.remaining();
+    if (length > segmentSize) {
+      return;
+    }
+
+    long sequence = lastSequence + 1;
+    Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+    if (segment == null || !segment.fits(length)) {
+      if (segment != null) {
+        segment.force();
+      }
+      segment = Segment.map(directory, sequence, segmentSize);
+      segments.add(segment);
+      while (segments.size() > maxSegments) {
+        segments.remove(0).delete();
+      }
+    }
+
+    segment.append(sequence, entry, frame, length);
+    // Publishing the sequence makes the record and its index entry visible to replays.
+    lastSequence = sequence;
+  }
+
+  private static final class Entry {
+    private final byte scope;
+    private final byte[] name;
+    private final OutboundMessage message;
+
+    private Entry(byte scope, byte[] name, OutboundMessage message) {
+      this.scope = scope;
+      this.name = name;
+      this.message = message;
+    }
+  }
+
+  private static final class Segment {
+    private final long base;
+    private final Path log;
+    private final Path index;
+    private final MappedByteBuffer records;
+    private final MappedByteBuffer offsetsMap;
+    private final IntBuffer offsets;
+    private int position = 0;
+    // Written by the appender only; replays read it after lastSequence, which publishes it.
+    private int count = 0;
+
+    private Segment(long base, Path log, Path index, MappedByteBuffer records, MappedByteBuffer offsetsMap) {
+      this.base = base;
+      this.log = log;
+      this.index = index;
+      this.records = records;
+      this.offsetsMap = offsetsMap;
+      this.offsets = offsetsMap.asIntBuffer();
+    }
+
+    static Segment map(Path directory, long base, int segmentSize) throws IOException {
+      String name = String.format("%020d", base);
+      Path log = directory.resolve(name + ".log");
+      Path index = directory.resolve(name + ".idx");
+      // Every record is at least RECORD_HEADER + FrameCodec.HEADER_SIZE bytes long.
+      int maxRecords = segmentSize / (RECORD_HEADER + FrameCodec.HEADER_SIZE) + 1;
+      return new Segment(base, log, index, mapFile(log, segmentSize), mapFile(index, maxRecords * 4));
+    }
+
+    private static MappedByteBuffer mapFile(Path file, int size) throws IOException {
+      try (FileChannel channel = FileChannel.open(file,
+        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      }
+    }
+
+    // Finds the end of the records and rebuilds the index from them, in case the last run stopped
+    // between writing a record and its index entry.
+    void recover() {
+      while (position + 4 <= records.capacity()) {
+        int length = records.getInt(position);
+        if (length < RECORD_HEADER + FrameCodec.HEADER_SIZE || position + length > records.capacity()
+          || records.getLong(position + 4) != base + count) {
+          break;
+        }
+        offsets.put(count++, position);
+        position += length;
+      }
+    }
+
+    boolean fits(int length) {
+      return position + length <= records.capacity() && count < offsets.capacity();
+    }
+
+    void append(long sequence, Entry entry, ByteBuffer frame, int length) {
+      ByteBuffer out = records.duplicate();
+      out.position(position);
+      out.putInt(length).putLong(sequence).put(entry.scope).putShort((short) entry.name.length)
+        .put(entry.name).put(frame);
+      offsets.put(count, position);
+      position += length;
+      count++;
+    }
+
+    // The frame of the given message if it was sent to the room or to the user, else null.
+    ByteBuffer frame(long sequence, byte[] room, byte[] userName) {
+      int offset = offsets.get((int) (sequence - base));
+      int length = records.getInt(offset);
+      byte scope = records.get(offset + 12);
+      int nameLength = records.getShort(offset + 13);
+      byte[] expected = scope == ROOM ? room : scope == USER ? userName : null;
+      if (expected == null || expected.length != nameLength) {
+        return null;
+      }
+      for (int i = 0; i < nameLength; i++) {
+        if (records.get(offset + RECORD_HEADER + i) != expected[i]) {
+          return null;
+        }
+      }
+
+      ByteBuffer frame = records.asReadOnlyBuffer();
+      frame.position(offset + RECORD_HEADER + nameLength).limit(offset + length);
+      return frame.slice();
+    }
+
+    void force() {
+      records.force();
+      offsetsMap.force();
+    }
+
+    void delete() {
+      try {
+        Files.deleteIfExists(log);
+        Files.deleteIfExists(index);
+      } catch (IOException e) {
+        System.out.println("Deleting a history segment has failed (" + e.getMessage() + ")");
+      }
+    }
+  }
+}
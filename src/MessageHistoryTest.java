@@ -0,0 +1,121 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class MessageHistoryTest {
+  private static final byte[] LOBBY = "lobby".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] RUST = "rust".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] ALICE = "alice".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] BOB = "bob".getBytes(StandardCharsets.UTF_8);
+
+  @Test
+  public void replayLastMessagesForRoomAndUser() throws Exception {
+    Path directory = Files.createTempDirectory("history");
+    try {
+      MessageHistory history = new MessageHistory(directory, 0, 4);
+      history.open();
+      history.add(MessageHistory.ROOM, LOBBY, new OutboundMessage("1"));
+      history.add(MessageHistory.ROOM, RUST, new OutboundMessage("2"));
+      history.add(MessageHistory.USER, ALICE, new OutboundMessage("3"));
+      history.add(MessageHistory.USER, BOB, new OutboundMessage("4"));
+      history.add(MessageHistory.ROOM, LOBBY, new OutboundMessage("5"));
+      awaitSequence(history, 4);
+
+      assertEquals(Arrays.asList("1", "3", "5"), replayLast(history, LOBBY, ALICE, 10, Long.MAX_VALUE));
+      assertEquals(Arrays.asList("3", "5"), replayLast(history, LOBBY, ALICE, 2, Long.MAX_VALUE));
+      assertEquals(Arrays.asList("1", "3"), replayLast(history, LOBBY, ALICE, 10, 3));
+      assertEquals(Arrays.asList("2", "4"), replayLast(history, RUST, BOB, 10, Long.MAX_VALUE));
+
+      history.setMaxScanned(3);
+      assertEquals(Arrays.asList("3", "5"), replayLast(history, LOBBY, ALICE, 10, Long.MAX_VALUE));
+      assertEquals(Arrays.asList("1"), replayLast(history, LOBBY, ALICE, 10, 1));
+      history.close();
+    } finally {
+      delete(directory);
+    }
+  }
+
+  @Test
+  public void reopenContinuesTheLog() throws Exception {
+    Path directory = Files.createTempDirectory("history");
+    try {
+      MessageHistory history = new MessageHistory(directory, 0, 4);
+      history.open();
+      history.add(MessageHistory.ROOM, LOBBY, new OutboundMessage("1"));
+      history.add(MessageHistory.ROOM, LOBBY, new OutboundMessage("2"));
+      awaitSequence(history, 1);
+      history.close();
+
+      history = new MessageHistory(directory, 0, 4);
+      history.open();
+      assertEquals(1, history.getLastSequence());
+      history.add(MessageHistory.ROOM, LOBBY, new OutboundMessage("3"));
+      awaitSequence(history, 2);
+      assertEquals(Arrays.asList("1", "2", "3"), replayLast(history, LOBBY, ALICE, 10, Long.MAX_VALUE));
+      history.close();
+    } finally {
+      delete(directory);
+    }
+  }
+
+  @Test
+  public void oldSegmentsAreDeleted() throws Exception {
+    Path directory = Files.createTempDirectory("history");
+    try {
+      char[] large = new char[500 * 1024];
+      Arrays.fill(large, 'x');
+      MessageHistory history = new MessageHistory(directory, 0, 2);
+      history.open();
+      for (int i = 0; i < 12; i++) {
+        history.add(MessageHistory.ROOM, LOBBY, new OutboundMessage(i + new String(large)));
+      }
+      awaitSequence(history, 11);
+
+      List<String> replayed = replayLast(history, LOBBY, ALICE, 100, Long.MAX_VALUE);
+      assertEquals(8, replayed.size());
+      assertEquals("4", replayed.get(0).substring(0, 1));
+      try (Stream<Path> files = Files.list(directory)) {
+        assertEquals(4, files.count());
+      }
+      history.close();
+    } finally {
+      delete(directory);
+    }
+  }
+
+  private static List<String> replayLast(MessageHistory history, byte[] room, byte[] user, int limit, long upTo) {
+    List<String> messages = new ArrayList<>();
+    history.replayLast(room, user, limit, upTo, frame -> messages.add(text(frame)));
+    return messages;
+  }
+
+  private static String text(ByteBuffer frame) {
+    return OutboundMessage.framed(frame).getText();
+  }
+
+  private static void awaitSequence(MessageHistory history, long sequence) throws InterruptedException {
+    for (int i = 0; i < 100 && history.getLastSequence() < sequence; i++) {
+      Thread.sleep(20);
+    }
+    assertEquals(sequence, history.getLastSequence());
+  }
+
+  private static void delete(Path directory) throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      for (Path file : (Iterable<Path>) files::iterator) {
+        Files.delete(file);
+      }
+    }
+    Files.delete(directory);
+  }
+}
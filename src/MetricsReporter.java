@@ -0,0 +1,19 @@
+import java.io.PrintStream;
+
+// Receives the server metrics periodically, see ChatServer.setMetricsReporter.
+public interface MetricsReporter {
+  void report(ServerMetricsMXBean metrics);
+
+  static MetricsReporter console(PrintStream out) {
+    return metrics -> out.println(String.format(
+      "sessions=%d unhandled=%d accepts/s=%.1f handshake.p99=%dus handshakes.rejected=%d "
+        + "handshakes.timedOut=%d reaped=%d resumed=%d tls=%d tls.resumed=%d limited=%d in=%s out=%s "
+        + "fanout.p99=%dus sendFailures=%d maxBacklog=%d",
+      metrics.getActiveSessions(), metrics.getUnhandledSessions(), metrics.getAcceptRate(),
+      metrics.getHandshakeP99Micros(), metrics.getHandshakesRejected(), metrics.getHandshakesTimedOut(),
+      metrics.getSessionsReaped(), metrics.getSessionsResumed(), metrics.getTlsHandshakes(),
+      metrics.getTlsResumptions(), metrics.getMessagesLimited(), metrics.getMessagesIn(),
+      metrics.getMessagesOut(), metrics.getFanOutP99Micros(), metrics.getSendFailures(),
+      metrics.getMaxOutboundBacklog()));
+  }
+}
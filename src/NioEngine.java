@@ -0,0 +1,498 @@
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+class NioEngine {
+  private static final int READ_BUFFER_SIZE = 16 * 1024;
+  private static final int MAX_GATHER = 64;
+
+  private final ChatServer server;
+  private final int port;
+  private final EventLoop[] loops;
+  private ServerSocketChannel acceptor;
+  private int nextLoop = 0;
+
+  NioEngine(ChatServer server, int port, int eventLoops) {
+    this.server = server;
+    this.port = port;
+    this.loops = new EventLoop[eventLoops];
+  }
+
+  void bind(int backlog) throws IOException {
+    acceptor = ServerSocketChannel.open();
+    acceptor.bind(new InetSocketAddress(port), backlog);
+    for (int i = 0; i < loops.length; i++) {
+      loops[i] = new EventLoop(i, server.getFlushDelayNanos(), server.getMaxBatchBytes());
+      loops[i].start();
+    }
+  }
+
+  void run(AtomicBoolean stopFlag) {
+    while (!stopFlag.get()) {
+      try {
+        SocketChannel channel = acceptor.accept();
+        server.metrics().connectionAccepted();
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        channel.socket().setKeepAlive(true);
+        ChannelUser user = new ChannelUser(server, server.nextUserId(), channel, loops[nextLoop],
+          server.isTlsEnabled() ? server.newTlsChannel(channel, channel) : null);
+        if (!server.beginHandshake(user)) {
+          channel.close();
+          continue;
+        }
+        nextLoop = (nextLoop + 1) % loops.length;
+        user.loop.register(user);
+      } catch (Exception e) {
+        System.out.println("Accepting a connection has failed (" + e.getMessage() + ")");
+      }
+    }
+  }
+
+  void close() throws IOException {
+    IOException closeException = null;
+    try {
+      if (acceptor != null) {
+        acceptor.close();
+      }
+    } catch (IOException e) {
+      closeException = e;
+    }
+
+    for (EventLoop loop : loops) {
+      if (loop != null) {
+        loop.shutdown();
+      }
+    }
+
+    if (closeException != null) {
+      throw closeException;
+    }
+  }
+
+  private static class EventLoop extends Thread {
+    private final Selector selector;
+    private final Queue<ChannelUser> registrations = new ConcurrentLinkedQueue<>();
+    private final Queue<ChannelUser> pendingWrites = new ConcurrentLinkedQueue<>();
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private final AtomicBoolean stopFlag = new AtomicBoolean(false);
+    private final long flushDelayNanos;
+    private final int maxBatchBytes;
+
+    EventLoop(int index, long flushDelayNanos, int maxBatchBytes) throws IOException {
+      super("chat-event-loop-" + index);
+      setDaemon(true);
+      selector = Selector.open();
+      this.flushDelayNanos = flushDelayNanos;
+      this.maxBatchBytes = maxBatchBytes;
+    }
+
+    void register(ChannelUser user) {
+      registrations.add(user);
+      selector.wakeup();
+    }
+
+    // Runs the task on the loop, for work that other threads finish on behalf of a session.
+    void execute(Runnable task) {
+      tasks.add(task);
+      selector.wakeup();
+    }
+
+    // Without a flush delay, frames queued before the loop gets to a session still go out in one
+    // gathered write. With a delay, the session lingers to collect more frames before flushing.
+    void scheduleWrite(ChannelUser user) {
+      if (flushDelayNanos == 0 && Thread.currentThread() == this) {
+        user.flush();
+      } else if (user.writeScheduled.compareAndSet(false, true)) {
+        user.flushAt = System.nanoTime() + flushDelayNanos;
+        pendingWrites.add(user);
+        if (Thread.currentThread() != this) {
+          selector.wakeup();
+        }
+      }
+    }
+
+    void shutdown() {
+      stopFlag.set(true);
+      selector.wakeup();
+      try {
+        join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    @Override
+    public void run() {
+      while (!stopFlag.get()) {
+        try {
+          ChannelUser user = pendingWrites.peek();
+          if (user == null) {
+            selector.select();
+          } else {
+            long delay = user.flushAt - System.nanoTime();
+            if (delay > 0) {
+              selector.select(Math.max(1, delay / 1_000_000));
+            } else {
+              selector.selectNow();
+            }
+          }
+
+          while ((user = registrations.poll()) != null) {
+            try {
+              user.key = user.channel.register(selector, SelectionKey.OP_READ, user);
+            } catch (ClosedChannelException e) {
+              // Closed by its handshake deadline before the loop got to it.
+              continue;
+            }
+            user.flush();
+          }
+          Runnable task;
+          while ((task = tasks.poll()) != null) {
+            task.run();
+          }
+          long now = System.nanoTime();
+          while ((user = pendingWrites.peek()) != null && user.flushAt - now <= 0) {
+            pendingWrites.poll();
+            user.writeScheduled.set(false);
+            user.flush();
+          }
+
+          Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+          while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            user = (ChannelUser) key.attachment();
+            if (!key.isValid()) {
+              continue;
+            }
+            if (key.isWritable()) {
+              user.flush();
+            }
+            // Records that arrived while a TLS handshake waited to write get no readiness event.
+            if (key.isValid() && (key.isReadable() || user.hasBufferedInput())) {
+              read(user);
+            }
+          }
+        } catch (Exception e) {
+          System.out.println("Polling the connections has failed (" + e.getMessage() + ")");
+        }
+      }
+
+      for (SelectionKey key : selector.keys()) {
+        ((ChannelUser) key.attachment()).close();
+      }
+      try {
+        selector.close();
+      } catch (IOException e) {
+        System.out.println("Closing the selector has failed (" + e.getMessage() + ")");
+      }
+    }
+
+    // A TLS session may have decrypted more than fits in the buffer, which is read on right away.
+    private void read(ChannelUser user) {
+      try {
+        int count;
+        do {
+          readBuffer.clear();
+          count = user.tls != null ? user.tls.read(readBuffer) : user.channel.read(readBuffer);
+          if (count < 0) {
+            user.connectionLost();
+            return;
+          }
+          readBuffer.flip();
+          user.lastReadNanos = System.nanoTime();
+          user.decode(readBuffer);
+        } while (count > 0 && user.hasBufferedInput() && user.tls.isOpen());
+        user.flushHandshake();
+      } catch (IOException e) {
+        System.out.println("Reading a message has failed (" + e.getMessage() + ")");
+        user.connectionLost();
+      }
+    }
+  }
+
+  private static class ChannelUser extends ChatServer.ServerUser {
+    private static final OutboundMessage PONG = OutboundMessage.control(FrameCodec.PONG);
+
+    private final SocketChannel channel;
+    private final TlsChannel tls;
+    private final EventLoop loop;
+    private final byte[] preamble = new byte[FrameCodec.MAGIC.length + 1];
+    private int preambleRead = 0;
+    private WireFormat format;
+    private LegacyCodec.Decoder legacyDecoder;
+    private FrameCodec.Decoder frameDecoder;
+    private final ArrayDeque<ByteBuffer> inflight = new ArrayDeque<>(2);
+    private long inflightBytes = 0;
+    private boolean finished = false;
+    private volatile long flushAt;
+    private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+    private SelectionKey key;
+    private boolean loggedIn = false;
+    // While the cluster decides on the name, reads pause and what was read already is held back.
+    private boolean loggingIn = false;
+    private final ArrayDeque<String> held = new ArrayDeque<>();
+    private int helloFlags = 0;
+    private volatile long lastReadNanos = System.nanoTime();
+
+    ChannelUser(ChatServer server, int userId, SocketChannel channel, EventLoop loop, TlsChannel tls) {
+      super(server, userId);
+      this.channel = channel;
+      this.loop = loop;
+      this.tls = tls;
+    }
+
+    private boolean hasBufferedInput() {
+      return !loggingIn && tls != null && tls.hasBufferedInput();
+    }
+
+    // Sends what the TLS handshake has to answer, and the frames that waited for it, without waiting
+    // for the next flush of queued messages.
+    private void flushHandshake() throws IOException {
+      if (tls == null || !tls.isOpen()) {
+        return;
+      }
+      if (!inflight.isEmpty()) {
+        flush();
+        return;
+      }
+      try {
+        if (!tls.flush()) {
+          key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+      } catch (CancelledKeyException e) {
+        // Closed by another thread meanwhile.
+      }
+    }
+
+    // Tells a legacy client from a framed one by its first bytes and answers with the matching header.
+    private void decode(ByteBuffer in) throws IOException {
+      while (format == null && in.hasRemaining()) {
+        preamble[preambleRead++] = in.get();
+        if (preambleRead == LegacyCodec.STREAM_HEADER.length && !FrameCodec.isMagic(preamble)) {
+          format = WireFormat.LEGACY;
+          legacyDecoder = new LegacyCodec.Decoder();
+          legacyDecoder.decode(ByteBuffer.wrap(preamble, 0, preambleRead), this::onMessage);
+          inflight.add(ByteBuffer.wrap(LegacyCodec.STREAM_HEADER));
+          flush();
+        } else if (preambleRead == preamble.length) {
+          int version = Math.min(preamble[FrameCodec.MAGIC.length], FrameCodec.VERSION);
+          if (version < 1) {
+            throw new StreamCorruptedException("unsupported protocol version");
+          }
+          format = WireFormat.FRAMED;
+          frameDecoder = new FrameCodec.Decoder();
+          inflight.add(ByteBuffer.wrap(FrameCodec.preamble(version)));
+          flush();
+        }
+      }
+
+      if (legacyDecoder != null) {
+        legacyDecoder.decode(in, this::onMessage);
+      } else if (frameDecoder != null) {
+        frameDecoder.decode(in, this::onFrame);
+      }
+    }
+
+    private void onFrame(byte type, ByteBuffer payload) throws IOException {
+      if (type == FrameCodec.HELLO && !loggedIn && !loggingIn) {
+        if (!payload.hasRemaining()) {
+          throw new StreamCorruptedException("truncated hello frame");
+        }
+        helloFlags = payload.get() & 0xFF;
+        onMessage(FrameCodec.text(payload));
+      } else if (type == FrameCodec.RESUME && !loggedIn && !loggingIn) {
+        if (payload.remaining() < 8) {
+          throw new StreamCorruptedException("truncated resume frame");
+        }
+        long sequence = payload.getLong();
+        if (!stopFlag.get()) {
+          loggedIn = resume(FrameCodec.text(payload), sequence);
+        }
+      } else if (type == FrameCodec.TEXT && (loggedIn || loggingIn)) {
+        onMessage(FrameCodec.text(payload));
+      } else if (type == FrameCodec.PING) {
+        send(PONG);
+      } else if (type != FrameCodec.PONG) {
+        throw new StreamCorruptedException("unexpected frame type: " + type);
+      }
+    }
+
+    private void onMessage(String message) {
+      if (stopFlag.get()) {
+        return;
+      }
+
+      if (loggingIn) {
+        held.add(message);
+      } else if (!loggedIn) {
+        startLogin(message);
+      } else if (!handleMessage(message)) {
+        disconnect();
+      }
+    }
+
+    private void startLogin(String name) {
+      CompletableFuture<Boolean> claimed = beginLogin(name, helloFlags);
+      if (claimed.isDone()) {
+        loggedIn = finishLogin(claimed.join());
+        return;
+      }
+      loggingIn = true;
+      key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+      claimed.thenAccept(granted -> loop.execute(() -> onLogin(granted)));
+    }
+
+    private void onLogin(boolean claimed) {
+      loggingIn = false;
+      loggedIn = finishLogin(claimed);
+      String message;
+      while (loggedIn && !stopFlag.get() && (message = held.poll()) != null) {
+        if (!handleMessage(message)) {
+          disconnect();
+        }
+      }
+      held.clear();
+      if (!loggedIn || stopFlag.get()) {
+        return;
+      }
+      try {
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+      } catch (CancelledKeyException e) {
+        return;
+      }
+      if (hasBufferedInput()) {
+        loop.read(this);
+      }
+    }
+
+    // A resumable session waits for the client to come back, see ChatServer.setSessionResumption.
+    private void connectionLost() {
+      if (!loggedIn || !detach()) {
+        disconnect();
+      }
+    }
+
+    private void disconnect() {
+      if (loggedIn) {
+        logout();
+      } else {
+        server.removeUnhandledUser(this);
+      }
+      close();
+    }
+
+    @Override
+    void wakeWriter() {
+      loop.scheduleWrite(this);
+    }
+
+    @Override
+    WireFormat getWireFormat() {
+      return format;
+    }
+
+    @Override
+    long getLastReadNanos() {
+      return lastReadNanos;
+    }
+
+    // Runs on the event loop only. Queued frames are gathered into a single write of up to
+    // maxBatchBytes; a partially written batch stays in flight until the channel is writable again.
+    // Over TLS, the batch is encrypted into as few records as it fits in.
+    private void flush() {
+      if (key == null || !key.isValid()) {
+        return;
+      }
+
+      try {
+        while (format != null) {
+          while (!finished && inflight.size() < MAX_GATHER && inflightBytes < loop.maxBatchBytes) {
+            OutboundMessage message = outbound.poll();
+            if (message == null) {
+              break;
+            }
+            if (message == OutboundQueue.END) {
+              finished = true;
+              break;
+            }
+            ByteBuffer frame = recordSent(message) ? message.buffer(format, deflateThreshold) : null;
+            if (frame != null) {
+              inflight.add(frame);
+              inflightBytes += frame.remaining();
+            }
+          }
+
+          if (inflight.isEmpty()) {
+            break;
+          }
+
+          int count = inflight.size();
+          ByteBuffer[] batch = inflight.toArray(loop.gather);
+          inflightBytes -= tls != null ? tls.write(batch, 0, count) : channel.write(batch, 0, count);
+          Arrays.fill(batch, 0, count, null);
+          while (!inflight.isEmpty() && !inflight.peek().hasRemaining()) {
+            inflight.poll();
+          }
+          if (!inflight.isEmpty()) {
+            break;
+          }
+        }
+        // Over TLS, frames left over once the encrypted bytes are all out wait for a handshake the
+        // client started, which reads move on.
+        boolean blocked = tls != null ? !tls.flush() : !inflight.isEmpty();
+        if (blocked) {
+          key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+          return;
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+
+        if (finished && inflight.isEmpty()) {
+          close();
+        }
+      } catch (CancelledKeyException e) {
+        // Closed by another thread meanwhile.
+      } catch (IOException e) {
+        System.out.println("Sending a message has failed (" + e.getMessage() + ")");
+        server.metrics().sendFailed();
+        connectionLost();
+      }
+    }
+
+    @Override
+    public void close() {
+      stopFlag.set(true);
+      endHandshake();
+      closeConnection();
+      outbound.clear();
+    }
+
+    @Override
+    void closeConnection() {
+      try {
+        if (key != null) {
+          key.cancel();
+        }
+        if (tls != null) {
+          tls.close();
+        } else {
+          channel.close();
+        }
+      } catch (Exception e) {
+        System.out.println("Closing a user has failed (" + e.getMessage() + ")");
+      }
+    }
+  }
+}
@@ -0,0 +1,180 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Direct messages for users who are offline, spooled to one file per user until they log in again.
+// A user is known once they have logged in, which creates their (empty) spool.
+//
+// Spool record: [long stored at, in epoch millis][int frame length][FrameCodec TEXT frame]
+final class OfflineMailbox {
+  private static final String SUFFIX = ".spool";
+  private static final int RECORD_HEADER = 8 + 4;
+  private static final int LOCK_STRIPES = 64;
+  // Longer names are hashed, since hex doubles their length and file names stop at 255 bytes.
+  private static final int MAX_HEX_NAME = 128;
+
+  private final Path directory;
+  private final long maxBytes;
+  private final long maxAgeMillis;
+  // The spool file names, so it grows with the spool directory only.
+  private final Set<String> known = ConcurrentHashMap.newKeySet();
+  // Spools are locked by stripe rather than one lock per user ever seen.
+  private final Object[] locks = new Object[LOCK_STRIPES];
+
+  OfflineMailbox(Path directory, long maxBytes, long maxAgeMillis) {
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+    this.maxAgeMillis = maxAgeMillis;
+    for (int i = 0; i < locks.length; i++) {
+      locks[i] = new Object();
+    }
+  }
+
+  void open() throws IOException {
+    Files.createDirectories(directory);
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+      for (Path file : files) {
+        known.add(file.getFileName().toString());
+      }
+    }
+  }
+
+  boolean isKnown(String userName) {
+    return known.contains(spoolName(userName));
+  }
+
+  // Returns false if the user's spool is full, even once its expired messages are dropped, or if
+  // the message doesn't fit in a frame.
+  boolean store(String userName, OutboundMessage message) throws IOException {
+    ByteBuffer frame = message.buffer(WireFormat.FRAMED);
+    if (frame == null) {
+      return false;
+    }
+    ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+    header.putLong(System.currentTimeMillis()).putInt(frame.remaining()).flip();
+    int length = header.remaining() + frame.remaining();
+
+    synchronized (lock(userName)) {
+      try (FileChannel spool = FileChannel.open(directory.resolve(spoolName(userName)),
+        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        long size = spool.size();
+        if (size + length > maxBytes) {
+          size = compact(spool);
+          if (size + length > maxBytes) {
+            return false;
+          }
+        }
+        spool.position(size);
+        spool.write(new ByteBuffer[] {header, frame});
+      }
+    }
+    return true;
+  }
+
+  // Creates the user's spool if needed and hands its unexpired messages, oldest first, to deliver.
+  // The spool is only emptied if deliver accepts them.
+  void drain(String userName, Delivery deliver) throws IOException {
+    synchronized (lock(userName)) {
+      String name = spoolName(userName);
+      Path file = directory.resolve(name);
+      known.add(name);
+      if (!Files.exists(file)) {
+        Files.createFile(file);
+        return;
+      }
+
+      ByteBuffer records = ByteBuffer.wrap(Files.readAllBytes(file));
+      if (!records.hasRemaining()) {
+        return;
+      }
+
+      List<OutboundMessage> messages = new ArrayList<>();
+      for (ByteBuffer record : unexpired(records)) {
+        record.position(RECORD_HEADER);
+        messages.add(OutboundMessage.framed(record.slice()));
+      }
+
+      if (messages.isEmpty() || deliver.accept(messages)) {
+        try (FileChannel spool = FileChannel.open(file, StandardOpenOption.WRITE)) {
+          spool.truncate(0);
+        }
+      }
+    }
+  }
+
+  // Rewrites the spool without its expired messages and returns its new size.
+  private long compact(FileChannel spool) throws IOException {
+    ByteBuffer records = ByteBuffer.allocate((int) spool.size());
+    while (records.hasRemaining() && spool.read(records, records.position()) >= 0) {
+    }
+    records.flip();
+
+    long size = 0;
+    for (ByteBuffer record : unexpired(records)) {
+      while (record.hasRemaining()) {
+        size += spool.write(record, size);
+      }
+    }
+    spool.truncate(size);
+    return size;
+  }
+
+  // The unexpired records, each with its header, up to a torn write at the end of the spool.
+  private List<ByteBuffer> unexpired(ByteBuffer records) {
+    long expired = System.currentTimeMillis() - maxAgeMillis;
+    List<ByteBuffer> kept = new ArrayList<>();
+    while (records.remaining() >= RECORD_HEADER) {
+      int start = records.position();
+      long storedAt = records.getLong();
+      int length = records.getInt();
+      if (length < FrameCodec.HEADER_SIZE || length > records.remaining()) {
+        break;
+      }
+      records.position(records.position() + length);
+      if (storedAt >= expired) {
+        ByteBuffer record = records.duplicate();
+        record.limit(records.position()).position(start);
+        kept.add(record.slice());
+      }
+    }
+    return kept;
+  }
+
+  private Object lock(String userName) {
+    return locks[Math.floorMod(userName.hashCode(), locks.length)];
+  }
+
+  // The UTF-8 name in hex, or "sha256-" and its SHA-256 in hex if the name is long.
+  private static String spoolName(String userName) {
+    byte[] bytes = userName.getBytes(StandardCharsets.UTF_8);
+    String prefix = "";
+    if (bytes.length * 2 > MAX_HEX_NAME) {
+      try {
+        bytes = MessageDigest.getInstance("SHA-256").digest(bytes);
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException(e);
+      }
+      prefix = "sha256-";
+    }
+    StringBuilder name = new StringBuilder(prefix);
+    for (byte b : bytes) {
+      name.append(Character.forDigit(b >> 4 & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return name.append(SUFFIX).toString();
+  }
+
+  interface Delivery {
+    boolean accept(List<OutboundMessage> messages);
+  }
+}
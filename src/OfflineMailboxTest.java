@@ -0,0 +1,99 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class OfflineMailboxTest {
+  @Test
+  public void spoolSurvivesRestartUntilDelivered() throws Exception {
+    Path directory = Files.createTempDirectory("mailbox");
+    try {
+      OfflineMailbox mailbox = new OfflineMailbox(directory, 1024, 60_000);
+      mailbox.open();
+      assertFalse(mailbox.isKnown("b\u00f6b"));
+      mailbox.drain("b\u00f6b", messages -> true);
+      assertTrue(mailbox.isKnown("b\u00f6b"));
+      assertTrue(mailbox.store("b\u00f6b", new OutboundMessage("1")));
+      assertTrue(mailbox.store("b\u00f6b", new OutboundMessage("2")));
+
+      mailbox = new OfflineMailbox(directory, 1024, 60_000);
+      mailbox.open();
+      assertTrue(mailbox.isKnown("b\u00f6b"));
+      assertEquals(Arrays.asList("1", "2"), drain(mailbox, "b\u00f6b", false));
+      assertEquals(Arrays.asList("1", "2"), drain(mailbox, "b\u00f6b", true));
+      assertEquals(Arrays.asList(), drain(mailbox, "b\u00f6b", true));
+    } finally {
+      delete(directory);
+    }
+  }
+
+  @Test
+  public void limitsSizeAndAge() throws Exception {
+    Path directory = Files.createTempDirectory("mailbox");
+    try {
+      OfflineMailbox mailbox = new OfflineMailbox(directory, 64, 50);
+      mailbox.open();
+      mailbox.drain("bob", messages -> true);
+      assertTrue(mailbox.store("bob", new OutboundMessage("first message")));
+      assertTrue(mailbox.store("bob", new OutboundMessage("second message")));
+      assertFalse(mailbox.store("bob", new OutboundMessage("third message")));
+
+      // Storing makes room by dropping the expired messages.
+      Thread.sleep(100);
+      assertTrue(mailbox.store("bob", new OutboundMessage("third message")));
+      assertEquals(Arrays.asList("third message"), drain(mailbox, "bob", true));
+    } finally {
+      delete(directory);
+    }
+  }
+
+  @Test
+  public void spoolsLongNames() throws Exception {
+    Path directory = Files.createTempDirectory("mailbox");
+    try {
+      String longName = String.join("", Collections.nCopies(100, "\u00e9"));
+      String otherName = longName.substring(1) + "e";
+      OfflineMailbox mailbox = new OfflineMailbox(directory, 1024, 60_000);
+      mailbox.open();
+      mailbox.drain(longName, messages -> true);
+      assertTrue(mailbox.store(longName, new OutboundMessage("hello")));
+      assertFalse(mailbox.isKnown(otherName));
+
+      mailbox = new OfflineMailbox(directory, 1024, 60_000);
+      mailbox.open();
+      assertTrue(mailbox.isKnown(longName));
+      assertFalse(mailbox.isKnown(otherName));
+      assertEquals(Arrays.asList("hello"), drain(mailbox, longName, true));
+    } finally {
+      delete(directory);
+    }
+  }
+
+  private static List<String> drain(OfflineMailbox mailbox, String userName, boolean accept) throws IOException {
+    List<String> texts = new ArrayList<>();
+    mailbox.drain(userName, messages -> {
+      messages.forEach(message -> texts.add(message.getText()));
+      return accept;
+    });
+    return texts;
+  }
+
+  private static void delete(Path directory) throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      for (Path file : (Iterable<Path>) files::iterator) {
+        Files.delete(file);
+      }
+    }
+    Files.delete(directory);
+  }
+}
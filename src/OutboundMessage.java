@@ -0,0 +1,244 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// A message encoded at most once per wire format and shared by every recipient.
+final class OutboundMessage {
+  private static final WireFormat[] FORMATS = WireFormat.values();
+  private static final Encoded UNENCODABLE = new Encoded((byte[]) null);
+
+  private String text;
+  private final OutboundMessage[] parts;
+  private boolean control = false;
+  private final AtomicReferenceArray<Encoded> encoded = new AtomicReferenceArray<>(FORMATS.length);
+  // The frame for clients that accept DEFLATED frames, compressed at most once.
+  private volatile Encoded deflated;
+
+  OutboundMessage(String text) {
+    this.text = text;
+    this.parts = null;
+  }
+
+  private OutboundMessage(byte[] frame) {
+    this.parts = null;
+    encoded.set(WireFormat.FRAMED.ordinal(), new Encoded(frame));
+  }
+
+  private OutboundMessage(ByteBuffer frame) {
+    this.parts = null;
+    encoded.set(WireFormat.FRAMED.ordinal(), new Encoded(frame));
+  }
+
+  private OutboundMessage(OutboundMessage[] parts) {
+    this.parts = parts;
+  }
+
+  // An empty frame of the given type, which formats other than FRAMED skip.
+  static OutboundMessage control(byte type) {
+    return control(FrameCodec.encode(type, new byte[0]));
+  }
+
+  // A frame other than TEXT, which formats other than FRAMED skip.
+  static OutboundMessage control(byte[] frame) {
+    OutboundMessage message = new OutboundMessage(frame);
+    message.control = true;
+    for (WireFormat format : FORMATS) {
+      if (format != WireFormat.FRAMED) {
+        message.encoded.set(format.ordinal(), UNENCODABLE);
+      }
+    }
+    return message;
+  }
+
+  // Several messages that take one queue slot and go out in one write, in order.
+  static OutboundMessage batch(List<OutboundMessage> messages) {
+    return new OutboundMessage(messages.toArray(new OutboundMessage[0]));
+  }
+
+  // A message around a TEXT frame that already exists elsewhere, such as a mapped history segment.
+  // The frame is sent from where it is and only copied for stream transports.
+  static OutboundMessage framed(ByteBuffer frame) {
+    return new OutboundMessage(frame.asReadOnlyBuffer());
+  }
+
+  // Whether chat(sender, body) fits in a frame. Only bodies that could be too long are scanned.
+  static boolean fitsChat(byte[] sender, String body) {
+    int overhead = MessageClock.LENGTH + 1 + sender.length + 2;
+    return overhead + body.length() * 3 <= FrameCodec.MAX_FRAME_LENGTH
+      || overhead + FrameCodec.utf8Length(body) <= FrameCodec.MAX_FRAME_LENGTH;
+  }
+
+  // "HH:mm:ss.SSSSSS sender: body", assembled straight into its frame: the frame is the only
+  // allocation, and the text is only decoded if a legacy client needs it.
+  // Past the frame limit, see fitsChat, the message is one that no format can carry.
+  static OutboundMessage chat(byte[] sender, String body) {
+    int length = MessageClock.LENGTH + 1 + sender.length + 2 + FrameCodec.utf8Length(body);
+    if (length > FrameCodec.MAX_FRAME_LENGTH) {
+      OutboundMessage message = new OutboundMessage(
+        MessageClock.now() + " " + new String(sender, StandardCharsets.UTF_8) + ": " + body);
+      for (WireFormat format : FORMATS) {
+        message.encoded.set(format.ordinal(), UNENCODABLE);
+      }
+      return message;
+    }
+    byte[] frame = new byte[FrameCodec.HEADER_SIZE + length];
+    FrameCodec.writeHeader(frame, FrameCodec.TEXT, length);
+
+    int offset = FrameCodec.HEADER_SIZE;
+    MessageClock.render(frame, offset);
+    offset += MessageClock.LENGTH;
+    frame[offset++] = ' ';
+    System.arraycopy(sender, 0, frame, offset, sender.length);
+    offset += sender.length;
+    frame[offset++] = ':';
+    frame[offset++] = ' ';
+    FrameCodec.writeUtf8(body, frame, offset);
+    return new OutboundMessage(frame);
+  }
+
+  // Control frames don't count as messages for resumable sessions.
+  boolean isControl() {
+    return control;
+  }
+
+  // The messages of a batch, or null if this is a single message. Callers must not modify them.
+  OutboundMessage[] parts() {
+    return parts;
+  }
+
+  String getText() {
+    if (text == null && parts != null) {
+      StringBuilder joined = new StringBuilder();
+      for (OutboundMessage part : parts) {
+        if (joined.length() > 0) {
+          joined.append("\n");
+        }
+        joined.append(part.getText());
+      }
+      text = joined.toString();
+    } else if (text == null) {
+      ByteBuffer frame = buffer(WireFormat.FRAMED);
+      frame.position(frame.position() + FrameCodec.HEADER_SIZE);
+      text = FrameCodec.text(frame);
+    }
+    return text;
+  }
+
+  // A private view of the shared read-only frame, or null if the format can't carry this message
+  // (legacy frames are limited to 64 KB).
+  ByteBuffer buffer(WireFormat format) {
+    Encoded frame = encoded(format);
+    return frame.buffer != null ? frame.buffer.duplicate() : null;
+  }
+
+  // The shared frame bytes for stream transports, or null like buffer(). Callers must not modify them.
+  byte[] bytes(WireFormat format) {
+    Encoded frame = encoded(format);
+    if (frame.bytes == null && frame.buffer != null) {
+      return bytes(frame.buffer);
+    }
+    return frame.bytes;
+  }
+
+  // Like buffer(format), except that framed clients that accept DEFLATED frames get a compressed
+  // frame if the text has at least deflateThreshold bytes. The threshold must be the same for every
+  // call on a message, as the compressed frame is shared by all of them.
+  ByteBuffer buffer(WireFormat format, int deflateThreshold) {
+    Encoded frame = encoded(format, deflateThreshold);
+    return frame.buffer != null ? frame.buffer.duplicate() : null;
+  }
+
+  byte[] bytes(WireFormat format, int deflateThreshold) {
+    Encoded frame = encoded(format, deflateThreshold);
+    return frame.bytes != null ? frame.bytes : frame.buffer != null ? bytes(frame.buffer) : null;
+  }
+
+  private Encoded encoded(WireFormat format, int deflateThreshold) {
+    if (format != WireFormat.FRAMED || deflateThreshold == Integer.MAX_VALUE) {
+      return encoded(format);
+    }
+    Encoded frame = deflated;
+    if (frame != null) {
+      return frame;
+    }
+
+    if (parts != null) {
+      ByteArrayOutputStream frames = new ByteArrayOutputStream();
+      for (OutboundMessage part : parts) {
+        byte[] bytes = part.bytes(format, deflateThreshold);
+        if (bytes != null) {
+          frames.write(bytes, 0, bytes.length);
+        }
+      }
+      frame = new Encoded(frames.toByteArray());
+    } else {
+      frame = encoded(format);
+      if (frame.buffer != null && frame.buffer.remaining() - FrameCodec.HEADER_SIZE >= deflateThreshold) {
+        byte[] compressed = FrameCodec.deflate(frame.buffer);
+        if (compressed != null) {
+          frame = new Encoded(compressed);
+        }
+      }
+    }
+    // Racing callers compress the same frame; any of the results will do.
+    deflated = frame;
+    return frame;
+  }
+
+  private static byte[] bytes(ByteBuffer frame) {
+    ByteBuffer buffer = frame.duplicate();
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    return bytes;
+  }
+
+  private Encoded encoded(WireFormat format) {
+    Encoded frame = encoded.get(format.ordinal());
+    if (frame != null) {
+      return frame;
+    }
+
+    if (parts != null) {
+      frame = new Encoded(concat(format));
+    } else {
+      try {
+        frame = new Encoded(format.encode(getText()));
+      } catch (IOException e) {
+        frame = UNENCODABLE;
+      }
+    }
+    if (!encoded.compareAndSet(format.ordinal(), null, frame)) {
+      frame = encoded.get(format.ordinal());
+    }
+    return frame;
+  }
+
+  private byte[] concat(WireFormat format) {
+    ByteArrayOutputStream frames = new ByteArrayOutputStream();
+    for (OutboundMessage part : parts) {
+      byte[] bytes = part.bytes(format);
+      if (bytes != null) {
+        frames.write(bytes, 0, bytes.length);
+      }
+    }
+    return frames.toByteArray();
+  }
+
+  private static final class Encoded {
+    private final byte[] bytes;
+    private final ByteBuffer buffer;
+
+    private Encoded(byte[] bytes) {
+      this.bytes = bytes;
+      this.buffer = bytes != null ? ByteBuffer.wrap(bytes).asReadOnlyBuffer() : null;
+    }
+
+    private Encoded(ByteBuffer buffer) {
+      this.bytes = null;
+      this.buffer = buffer;
+    }
+  }
+}
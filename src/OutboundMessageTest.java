@@ -0,0 +1,86 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class OutboundMessageTest {
+  @Test
+  public void chatMessageLayout() throws IOException {
+    OutboundMessage message = OutboundMessage.chat("alice".getBytes(StandardCharsets.UTF_8), "caf\u00e9");
+    String text = message.getText();
+
+    assertTrue(text.matches("\\d\\d:\\d\\d:\\d\\d\\.\\d{6} alice: caf\u00e9"), text);
+    assertArrayEquals(FrameCodec.encodeText(text), message.bytes(WireFormat.FRAMED));
+  }
+
+  @Test
+  public void chatMessagePastTheFrameLimitIsUnencodable() {
+    byte[] alice = "alice".getBytes(StandardCharsets.UTF_8);
+    String body = String.join("", Collections.nCopies(FrameCodec.MAX_FRAME_LENGTH, "x"));
+    assertFalse(OutboundMessage.fitsChat(alice, body));
+    OutboundMessage message = OutboundMessage.chat(alice, body);
+
+    assertNull(message.bytes(WireFormat.FRAMED));
+    assertNull(message.buffer(WireFormat.FRAMED, 1024));
+    assertNull(message.bytes(WireFormat.LEGACY));
+    assertTrue(message.getText().endsWith(" alice: " + body));
+  }
+
+  @Test
+  public void chatMessageReachesLegacyClients() throws IOException {
+    OutboundMessage message = OutboundMessage.chat("alice".getBytes(StandardCharsets.UTF_8), "Hi!");
+    byte[] frame = message.bytes(WireFormat.LEGACY);
+    byte[] stream = new byte[LegacyCodec.STREAM_HEADER.length + frame.length];
+    System.arraycopy(LegacyCodec.STREAM_HEADER, 0, stream, 0, LegacyCodec.STREAM_HEADER.length);
+    System.arraycopy(frame, 0, stream, LegacyCodec.STREAM_HEADER.length, frame.length);
+
+    ObjectInputStream reader = new ObjectInputStream(new ByteArrayInputStream(stream));
+    assertEquals(message.getText(), reader.readUTF());
+    assertEquals("alice: Hi!", message.getText().substring(16));
+  }
+
+  @Test
+  public void batchKeepsMessagesInOrder() throws IOException {
+    OutboundMessage batch = OutboundMessage.batch(Arrays.asList(new OutboundMessage("1"), new OutboundMessage("2")));
+
+    byte[] first = FrameCodec.encodeText("1");
+    byte[] second = FrameCodec.encodeText("2");
+    byte[] frames = new byte[first.length + second.length];
+    System.arraycopy(first, 0, frames, 0, first.length);
+    System.arraycopy(second, 0, frames, first.length, second.length);
+    assertArrayEquals(frames, batch.bytes(WireFormat.FRAMED));
+
+    byte[] legacy = batch.bytes(WireFormat.LEGACY);
+    byte[] stream = new byte[LegacyCodec.STREAM_HEADER.length + legacy.length];
+    System.arraycopy(LegacyCodec.STREAM_HEADER, 0, stream, 0, LegacyCodec.STREAM_HEADER.length);
+    System.arraycopy(legacy, 0, stream, LegacyCodec.STREAM_HEADER.length, legacy.length);
+    ObjectInputStream reader = new ObjectInputStream(new ByteArrayInputStream(stream));
+    assertEquals("1", reader.readUTF());
+    assertEquals("2", reader.readUTF());
+  }
+
+  @Test
+  public void deflatedFrameIsShared() throws IOException {
+    String body = String.join("", Collections.nCopies(100, "all work and no play "));
+    OutboundMessage message = OutboundMessage.chat("alice".getBytes(StandardCharsets.UTF_8), body);
+    byte[] deflated = message.bytes(WireFormat.FRAMED, 1024);
+
+    assertEquals(FrameCodec.DEFLATED, deflated[4]);
+    assertSame(deflated, message.bytes(WireFormat.FRAMED, 1024));
+    assertArrayEquals(FrameCodec.encodeText(message.getText()), message.bytes(WireFormat.FRAMED));
+
+    OutboundMessage small = OutboundMessage.chat("alice".getBytes(StandardCharsets.UTF_8), "Hi!");
+    assertArrayEquals(small.bytes(WireFormat.FRAMED), small.bytes(WireFormat.FRAMED, 1024));
+  }
+}
@@ -0,0 +1,76 @@
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Messages waiting for a session's writer. The capacity is a soft bound: concurrent producers may
+// overshoot it by a few entries, which is cheaper than serializing them.
+final class OutboundQueue {
+  // Queued by finish() to have the writer close the session once everything before it is written.
+  static final OutboundMessage END = new OutboundMessage("");
+
+  private final LinkedBlockingQueue<OutboundMessage> queue = new LinkedBlockingQueue<>();
+  private final int capacity;
+  private final AtomicLong dropped = new AtomicLong(0);
+
+  OutboundQueue(int capacity) {
+    this.capacity = capacity;
+  }
+
+  // Returns false if the message was rejected, in which case DISCONNECT callers close the session.
+  boolean offer(OutboundMessage message, ChatServer.SlowConsumerPolicy policy) {
+    if (queue.size() >= capacity) {
+      if (policy != ChatServer.SlowConsumerPolicy.DROP_OLDEST) {
+        dropped.incrementAndGet();
+        return false;
+      }
+      if (queue.poll() != null) {
+        dropped.incrementAndGet();
+      }
+    }
+    queue.add(message);
+    return true;
+  }
+
+  // Queues the message whatever the capacity, for messages that were admitted once already.
+  void put(OutboundMessage message) {
+    queue.add(message);
+  }
+
+  // Moves the queued messages, except END, to the end of the other queue.
+  void transferTo(OutboundQueue other) {
+    OutboundMessage message;
+    while ((message = queue.poll()) != null) {
+      if (message != END) {
+        other.queue.add(message);
+      }
+    }
+  }
+
+  void finish() {
+    queue.add(END);
+  }
+
+  OutboundMessage poll() {
+    return queue.poll();
+  }
+
+  OutboundMessage poll(long timeout, TimeUnit unit) throws InterruptedException {
+    return queue.poll(timeout, unit);
+  }
+
+  OutboundMessage take() throws InterruptedException {
+    return queue.take();
+  }
+
+  void clear() {
+    queue.clear();
+  }
+
+  int size() {
+    return queue.size();
+  }
+
+  long getDropped() {
+    return dropped.get();
+  }
+}
@@ -0,0 +1,52 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class OutboundQueueTest {
+  @Test
+  public void dropOldest() {
+    OutboundQueue queue = fill(ChatServer.SlowConsumerPolicy.DROP_OLDEST);
+
+    assertTrue(queue.offer(new OutboundMessage("4"), ChatServer.SlowConsumerPolicy.DROP_OLDEST));
+    assertEquals(3, queue.size());
+    assertEquals(1, queue.getDropped());
+    assertEquals("2", queue.poll().getText());
+    assertEquals("3", queue.poll().getText());
+    assertEquals("4", queue.poll().getText());
+    assertNull(queue.poll());
+  }
+
+  @Test
+  public void dropNewest() {
+    OutboundQueue queue = fill(ChatServer.SlowConsumerPolicy.DROP_NEWEST);
+
+    assertFalse(queue.offer(new OutboundMessage("4"), ChatServer.SlowConsumerPolicy.DROP_NEWEST));
+    assertEquals(3, queue.size());
+    assertEquals(1, queue.getDropped());
+    assertEquals("1", queue.poll().getText());
+  }
+
+  @Test
+  public void finishBypassesCapacity() {
+    OutboundQueue queue = fill(ChatServer.SlowConsumerPolicy.DISCONNECT);
+
+    assertFalse(queue.offer(new OutboundMessage("4"), ChatServer.SlowConsumerPolicy.DISCONNECT));
+    queue.finish();
+    assertEquals(4, queue.size());
+    queue.poll();
+    queue.poll();
+    queue.poll();
+    assertTrue(queue.poll() == OutboundQueue.END);
+  }
+
+  private static OutboundQueue fill(ChatServer.SlowConsumerPolicy policy) {
+    OutboundQueue queue = new OutboundQueue(3);
+    for (int i = 1; i <= 3; i++) {
+      assertTrue(queue.offer(new OutboundMessage(String.valueOf(i)), policy));
+    }
+    return queue;
+  }
+}
@@ -0,0 +1,64 @@
+import java.util.ArrayList;
+import java.util.List;
+
+// The last messages written to a resumable session, numbered in the order they went out, so that a
+// client that reconnects can be sent exactly the ones it missed. Numbering starts after the session's
+// SESSION frame, like the client's count; messages written before it are ignored. Holds at most
+// capacity messages, overwriting the oldest, so a client that missed more than that can't resume.
+final class ReplayRing {
+  private final OutboundMessage[] messages;
+  private final OutboundMessage start;
+  private long lastSequence;
+  private boolean started = false;
+  private boolean sealed = false;
+
+  ReplayRing(int capacity, long lastSequence, OutboundMessage start) {
+    this.messages = new OutboundMessage[capacity];
+    this.lastSequence = lastSequence;
+    this.start = start;
+  }
+
+  // Called by the session's writer for every message it takes off the queue. Returns false once the
+  // ring has been sealed, because the session has moved to another connection.
+  synchronized boolean add(OutboundMessage message) {
+    if (sealed) {
+      return false;
+    }
+    if (!started) {
+      started = message == start;
+    } else if (!message.isControl()) {
+      append(message);
+    }
+    return true;
+  }
+
+  private void append(OutboundMessage message) {
+    OutboundMessage[] parts = message.parts();
+    if (parts == null) {
+      lastSequence++;
+      messages[(int) (lastSequence % messages.length)] = message;
+      return;
+    }
+    for (OutboundMessage part : parts) {
+      append(part);
+    }
+  }
+
+  synchronized long getLastSequence() {
+    return lastSequence;
+  }
+
+  // Stops numbering and returns the messages after the given one, oldest first, or null if some of
+  // them have been overwritten already or the client claims messages that were never sent.
+  synchronized List<OutboundMessage> seal(long sequence) {
+    sealed = true;
+    if (sequence > lastSequence || sequence < lastSequence - messages.length || sequence < 0) {
+      return null;
+    }
+    List<OutboundMessage> missed = new ArrayList<>((int) (lastSequence - sequence));
+    for (long next = sequence + 1; next <= lastSequence; next++) {
+      missed.add(messages[(int) (next % messages.length)]);
+    }
+    return missed;
+  }
+}
@@ -0,0 +1,50 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ReplayRingTest {
+  @Test
+  public void numbersMessagesAfterTheSessionFrame() {
+    OutboundMessage session = OutboundMessage.control(FrameCodec.encodeSession(FrameCodec.SESSION, 5, "token"));
+    OutboundMessage before = new OutboundMessage("before");
+    OutboundMessage first = new OutboundMessage("first");
+    OutboundMessage second = new OutboundMessage("second");
+    OutboundMessage third = new OutboundMessage("third");
+    ReplayRing ring = new ReplayRing(8, 5, session);
+
+    assertTrue(ring.add(before));
+    assertTrue(ring.add(session));
+    assertTrue(ring.add(first));
+    assertTrue(ring.add(OutboundMessage.control(FrameCodec.PING)));
+    assertTrue(ring.add(OutboundMessage.batch(List.of(second, third))));
+    assertEquals(8, ring.getLastSequence());
+
+    List<OutboundMessage> missed = ring.seal(6);
+    assertEquals(2, missed.size());
+    assertSame(second, missed.get(0));
+    assertSame(third, missed.get(1));
+    assertFalse(ring.add(new OutboundMessage("late")));
+  }
+
+  @Test
+  public void refusesGapsItNoLongerHolds() {
+    OutboundMessage session = OutboundMessage.control(FrameCodec.PING);
+    ReplayRing ring = new ReplayRing(4, 0, session);
+    ring.add(session);
+    for (int i = 0; i < 10; i++) {
+      ring.add(new OutboundMessage("message " + i));
+    }
+
+    assertNull(new ReplayRing(4, 0, session).seal(1));
+    assertNull(ring.seal(5));
+    assertEquals(4, ring.seal(6).size());
+    assertEquals(0, ring.seal(10).size());
+    assertNull(ring.seal(11));
+  }
+}
@@ -0,0 +1,140 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Rooms by name. A room is created by the first user who joins it and removed with its last member,
+// except for the lobby every user starts in. Membership changes run under the directory's lock for
+// the room name, so a room can't be removed while someone is joining it.
+final class RoomDirectory {
+  static final String LOBBY = "lobby";
+
+  private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+
+  RoomDirectory() {
+    rooms.put(LOBBY, new Room(LOBBY));
+  }
+
+  // The room if it has members (or is the lobby), else null.
+  Room get(String roomName) {
+    return rooms.get(roomName);
+  }
+
+  Room join(String roomName, ChatServer.ServerUser user) {
+    return rooms.compute(roomName, (name, room) -> {
+      if (room == null) {
+        room = new Room(name);
+      }
+      room.add(user);
+      return room;
+    });
+  }
+
+  void leave(Room room, ChatServer.ServerUser user) {
+    rooms.computeIfPresent(room.getName(), (name, current) -> {
+      if (current != room) {
+        return current;
+      }
+      room.remove(user);
+      return room.isEmpty() && !name.equals(LOBBY) ? null : room;
+    });
+  }
+
+  // Swaps a member for a new session with the same id in one step, so that a broadcast reaches
+  // exactly one of them.
+  void replace(Room room, ChatServer.ServerUser previous, ChatServer.ServerUser user) {
+    rooms.computeIfPresent(room.getName(), (name, current) -> {
+      if (current == room) {
+        room.replace(previous, user);
+      }
+      return current;
+    });
+  }
+
+  // Member counts by room name, in name order.
+  Map<String, Integer> counts() {
+    Map<String, Integer> counts = new TreeMap<>();
+    for (Room room : rooms.values()) {
+      counts.put(room.getName(), room.size());
+    }
+    return counts;
+  }
+
+  // Members by session id, because ServerUser equality is by name. Like UserRegistry, broadcasts
+  // iterate an immutable array that is rebuilt at most once per membership change.
+  static final class Room {
+    private static final ChatServer.ServerUser[] EMPTY = new ChatServer.ServerUser[0];
+
+    private final String name;
+    private final byte[] nameBytes;
+    private final ConcurrentHashMap<Integer, ChatServer.ServerUser> members = new ConcurrentHashMap<>();
+    private final AtomicLong version = new AtomicLong(0);
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>(new Snapshot(0, EMPTY));
+
+    private Room(String name) {
+      this.name = name;
+      this.nameBytes = name.getBytes(StandardCharsets.UTF_8);
+    }
+
+    String getName() {
+      return name;
+    }
+
+    byte[] getNameBytes() {
+      return nameBytes;
+    }
+
+    int size() {
+      return members.size();
+    }
+
+    boolean isEmpty() {
+      return members.isEmpty();
+    }
+
+    private void add(ChatServer.ServerUser user) {
+      if (members.put(user.getUserId(), user) == null) {
+        version.incrementAndGet();
+      }
+    }
+
+    private void remove(ChatServer.ServerUser user) {
+      if (members.remove(user.getUserId(), user)) {
+        version.incrementAndGet();
+      }
+    }
+
+    private void replace(ChatServer.ServerUser previous, ChatServer.ServerUser user) {
+      if (members.replace(user.getUserId(), previous, user)) {
+        version.incrementAndGet();
+      }
+    }
+
+    // The returned array is shared and must not be modified.
+    ChatServer.ServerUser[] members() {
+      Snapshot current = snapshot.get();
+      long latest = version.get();
+      if (current.version == latest) {
+        return current.members;
+      }
+
+      Snapshot rebuilt = new Snapshot(latest, members.values().toArray(EMPTY));
+      while (current.version < latest && !snapshot.compareAndSet(current, rebuilt)) {
+        current = snapshot.get();
+      }
+      return rebuilt.members;
+    }
+
+    private static final class Snapshot {
+      private final long version;
+      private final ChatServer.ServerUser[] members;
+
+      private Snapshot(long version, ChatServer.ServerUser[] members) {
+        this.version = version;
+        this.members = members;
+      }
+    }
+  }
+}
@@ -0,0 +1,345 @@
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters are LongAdders so that recording never contends on a shared cache line; everything
+// derived from them (rates, percentiles, backlogs) is computed when it is read.
+final class ServerMetrics implements ServerMetricsMXBean {
+  enum MessageType {
+    BROADCAST,
+    DIRECT,
+    WHOIS,
+    PENGU,
+    SYSTEM
+  }
+
+  private static final MessageType[] TYPES = MessageType.values();
+
+  private final ChatServer server;
+  private final Rate accepts = new Rate();
+  private final Histogram handshakes = new Histogram();
+  private final LongAdder handshakesRejected = new LongAdder();
+  private final LongAdder handshakesTimedOut = new LongAdder();
+  private final LongAdder sessionsReaped = new LongAdder();
+  private final LongAdder sessionsResumed = new LongAdder();
+  private final LongAdder tlsHandshakes = new LongAdder();
+  private final LongAdder tlsResumptions = new LongAdder();
+  private final LongAdder messagesLimited = new LongAdder();
+  private final LongAdder[] messagesIn = adders(TYPES.length);
+  private final LongAdder[] messagesOut = adders(TYPES.length);
+  private final Histogram fanOuts = new Histogram();
+  private final LongAdder sendFailures = new LongAdder();
+
+  ServerMetrics(ChatServer server) {
+    this.server = server;
+  }
+
+  void connectionAccepted() {
+    accepts.mark();
+  }
+
+  void handshakeCompleted(long nanos) {
+    handshakes.record(nanos);
+  }
+
+  void handshakeRejected() {
+    handshakesRejected.increment();
+  }
+
+  void handshakeTimedOut() {
+    handshakesTimedOut.increment();
+  }
+
+  void sessionReaped() {
+    sessionsReaped.increment();
+  }
+
+  void sessionResumed() {
+    sessionsResumed.increment();
+  }
+
+  void tlsHandshakeFinished(boolean resumed) {
+    tlsHandshakes.increment();
+    if (resumed) {
+      tlsResumptions.increment();
+    }
+  }
+
+  void messageIn(MessageType type) {
+    messagesIn[type.ordinal()].increment();
+  }
+
+  void messageLimited() {
+    messagesLimited.increment();
+  }
+
+  void messagesOut(MessageType type, int count) {
+    messagesOut[type.ordinal()].add(count);
+  }
+
+  void fanOutCompleted(long nanos) {
+    fanOuts.record(nanos);
+  }
+
+  void sendFailed() {
+    sendFailures.increment();
+  }
+
+  @Override
+  public int getActiveSessions() {
+    return server.getUserCount();
+  }
+
+  @Override
+  public int getUnhandledSessions() {
+    return server.getUnhandledUserCount();
+  }
+
+  @Override
+  public long getAcceptedConnections() {
+    return accepts.getCount();
+  }
+
+  @Override
+  public double getAcceptRate() {
+    return accepts.getOneMinuteRate();
+  }
+
+  @Override
+  public long getHandshakes() {
+    return handshakes.getCount();
+  }
+
+  @Override
+  public double getHandshakeMeanMicros() {
+    return handshakes.getMean() / 1000;
+  }
+
+  @Override
+  public long getHandshakeP99Micros() {
+    return TimeUnit.NANOSECONDS.toMicros(handshakes.getValueAtPercentile(99));
+  }
+
+  @Override
+  public long getHandshakeMaxMicros() {
+    return TimeUnit.NANOSECONDS.toMicros(handshakes.getMax());
+  }
+
+  @Override
+  public long getHandshakesRejected() {
+    return handshakesRejected.sum();
+  }
+
+  @Override
+  public long getHandshakesTimedOut() {
+    return handshakesTimedOut.sum();
+  }
+
+  @Override
+  public long getSessionsReaped() {
+    return sessionsReaped.sum();
+  }
+
+  @Override
+  public long getSessionsResumed() {
+    return sessionsResumed.sum();
+  }
+
+  @Override
+  public long getTlsHandshakes() {
+    return tlsHandshakes.sum();
+  }
+
+  @Override
+  public long getTlsResumptions() {
+    return tlsResumptions.sum();
+  }
+
+  @Override
+  public long getMessagesLimited() {
+    return messagesLimited.sum();
+  }
+
+  @Override
+  public Map<String, Long> getMessagesIn() {
+    return byType(messagesIn, MessageType.PENGU);
+  }
+
+  @Override
+  public Map<String, Long> getMessagesOut() {
+    return byType(messagesOut, MessageType.SYSTEM);
+  }
+
+  @Override
+  public long getFanOuts() {
+    return fanOuts.getCount();
+  }
+
+  @Override
+  public double getFanOutMeanMicros() {
+    return fanOuts.getMean() / 1000;
+  }
+
+  @Override
+  public long getFanOutP50Micros() {
+    return TimeUnit.NANOSECONDS.toMicros(fanOuts.getValueAtPercentile(50));
+  }
+
+  @Override
+  public long getFanOutP99Micros() {
+    return TimeUnit.NANOSECONDS.toMicros(fanOuts.getValueAtPercentile(99));
+  }
+
+  @Override
+  public long getFanOutMaxMicros() {
+    return TimeUnit.NANOSECONDS.toMicros(fanOuts.getMax());
+  }
+
+  @Override
+  public long getSendFailures() {
+    return sendFailures.sum();
+  }
+
+  @Override
+  public int getMaxOutboundBacklog() {
+    return server.getMaxQueueDepth();
+  }
+
+  @Override
+  public Map<String, Integer> getOutboundBacklog() {
+    return server.getQueueDepths();
+  }
+
+  private static Map<String, Long> byType(LongAdder[] counters, MessageType last) {
+    Map<String, Long> counts = new LinkedHashMap<>();
+    for (MessageType type : TYPES) {
+      counts.put(type.name(), counters[type.ordinal()].sum());
+      if (type == last) {
+        break;
+      }
+    }
+    return Collections.unmodifiableMap(counts);
+  }
+
+  private static LongAdder[] adders(int count) {
+    LongAdder[] adders = new LongAdder[count];
+    for (int i = 0; i < count; i++) {
+      adders[i] = new LongAdder();
+    }
+    return adders;
+  }
+
+  // An exponentially weighted one-minute rate, ticked every five seconds by whichever caller
+  // notices that a tick is due.
+  static final class Rate {
+    private static final long TICK_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final double ALPHA = 1 - Math.exp(-5.0 / 60);
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder uncounted = new LongAdder();
+    private final AtomicLong lastTick = new AtomicLong(System.nanoTime());
+    private volatile double rate = -1;
+
+    void mark() {
+      count.increment();
+      uncounted.increment();
+      tickIfNecessary();
+    }
+
+    long getCount() {
+      return count.sum();
+    }
+
+    // Events per second.
+    double getOneMinuteRate() {
+      tickIfNecessary();
+      return Math.max(0, rate) * TimeUnit.SECONDS.toNanos(1) / TICK_NANOS;
+    }
+
+    private void tickIfNecessary() {
+      long last = lastTick.get();
+      long age = System.nanoTime() - last;
+      if (age < TICK_NANOS || !lastTick.compareAndSet(last, last + age - age % TICK_NANOS)) {
+        return;
+      }
+
+      // Only the caller that moved lastTick gets here, so the rate has a single writer.
+      double current = rate;
+      for (long ticks = age / TICK_NANOS; ticks > 0; ticks--) {
+        long events = ticks == age / TICK_NANOS ? uncounted.sumThenReset() : 0;
+        current = current < 0 ? events : current + ALPHA * (events - current);
+      }
+      rate = current;
+    }
+  }
+
+  // A log-linear histogram with 32 linear sub-buckets per power of two, so values are kept within
+  // about 3% of their true value. Each bucket is a LongAdder, which makes recording lock-free.
+  static final class Histogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final long HIGHEST_TRACKABLE = TimeUnit.MINUTES.toNanos(10);
+
+    private final LongAdder[] counts = adders(index(HIGHEST_TRACKABLE) + 1);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    void record(long value) {
+      value = Math.max(0, Math.min(value, HIGHEST_TRACKABLE));
+      counts[index(value)].increment();
+      count.increment();
+      sum.add(value);
+      max.accumulate(value);
+    }
+
+    long getCount() {
+      return count.sum();
+    }
+
+    long getMax() {
+      return max.get();
+    }
+
+    double getMean() {
+      long recorded = count.sum();
+      return recorded > 0 ? (double) sum.sum() / recorded : 0;
+    }
+
+    long getValueAtPercentile(double percentile) {
+      long[] snapshot = new long[counts.length];
+      long total = 0;
+      for (int i = 0; i < counts.length; i++) {
+        snapshot[i] = counts[i].sum();
+        total += snapshot[i];
+      }
+      if (total == 0) {
+        return 0;
+      }
+
+      long target = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+      long seen = 0;
+      for (int i = 0; i < snapshot.length; i++) {
+        seen += snapshot[i];
+        if (seen >= target) {
+          return Math.min(highestEquivalent(i), getMax());
+        }
+      }
+      return getMax();
+    }
+
+    private static int index(long value) {
+      int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+      return (int) ((shift << SUB_BUCKET_BITS) + (value >>> shift));
+    }
+
+    private static long highestEquivalent(int index) {
+      int shift = Math.max(0, (index >>> SUB_BUCKET_BITS) - 1);
+      long lowest = (long) (index - (shift << SUB_BUCKET_BITS)) << shift;
+      return lowest + (1L << shift) - 1;
+    }
+  }
+}
@@ -0,0 +1,64 @@
+import java.util.Map;
+
+// The management view of a running ChatServer, registered as ChatServer:type=Metrics,port=<port>.
+public interface ServerMetricsMXBean {
+  int getActiveSessions();
+
+  int getUnhandledSessions();
+
+  long getAcceptedConnections();
+
+  // Connections accepted per second, averaged over about the last minute.
+  double getAcceptRate();
+
+  long getHandshakes();
+
+  double getHandshakeMeanMicros();
+
+  long getHandshakeP99Micros();
+
+  long getHandshakeMaxMicros();
+
+  // Connections closed because too many handshakes were in progress.
+  long getHandshakesRejected();
+
+  // Connections closed because they didn't log in before the handshake deadline.
+  long getHandshakesTimedOut();
+
+  // Connections closed because they sent nothing, not even a heartbeat, for the idle timeout.
+  long getSessionsReaped();
+
+  // Sessions a client picked up again on a new connection.
+  long getSessionsResumed();
+
+  // TLS handshakes finished, and how many of them resumed an earlier TLS session.
+  long getTlsHandshakes();
+
+  long getTlsResumptions();
+
+  // Commands refused by a rate limit.
+  long getMessagesLimited();
+
+  // Messages received from clients, keyed by BROADCAST, DIRECT, WHOIS and PENGU.
+  Map<String, Long> getMessagesIn();
+
+  // Messages queued for delivery, keyed like getMessagesIn() plus SYSTEM for server notices.
+  Map<String, Long> getMessagesOut();
+
+  long getFanOuts();
+
+  double getFanOutMeanMicros();
+
+  long getFanOutP50Micros();
+
+  long getFanOutP99Micros();
+
+  long getFanOutMaxMicros();
+
+  // Messages rejected or evicted by an outbound queue, plus socket writes that failed.
+  long getSendFailures();
+
+  int getMaxOutboundBacklog();
+
+  Map<String, Integer> getOutboundBacklog();
+}
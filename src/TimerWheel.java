@@ -0,0 +1,162 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A hashed timer wheel: timeouts hash into one of a fixed ring of buckets by their deadline tick,
+// and one thread visits a single bucket per tick. Scheduling and cancelling are O(1) and never
+// contend with the ticking thread, and a tick only touches the timeouts that hash to its bucket,
+// so per-session timers stay cheap with any number of sessions. Deadlines are rounded up to the
+// next tick.
+final class TimerWheel {
+  private final long tickNanos;
+  private final Bucket[] wheel;
+  private final int mask;
+  private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<>();
+  private final Thread worker;
+  private volatile boolean stopped = false;
+  private long startNanos;
+  private long tick = 0;
+
+  TimerWheel(String name, long tickDuration, TimeUnit unit, int ticksPerWheel) {
+    this.tickNanos = Math.max(1, unit.toNanos(tickDuration));
+    int size = Integer.highestOneBit(Math.max(1, ticksPerWheel - 1)) << 1;
+    this.wheel = new Bucket[size];
+    for (int i = 0; i < size; i++) {
+      wheel[i] = new Bucket();
+    }
+    this.mask = size - 1;
+    this.worker = new Thread(this::run, name);
+    this.worker.setDaemon(true);
+  }
+
+  void start() {
+    startNanos = System.nanoTime();
+    worker.start();
+  }
+
+  void stop() {
+    stopped = true;
+    worker.interrupt();
+    try {
+      worker.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // Runs the task on the wheel's thread once the delay has passed, unless it is cancelled first.
+  // Tasks must be short; a slow one delays every timeout behind it.
+  Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+    Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(Math.max(0, delay)));
+    if (!stopped) {
+      added.add(timeout);
+    }
+    return timeout;
+  }
+
+  private void run() {
+    while (!stopped) {
+      long deadline = startNanos + (tick + 1) * tickNanos;
+      long sleep = deadline - System.nanoTime();
+      if (sleep > 0) {
+        try {
+          TimeUnit.NANOSECONDS.sleep(sleep);
+        } catch (InterruptedException e) {
+          continue;
+        }
+      }
+
+      transferAdded();
+      wheel[(int) (tick & mask)].expire(tick);
+      tick++;
+    }
+  }
+
+  private void transferAdded() {
+    Timeout timeout;
+    while ((timeout = added.poll()) != null) {
+      if (timeout.state.get() == Timeout.CANCELLED) {
+        continue;
+      }
+      // Never into a bucket the wheel has already passed this round.
+      long due = Math.max(tick, (timeout.deadline - startNanos + tickNanos - 1) / tickNanos);
+      timeout.dueTick = due;
+      wheel[(int) (due & mask)].add(timeout);
+    }
+  }
+
+  static final class Timeout {
+    private static final int PENDING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private final Runnable task;
+    private final long deadline;
+    private final AtomicInteger state = new AtomicInteger(PENDING);
+    private long dueTick;
+    private Timeout next;
+    private Timeout previous;
+
+    private Timeout(Runnable task, long deadline) {
+      this.task = task;
+      this.deadline = deadline;
+    }
+
+    // Returns false if the task has run or is running already.
+    boolean cancel() {
+      return state.compareAndSet(PENDING, CANCELLED);
+    }
+  }
+
+  // A list of timeouts that is only touched by the wheel's thread.
+  private static final class Bucket {
+    private Timeout head;
+    private Timeout tail;
+
+    void add(Timeout timeout) {
+      timeout.previous = tail;
+      timeout.next = null;
+      if (tail == null) {
+        head = timeout;
+      } else {
+        tail.next = timeout;
+      }
+      tail = timeout;
+    }
+
+    void expire(long tick) {
+      Timeout timeout = head;
+      while (timeout != null) {
+        Timeout next = timeout.next;
+        if (timeout.state.get() == Timeout.CANCELLED) {
+          remove(timeout);
+        } else if (timeout.dueTick <= tick) {
+          remove(timeout);
+          if (timeout.state.compareAndSet(Timeout.PENDING, Timeout.EXPIRED)) {
+            try {
+              timeout.task.run();
+            } catch (Exception e) {
+              System.out.println("Running a timeout has failed (" + e.getMessage() + ")");
+            }
+          }
+        }
+        timeout = next;
+      }
+    }
+
+    private void remove(Timeout timeout) {
+      if (timeout.previous == null) {
+        head = timeout.next;
+      } else {
+        timeout.previous.next = timeout.next;
+      }
+      if (timeout.next == null) {
+        tail = timeout.previous;
+      } else {
+        timeout.next.previous = timeout.previous;
+      }
+      timeout.next = null;
+      timeout.previous = null;
+    }
+  }
+}
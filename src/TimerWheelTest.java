@@ -0,0 +1,58 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TimerWheelTest {
+  @Test
+  public void expiresInDeadlineOrder() throws Exception {
+    // 8 buckets of 10 ms, so the longest delay goes around the wheel more than once.
+    TimerWheel timers = new TimerWheel("test-timers", 10, TimeUnit.MILLISECONDS, 8);
+    timers.start();
+    List<Integer> expired = new CopyOnWriteArrayList<>();
+    CountDownLatch done = new CountDownLatch(3);
+    long started = System.nanoTime();
+    timers.schedule(() -> {
+      expired.add(250);
+      done.countDown();
+    }, 250, TimeUnit.MILLISECONDS);
+    timers.schedule(() -> {
+      expired.add(30);
+      done.countDown();
+    }, 30, TimeUnit.MILLISECONDS);
+    timers.schedule(() -> {
+      expired.add(120);
+      done.countDown();
+    }, 120, TimeUnit.MILLISECONDS);
+
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertTrue(System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(250));
+    assertEquals(List.of(30, 120, 250), expired);
+    timers.stop();
+  }
+
+  @Test
+  public void cancelledTimeoutsDontRun() throws Exception {
+    TimerWheel timers = new TimerWheel("test-timers", 10, TimeUnit.MILLISECONDS, 8);
+    timers.start();
+    List<String> expired = new CopyOnWriteArrayList<>();
+    CountDownLatch done = new CountDownLatch(1);
+    TimerWheel.Timeout cancelled = timers.schedule(() -> expired.add("cancelled"), 50, TimeUnit.MILLISECONDS);
+    TimerWheel.Timeout kept = timers.schedule(() -> {
+      expired.add("kept");
+      done.countDown();
+    }, 100, TimeUnit.MILLISECONDS);
+
+    assertTrue(cancelled.cancel());
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertFalse(kept.cancel());
+    assertEquals(List.of("kept"), expired);
+    timers.stop();
+  }
+}
@@ -0,0 +1,436 @@
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.locks.ReentrantLock;
+
+// TLS over any pair of byte channels with an SSLEngine, so that the blocking and the non-blocking
+// engines share it. Over blocking channels, reads and writes block like a socket's. Over
+// non-blocking ones they return 0 when the transport can't go on: the handshake then advances as
+// the caller reads, and flush() writes out what is left once the channel is writable. One thread
+// may read while another writes. Encrypted and decrypted bytes sit in buffers borrowed from a
+// BufferPool only while they are in flight.
+final class TlsChannel implements ByteChannel, GatheringByteChannel {
+  // Holds a whole TLS record, 16709 bytes with the JDK's default maximum.
+  static final int BUFFER_SIZE = 17 * 1024;
+
+  private static final ByteBuffer[] NOTHING = { ByteBuffer.allocate(0) };
+  // unwrapRecord() found no whole record and a non-blocking source had no more bytes.
+  private static final int NO_INPUT = -2;
+
+  interface Listener {
+    // Called once, by the thread that finished the handshake.
+    void handshakeFinished(TlsChannel channel, boolean resumed);
+  }
+
+  private final SSLEngine engine;
+  private final ReadableByteChannel source;
+  private final WritableByteChannel sink;
+  private final BufferPool buffers;
+  private final Listener listener;
+  private final long createdMillis = System.currentTimeMillis();
+  private final ReentrantLock readLock = new ReentrantLock();
+  private final ReentrantLock writeLock = new ReentrantLock();
+  private int packetSize;
+  private int applicationSize;
+  private volatile boolean finished = false;
+  private volatile boolean closed = false;
+
+  // Guarded by readLock, in read mode: bytes received but not yet unwrapped, and bytes unwrapped but
+  // not yet read.
+  private ByteBuffer netIn;
+  private ByteBuffer appIn;
+  private boolean inboundDone = false;
+  // Guarded by writeLock, in read mode: bytes wrapped but not yet written.
+  private ByteBuffer netOut;
+
+  private TlsChannel(SSLEngine engine, ReadableByteChannel source, WritableByteChannel sink, BufferPool buffers,
+    Listener listener) throws SSLException {
+    this.engine = engine;
+    this.source = source;
+    this.sink = sink;
+    this.buffers = buffers;
+    this.listener = listener;
+    this.packetSize = engine.getSession().getPacketBufferSize();
+    this.applicationSize = engine.getSession().getApplicationBufferSize();
+    engine.beginHandshake();
+  }
+
+  static TlsChannel server(SSLContext context, ReadableByteChannel source, WritableByteChannel sink,
+    BufferPool buffers, Listener listener) throws SSLException {
+    SSLEngine engine = context.createSSLEngine();
+    engine.setUseClientMode(false);
+    return new TlsChannel(engine, source, sink, buffers, listener);
+  }
+
+  // The host and port pick the session to resume from the context's cache and are checked against
+  // the server's certificate, so reconnects should use the same context.
+  static TlsChannel client(SSLContext context, String host, int port, ReadableByteChannel source,
+    WritableByteChannel sink, BufferPool buffers) throws SSLException {
+    SSLEngine engine = context.createSSLEngine(host, port);
+    engine.setUseClientMode(true);
+    SSLParameters parameters = engine.getSSLParameters();
+    parameters.setEndpointIdentificationAlgorithm("HTTPS");
+    engine.setSSLParameters(parameters);
+    return new TlsChannel(engine, source, sink, buffers, null);
+  }
+
+  SSLSession getSession() {
+    return engine.getSession();
+  }
+
+  boolean isHandshakeFinished() {
+    return finished;
+  }
+
+  // Runs the handshake to its end over blocking channels, for clients, which speak first.
+  void handshake() throws IOException {
+    readLock.lock();
+    try {
+      while (true) {
+        ensureOpen();
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+          runTasks();
+        } else if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+          flush();
+        } else if (status == SSLEngineResult.HandshakeStatus.NEED_UNWRAP
+          || status == SSLEngineResult.HandshakeStatus.NEED_UNWRAP_AGAIN) {
+          int count = unwrapRecord();
+          if (count == -1) {
+            throw new EOFException("the connection closed during the TLS handshake");
+          } else if (count == NO_INPUT) {
+            throw new IllegalStateException("handshake() needs a blocking channel");
+          }
+        } else {
+          return;
+        }
+      }
+    } finally {
+      releaseRead();
+    }
+  }
+
+  @Override
+  public int read(ByteBuffer dst) throws IOException {
+    readLock.lock();
+    try {
+      while (true) {
+        ensureOpen();
+        if (appIn != null && appIn.hasRemaining()) {
+          int count = Math.min(appIn.remaining(), dst.remaining());
+          int limit = appIn.limit();
+          appIn.limit(appIn.position() + count);
+          dst.put(appIn);
+          appIn.limit(limit);
+          return count;
+        }
+        if (inboundDone) {
+          return -1;
+        }
+        if (!dst.hasRemaining()) {
+          return 0;
+        }
+
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+          runTasks();
+        } else if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+          if (!flush()) {
+            return 0;
+          }
+        } else {
+          int count = unwrapRecord();
+          if (count == -1) {
+            return -1;
+          } else if (count == NO_INPUT) {
+            return 0;
+          }
+        }
+      }
+    } finally {
+      releaseRead();
+    }
+  }
+
+  // Whether bytes have been received that read() hasn't returned yet. A non-blocking caller reads on
+  // until there are none, as no readiness event comes for them.
+  boolean hasBufferedInput() {
+    return appIn != null && appIn.hasRemaining() || netIn != null && netIn.hasRemaining();
+  }
+
+  @Override
+  public int write(ByteBuffer src) throws IOException {
+    return (int) write(new ByteBuffer[] { src }, 0, 1);
+  }
+
+  @Override
+  public long write(ByteBuffer[] srcs) throws IOException {
+    return write(srcs, 0, srcs.length);
+  }
+
+  // Returns the number of bytes taken from srcs, which may all be taken while their encrypted form
+  // still waits for a non-blocking channel; flush() writes it out.
+  @Override
+  public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+    writeLock.lock();
+    try {
+      long consumed = 0;
+      while (true) {
+        ensureOpen();
+        if (!flushNetOut()) {
+          return consumed;
+        }
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+          runTasks();
+          continue;
+        }
+        if (status == SSLEngineResult.HandshakeStatus.NEED_UNWRAP
+          || status == SSLEngineResult.HandshakeStatus.NEED_UNWRAP_AGAIN) {
+          // Waits for the peer's answer, which the reader brings in.
+          return consumed;
+        }
+        if (status != SSLEngineResult.HandshakeStatus.NEED_WRAP && !hasRemaining(srcs, offset, length)) {
+          return consumed;
+        }
+        consumed += wrap(srcs, offset, length);
+      }
+    } finally {
+      releaseWrite();
+    }
+  }
+
+  // Writes out what is pending: bytes a non-blocking channel didn't take, and the handshake's
+  // messages. Returns false if some are still waiting for the channel to become writable.
+  boolean flush() throws IOException {
+    writeLock.lock();
+    try {
+      while (true) {
+        ensureOpen();
+        if (!flushNetOut()) {
+          return false;
+        }
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+          runTasks();
+        } else if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+          wrap(NOTHING, 0, 1);
+        } else {
+          return true;
+        }
+      }
+    } finally {
+      releaseWrite();
+    }
+  }
+
+  // Closes the channels without a close_notify, which a blocked writer couldn't send anyway; the chat
+  // protocol ends sessions by itself. Buffers held by a thread that is still reading or writing go
+  // back to the pool when it returns.
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    engine.closeOutbound();
+    try {
+      source.close();
+      if (sink != source) {
+        sink.close();
+      }
+    } finally {
+      if (readLock.tryLock()) {
+        releaseRead();
+      }
+      if (writeLock.tryLock()) {
+        releaseWrite();
+      }
+    }
+  }
+
+  @Override
+  public boolean isOpen() {
+    return !closed;
+  }
+
+  // Unwraps one record, reading from the source first if no whole record has been received. Returns
+  // the number of application bytes it held, 0 for a handshake record, -1 at the end of the stream,
+  // or NO_INPUT.
+  private int unwrapRecord() throws IOException {
+    while (true) {
+      if (netIn != null && netIn.hasRemaining()) {
+        if (appIn == null) {
+          appIn = buffers.acquire(applicationSize);
+          appIn.flip();
+        }
+        appIn.compact();
+        SSLEngineResult result;
+        try {
+          result = engine.unwrap(netIn, appIn);
+        } finally {
+          appIn.flip();
+        }
+        checkFinished(result);
+        switch (result.getStatus()) {
+          case OK:
+            return result.bytesProduced();
+          case CLOSED:
+            inboundDone = true;
+            return -1;
+          case BUFFER_OVERFLOW:
+            applicationSize = engine.getSession().getApplicationBufferSize();
+            appIn = grow(appIn, applicationSize);
+            continue;
+          default:
+            // BUFFER_UNDERFLOW: the rest of the record is still to come.
+            break;
+        }
+      }
+
+      if (netIn == null) {
+        netIn = buffers.acquire(packetSize);
+        netIn.flip();
+      } else if (netIn.remaining() == netIn.capacity()) {
+        packetSize = Math.max(engine.getSession().getPacketBufferSize(), packetSize);
+        netIn = grow(netIn, packetSize);
+      }
+      netIn.compact();
+      int count;
+      try {
+        count = source.read(netIn);
+      } finally {
+        netIn.flip();
+      }
+      if (count < 0) {
+        inboundDone = true;
+        try {
+          engine.closeInbound();
+        } catch (SSLException e) {
+          // The peer closed the connection without a close_notify.
+        }
+        return -1;
+      } else if (count == 0) {
+        return NO_INPUT;
+      }
+    }
+  }
+
+  // Wraps srcs into netOut, which is empty, and writes it out as far as the sink takes it.
+  private int wrap(ByteBuffer[] srcs, int offset, int length) throws IOException {
+    while (true) {
+      if (netOut == null) {
+        netOut = buffers.acquire(packetSize);
+      } else {
+        netOut.clear();
+      }
+      SSLEngineResult result;
+      try {
+        result = engine.wrap(srcs, offset, length, netOut);
+      } finally {
+        netOut.flip();
+      }
+      checkFinished(result);
+      if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+        packetSize = Math.max(engine.getSession().getPacketBufferSize(), netOut.capacity() + 1);
+        buffers.release(netOut);
+        netOut = null;
+        continue;
+      }
+      if (result.getStatus() == SSLEngineResult.Status.CLOSED && result.bytesProduced() == 0) {
+        throw new ClosedChannelException();
+      }
+      flushNetOut();
+      return result.bytesConsumed();
+    }
+  }
+
+  private boolean flushNetOut() throws IOException {
+    if (netOut == null) {
+      return true;
+    }
+    while (netOut.hasRemaining()) {
+      if (sink.write(netOut) == 0) {
+        return false;
+      }
+    }
+    buffers.release(netOut);
+    netOut = null;
+    return true;
+  }
+
+  private void checkFinished(SSLEngineResult result) {
+    if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED && !finished) {
+      finished = true;
+      if (listener != null) {
+        // A resumed session is the one an earlier connection created.
+        listener.handshakeFinished(this, engine.getSession().getCreationTime() < createdMillis);
+      }
+    }
+  }
+
+  private void runTasks() {
+    Runnable task;
+    while ((task = engine.getDelegatedTask()) != null) {
+      task.run();
+    }
+  }
+
+  // The bytes of buffer, in read mode, in a buffer with room for at least space more.
+  private ByteBuffer grow(ByteBuffer buffer, int space) {
+    ByteBuffer larger = buffers.acquire(buffer.remaining() + space);
+    larger.put(buffer).flip();
+    buffers.release(buffer);
+    return larger;
+  }
+
+  // Unlocks the read side, returning its drained buffers to the pool.
+  private void releaseRead() {
+    try {
+      if (netIn != null && (closed || !netIn.hasRemaining())) {
+        buffers.release(netIn);
+        netIn = null;
+      }
+      if (appIn != null && (closed || !appIn.hasRemaining())) {
+        buffers.release(appIn);
+        appIn = null;
+      }
+    } finally {
+      readLock.unlock();
+    }
+  }
+
+  private void releaseWrite() {
+    try {
+      if (netOut != null && closed) {
+        buffers.release(netOut);
+        netOut = null;
+      }
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  private void ensureOpen() throws ClosedChannelException {
+    if (closed) {
+      throw new ClosedChannelException();
+    }
+  }
+
+  private static boolean hasRemaining(ByteBuffer[] buffers, int offset, int length) {
+    for (int i = offset; i < offset + length; i++) {
+      if (buffers[i].hasRemaining()) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,187 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.TrustManagerFactory;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TlsChannelTest {
+  private static final char[] PASSWORD = "changeit".toCharArray();
+  private static KeyStore keyStore;
+  private static SSLContext serverContext;
+
+  // A self-signed certificate for localhost and 127.0.0.1, made by the JDK's keytool.
+  private static synchronized KeyStore keyStore() throws Exception {
+    if (keyStore == null) {
+      Path directory = Files.createTempDirectory("chat-tls");
+      Path file = directory.resolve("localhost.p12");
+      Process keytool = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "keytool").toString(),
+        "-genkeypair", "-alias", "localhost", "-keyalg", "EC", "-groupname", "secp256r1", "-validity", "2",
+        "-dname", "CN=localhost", "-ext", "san=dns:localhost,ip:127.0.0.1", "-storetype", "PKCS12",
+        "-keystore", file.toString(), "-storepass", new String(PASSWORD), "-keypass", new String(PASSWORD))
+        .redirectErrorStream(true)
+        .start();
+      keytool.getInputStream().transferTo(OutputStream.nullOutputStream());
+      if (!keytool.waitFor(60, TimeUnit.SECONDS) || keytool.exitValue() != 0) {
+        throw new IOException("keytool has failed");
+      }
+      KeyStore store = KeyStore.getInstance("PKCS12");
+      try (InputStream in = Files.newInputStream(file)) {
+        store.load(in, PASSWORD);
+      }
+      Files.delete(file);
+      Files.delete(directory);
+      keyStore = store;
+    }
+    return keyStore;
+  }
+
+  static synchronized SSLContext serverContext() throws Exception {
+    if (serverContext == null) {
+      KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+      keys.init(keyStore(), PASSWORD);
+      SSLContext context = SSLContext.getInstance("TLS");
+      context.init(keys.getKeyManagers(), null, null);
+      serverContext = context;
+    }
+    return serverContext;
+  }
+
+  // A new client context each time, with a session cache of its own.
+  static SSLContext clientContext() throws Exception {
+    TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+    trust.init(keyStore());
+    SSLContext context = SSLContext.getInstance("TLS");
+    context.init(null, trust.getTrustManagers(), null);
+    return context;
+  }
+
+  @Test
+  public void resumesSessionsAndReturnsBuffers() throws Exception {
+    SSLContext clientContext = clientContext();
+    BufferPool serverBuffers = new BufferPool(TlsChannel.BUFFER_SIZE, 8);
+    BufferPool clientBuffers = new BufferPool(TlsChannel.BUFFER_SIZE, 8);
+    try (ServerSocketChannel acceptor = ServerSocketChannel.open()) {
+      acceptor.bind(new InetSocketAddress("127.0.0.1", 0));
+      int port = ((InetSocketAddress) acceptor.getLocalAddress()).getPort();
+
+      for (int i = 0; i < 3; i++) {
+        CompletableFuture<Boolean> resumed = new CompletableFuture<>();
+        SocketChannel client = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+        SocketChannel accepted = acceptor.accept();
+        CompletableFuture<Void> echoed = CompletableFuture.runAsync(() -> {
+          try (TlsChannel server = TlsChannel.server(serverContext(), accepted, accepted, serverBuffers,
+            (channel, again) -> resumed.complete(again))) {
+            ByteBuffer buffer = ByteBuffer.allocate(5);
+            while (buffer.hasRemaining() && server.read(buffer) >= 0) {
+            }
+            buffer.flip();
+            server.write(buffer);
+          } catch (Exception e) {
+            throw new RuntimeException(e);
+          }
+        });
+
+        TlsChannel tls = TlsChannel.client(clientContext, "127.0.0.1", port, client, client, clientBuffers);
+        tls.handshake();
+        assertTrue(tls.isHandshakeFinished());
+        tls.write(ByteBuffer.wrap("hello".getBytes()));
+        ByteBuffer answer = ByteBuffer.allocate(5);
+        while (answer.hasRemaining() && tls.read(answer) >= 0) {
+        }
+        assertEquals("hello", new String(answer.array()));
+        echoed.get(10, TimeUnit.SECONDS);
+        assertEquals(i > 0, resumed.get(10, TimeUnit.SECONDS));
+        tls.close();
+        assertFalse(client.isOpen());
+      }
+    }
+    assertTrue(serverBuffers.getPooled() > 0);
+    assertTrue(clientBuffers.getPooled() > 0);
+  }
+
+  @Test
+  public void writesLargeBatchesWithoutBlocking() throws Exception {
+    byte[] data = new byte[256 * 1024];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) i;
+    }
+    BufferPool buffers = new BufferPool(TlsChannel.BUFFER_SIZE, 8);
+    try (ServerSocketChannel acceptor = ServerSocketChannel.open()) {
+      acceptor.bind(new InetSocketAddress("127.0.0.1", 0));
+      int port = ((InetSocketAddress) acceptor.getLocalAddress()).getPort();
+      SocketChannel client = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+      SocketChannel accepted = acceptor.accept();
+      CompletableFuture<byte[]> received = CompletableFuture.supplyAsync(() -> {
+        try (TlsChannel server = TlsChannel.server(serverContext(), accepted, accepted, buffers, null)) {
+          ByteBuffer buffer = ByteBuffer.allocate(data.length);
+          while (buffer.hasRemaining() && server.read(buffer) >= 0) {
+          }
+          return buffer.array();
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      });
+
+      // The client drives its handshake and its writes from one thread, as an event loop would.
+      client.configureBlocking(false);
+      TlsChannel tls = TlsChannel.client(clientContext(), "localhost", port, client, client, buffers);
+      ByteBuffer[] batch = { ByteBuffer.wrap(data, 0, 1000), ByteBuffer.wrap(data, 1000, data.length - 1000) };
+      ByteBuffer ignored = ByteBuffer.allocate(1024);
+      long written = 0;
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+      while ((written < data.length || !tls.flush()) && System.nanoTime() < deadline) {
+        tls.flush();
+        tls.read(ignored);
+        written += tls.write(batch, 0, batch.length);
+        Thread.sleep(1);
+      }
+      assertEquals(data.length, written);
+      assertArrayEquals(data, received.get(10, TimeUnit.SECONDS));
+      tls.close();
+    }
+  }
+
+  @Test
+  public void refusesUntrustedServers() throws Exception {
+    SSLContext untrusting = SSLContext.getInstance("TLS");
+    untrusting.init(null, null, null);
+    try (ServerSocketChannel acceptor = ServerSocketChannel.open()) {
+      acceptor.bind(new InetSocketAddress("127.0.0.1", 0));
+      int port = ((InetSocketAddress) acceptor.getLocalAddress()).getPort();
+      SocketChannel client = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+      SocketChannel accepted = acceptor.accept();
+      BufferPool buffers = new BufferPool(TlsChannel.BUFFER_SIZE, 8);
+      CompletableFuture.runAsync(() -> {
+        try (TlsChannel server = TlsChannel.server(serverContext(), accepted, accepted, buffers, null)) {
+          server.read(ByteBuffer.allocate(1));
+        } catch (Exception e) {
+          // The client gives up on the handshake.
+        }
+      });
+
+      // The self-signed certificate isn't trusted.
+      TlsChannel tls = TlsChannel.client(untrusting, "localhost", port, client, client, buffers);
+      assertThrows(SSLException.class, tls::handshake);
+      tls.close();
+    }
+  }
+}
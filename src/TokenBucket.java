@@ -0,0 +1,45 @@
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+// A token bucket kept as a single timestamp, the time at which the bucket would be full again
+// (the generic cell rate algorithm). Taking a token is one compare-and-set on that timestamp, so
+// buckets are lock-free, cost one small object each and need no refill thread.
+final class TokenBucket {
+  private static final AtomicLongFieldUpdater<TokenBucket> FULL_AT =
+    AtomicLongFieldUpdater.newUpdater(TokenBucket.class, "fullAt");
+
+  private final long intervalNanos;
+  private final long toleranceNanos;
+  private volatile long fullAt = Long.MIN_VALUE;
+
+  // Refills perSecond tokens a second and holds at most burst of them; starts full.
+  TokenBucket(double perSecond, int burst) {
+    if (!(perSecond > 0)) {
+      throw new IllegalArgumentException("invalid rate: " + perSecond);
+    }
+    this.intervalNanos = (long) Math.max(1, 1e9 / perSecond);
+    this.toleranceNanos = intervalNanos * (Math.max(1, burst) - 1);
+  }
+
+  private TokenBucket(long intervalNanos, long toleranceNanos) {
+    this.intervalNanos = intervalNanos;
+    this.toleranceNanos = toleranceNanos;
+  }
+
+  // A full bucket with the same rate and burst, for another session.
+  TokenBucket copy() {
+    return new TokenBucket(intervalNanos, toleranceNanos);
+  }
+
+  boolean tryAcquire(long nowNanos) {
+    while (true) {
+      long current = fullAt;
+      long start = Math.max(current, nowNanos);
+      if (start - nowNanos > toleranceNanos) {
+        return false;
+      }
+      if (FULL_AT.compareAndSet(this, current, start + intervalNanos)) {
+        return true;
+      }
+    }
+  }
+}
@@ -0,0 +1,41 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TokenBucketTest {
+  private static final long SECOND = 1_000_000_000L;
+
+  @Test
+  public void burstThenRate() {
+    TokenBucket bucket = new TokenBucket(2, 3);
+    long now = 42 * SECOND;
+    assertTrue(bucket.tryAcquire(now));
+    assertTrue(bucket.tryAcquire(now));
+    assertTrue(bucket.tryAcquire(now));
+    assertFalse(bucket.tryAcquire(now));
+
+    // One token every half second.
+    assertFalse(bucket.tryAcquire(now + SECOND / 2 - 1));
+    assertTrue(bucket.tryAcquire(now + SECOND / 2));
+    assertFalse(bucket.tryAcquire(now + SECOND / 2));
+
+    // Refills up to the burst, not beyond it.
+    now += 10 * SECOND;
+    assertTrue(bucket.tryAcquire(now));
+    assertTrue(bucket.tryAcquire(now));
+    assertTrue(bucket.tryAcquire(now));
+    assertFalse(bucket.tryAcquire(now));
+  }
+
+  @Test
+  public void copiesStartFull() {
+    TokenBucket bucket = new TokenBucket(1, 1);
+    assertTrue(bucket.tryAcquire(0));
+    assertFalse(bucket.tryAcquire(0));
+
+    TokenBucket copy = bucket.copy();
+    assertTrue(copy.tryAcquire(0));
+    assertFalse(copy.tryAcquire(0));
+  }
+}
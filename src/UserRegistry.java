@@ -0,0 +1,108 @@
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Logged-in users by name. Admission is a single putIfAbsent, and broadcasts iterate an immutable
+// array that is rebuilt at most once per change, by whichever reader first needs it. The roster
+// keeps the same users sorted by name for WHOIS; it is updated under the hash map's lock for the
+// name, so both maps always agree on who holds it.
+final class UserRegistry {
+  private static final ChatServer.ServerUser[] EMPTY = new ChatServer.ServerUser[0];
+
+  private final ConcurrentHashMap<String, ChatServer.ServerUser> users = new ConcurrentHashMap<>();
+  private final ConcurrentSkipListMap<String, ChatServer.ServerUser> roster = new ConcurrentSkipListMap<>();
+  private final AtomicLong version = new AtomicLong(0);
+  private final AtomicReference<Snapshot> snapshot = new AtomicReference<>(new Snapshot(0, EMPTY));
+
+  boolean claim(String userName, ChatServer.ServerUser user) {
+    if (users.computeIfAbsent(userName, name -> {
+      roster.put(name, user);
+      return user;
+    }) != user) {
+      return false;
+    }
+    version.incrementAndGet();
+    return true;
+  }
+
+  // Removes the user only if it is the session registered under its name.
+  boolean remove(ChatServer.ServerUser user) {
+    if (user.getUserName() == null) {
+      return false;
+    }
+    boolean[] removed = {false};
+    users.computeIfPresent(user.getUserName(), (name, registered) -> {
+      if (registered != user) {
+        return registered;
+      }
+      removed[0] = true;
+      roster.remove(name);
+      return null;
+    });
+    if (removed[0]) {
+      version.incrementAndGet();
+    }
+    return removed[0];
+  }
+
+  // Hands the name over to a new session of the same user, if previous still holds it.
+  boolean replace(ChatServer.ServerUser previous, ChatServer.ServerUser user) {
+    boolean[] replaced = {false};
+    users.computeIfPresent(previous.getUserName(), (name, registered) -> {
+      if (registered != previous) {
+        return registered;
+      }
+      replaced[0] = true;
+      roster.put(name, user);
+      return user;
+    });
+    if (replaced[0]) {
+      version.incrementAndGet();
+    }
+    return replaced[0];
+  }
+
+  ChatServer.ServerUser get(String userName) {
+    return users.get(userName);
+  }
+
+  int size() {
+    return users.size();
+  }
+
+  Collection<ChatServer.ServerUser> values() {
+    return users.values();
+  }
+
+  // Users in name order, starting with the first name that is not less than from.
+  Collection<ChatServer.ServerUser> sorted(String from) {
+    return roster.tailMap(from).values();
+  }
+
+  // The returned array is shared and must not be modified.
+  ChatServer.ServerUser[] snapshot() {
+    Snapshot current = snapshot.get();
+    long latest = version.get();
+    if (current.version == latest) {
+      return current.users;
+    }
+
+    Snapshot rebuilt = new Snapshot(latest, users.values().toArray(EMPTY));
+    while (current.version < latest && !snapshot.compareAndSet(current, rebuilt)) {
+      current = snapshot.get();
+    }
+    return rebuilt.users;
+  }
+
+  private static final class Snapshot {
+    private final long version;
+    private final ChatServer.ServerUser[] users;
+
+    private Snapshot(long version, ChatServer.ServerUser[] users) {
+      this.version = version;
+      this.users = users;
+    }
+  }
+}
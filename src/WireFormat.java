@@ -0,0 +1,18 @@
+import java.io.IOException;
+
+public enum WireFormat {
+  LEGACY {
+    @Override
+    byte[] encode(String msg) throws IOException {
+      return LegacyCodec.encode(msg);
+    }
+  },
+  FRAMED {
+    @Override
+    byte[] encode(String msg) throws IOException {
+      return FrameCodec.encodeText(msg);
+    }
+  };
+
+  abstract byte[] encode(String msg) throws IOException;
+}
@@ -0,0 +1,276 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+
+// Blocking message I/O over a socket, either in the legacy Object-stream format or in FrameCodec frames.
+abstract class WireStream {
+  protected final OutputStream out;
+  // When the last message or heartbeat arrived, for idle timeouts.
+  protected volatile long lastReadNanos = System.nanoTime();
+  // The FrameCodec HELLO flags the peer logged in with.
+  protected int helloFlags = 0;
+  // A resumable session's token and the number of the last message received: on a client, from the
+  // server's SESSION frame and counted on from there, and on a server, from the client's RESUME frame.
+  protected String resumeToken;
+  protected long sequence = 0;
+
+  private WireStream(OutputStream out) {
+    this.out = out;
+  }
+
+  static WireStream connect(InputStream in, OutputStream out, WireFormat format, int bufferSize)
+    throws IOException {
+    out = new BufferedOutputStream(out, bufferSize);
+    if (format == WireFormat.LEGACY) {
+      out.write(LegacyCodec.STREAM_HEADER);
+      out.flush();
+      return new Legacy(new ObjectInputStream(in), out);
+    }
+
+    out.write(FrameCodec.preamble(FrameCodec.VERSION));
+    out.flush();
+    DataInputStream reader = new DataInputStream(new BufferedInputStream(in));
+    byte[] preamble = new byte[FrameCodec.MAGIC.length + 1];
+    reader.readFully(preamble);
+    if (!FrameCodec.isMagic(preamble)) {
+      throw new StreamCorruptedException("the server doesn't speak the framed protocol");
+    }
+    if (preamble[FrameCodec.MAGIC.length] < 1) {
+      throw new StreamCorruptedException("unsupported protocol version");
+    }
+    return new Framed(reader, out);
+  }
+
+  // Tells a legacy client from a framed one by its first bytes and answers with the matching header.
+  static WireStream accept(InputStream in, OutputStream out, int bufferSize) throws IOException {
+    out = new BufferedOutputStream(out, bufferSize);
+    PushbackInputStream pushback = new PushbackInputStream(in, LegacyCodec.STREAM_HEADER.length);
+    byte[] magic = new byte[FrameCodec.MAGIC.length];
+    new DataInputStream(pushback).readFully(magic);
+
+    if (FrameCodec.isMagic(magic)) {
+      int version = Math.min(pushback.read(), FrameCodec.VERSION);
+      if (version < 1) {
+        throw new StreamCorruptedException("unsupported protocol version");
+      }
+      out.write(FrameCodec.preamble(version));
+      out.flush();
+      return new Framed(new DataInputStream(new BufferedInputStream(pushback)), out);
+    }
+
+    pushback.unread(magic);
+    ObjectInputStream reader = new ObjectInputStream(pushback);
+    out.write(LegacyCodec.STREAM_HEADER);
+    out.flush();
+    return new Legacy(reader, out);
+  }
+
+  abstract WireFormat getFormat();
+
+  long getLastReadNanos() {
+    return lastReadNanos;
+  }
+
+  abstract String readLogin() throws IOException;
+
+  abstract String read() throws IOException;
+
+  // Legacy streams have no HELLO frame and drop the flags.
+  abstract void writeLogin(String userName, int flags) throws IOException;
+
+  int getHelloFlags() {
+    return helloFlags;
+  }
+
+  String getResumeToken() {
+    return resumeToken;
+  }
+
+  long getSequence() {
+    return sequence;
+  }
+
+  // Asks the server to resume the session on this connection instead of logging in.
+  void writeResume(String token, long sequence) throws IOException {
+    throw new StreamCorruptedException("only framed sessions can be resumed");
+  }
+
+  // Reads the answer to writeResume: true if the server has resumed the session, false if it has
+  // refused to, in which case it closes the connection.
+  boolean readResumed() throws IOException {
+    throw new StreamCorruptedException("only framed sessions can be resumed");
+  }
+
+  void write(String msg) throws IOException {
+    write(getFormat().encode(msg));
+  }
+
+  void write(byte[] frame) throws IOException {
+    out.write(frame);
+    out.flush();
+  }
+
+  // Buffers the frame until flush(), so several frames can share one socket write.
+  void append(byte[] frame) throws IOException {
+    out.write(frame);
+  }
+
+  void flush() throws IOException {
+    out.flush();
+  }
+
+  abstract void close() throws IOException;
+
+  private static class Legacy extends WireStream {
+    private final ObjectInputStream reader;
+
+    private Legacy(ObjectInputStream reader, OutputStream out) {
+      super(out);
+      this.reader = reader;
+    }
+
+    @Override
+    WireFormat getFormat() {
+      return WireFormat.LEGACY;
+    }
+
+    @Override
+    String readLogin() throws IOException {
+      return read();
+    }
+
+    @Override
+    String read() throws IOException {
+      String message = reader.readUTF();
+      lastReadNanos = System.nanoTime();
+      return message;
+    }
+
+    @Override
+    void writeLogin(String userName, int flags) throws IOException {
+      write(userName);
+    }
+
+    @Override
+    void close() throws IOException {
+      reader.close();
+      out.close();
+    }
+  }
+
+  private static class Framed extends WireStream {
+    private static final byte[] PONG = FrameCodec.encode(FrameCodec.PONG, new byte[0]);
+
+    private final DataInputStream reader;
+    private byte[] payload = new byte[256];
+    private byte lastType;
+
+    private Framed(DataInputStream reader, OutputStream out) {
+      super(out);
+      this.reader = reader;
+    }
+
+    @Override
+    WireFormat getFormat() {
+      return WireFormat.FRAMED;
+    }
+
+    // Returns null for a RESUME frame, see getResumeToken.
+    @Override
+    String readLogin() throws IOException {
+      ByteBuffer frame = readFrame(FrameCodec.HELLO, FrameCodec.RESUME);
+      if (lastType == FrameCodec.RESUME) {
+        readSession(frame);
+        return null;
+      }
+      if (!frame.hasRemaining()) {
+        throw new StreamCorruptedException("truncated hello frame");
+      }
+      helloFlags = frame.get() & 0xFF;
+      return FrameCodec.text(frame);
+    }
+
+    @Override
+    boolean readResumed() throws IOException {
+      ByteBuffer frame = readFrame(FrameCodec.SESSION, FrameCodec.TEXT);
+      if (lastType == FrameCodec.TEXT) {
+        return false;
+      }
+      readSession(frame);
+      return true;
+    }
+
+    // Answers heartbeats and takes note of SESSION frames on the way, so read() only returns text.
+    @Override
+    String read() throws IOException {
+      while (true) {
+        int length = FrameCodec.checkLength(reader.readInt()) - 1;
+        byte type = reader.readByte();
+        lastReadNanos = System.nanoTime();
+        if (type == FrameCodec.PING || type == FrameCodec.PONG) {
+          readPayload(length);
+          if (type == FrameCodec.PING) {
+            write(PONG);
+          }
+          continue;
+        }
+        if (type == FrameCodec.SESSION) {
+          readSession(readPayload(length));
+          continue;
+        }
+        String message;
+        if (type == FrameCodec.DEFLATED) {
+          message = FrameCodec.inflate(readPayload(length));
+        } else if (type == FrameCodec.TEXT) {
+          message = FrameCodec.text(readPayload(length));
+        } else {
+          throw new StreamCorruptedException("unexpected frame type: " + type);
+        }
+        sequence++;
+        return message;
+      }
+    }
+
+    @Override
+    void writeLogin(String userName, int flags) throws IOException {
+      write(FrameCodec.encodeHello(flags, userName));
+    }
+
+    @Override
+    void writeResume(String token, long sequence) throws IOException {
+      write(FrameCodec.encodeSession(FrameCodec.RESUME, sequence, token));
+    }
+
+    private ByteBuffer readFrame(byte expected, byte alternative) throws IOException {
+      int length = FrameCodec.checkLength(reader.readInt()) - 1;
+      lastType = reader.readByte();
+      lastReadNanos = System.nanoTime();
+      ByteBuffer frame = readPayload(length);
+      if (lastType != expected && lastType != alternative) {
+        throw new StreamCorruptedException("unexpected frame type: " + lastType);
+      }
+      return frame;
+    }
+
+    private void readSession(ByteBuffer payload) throws IOException {
+      if (payload.remaining() < 8) {
+        throw new StreamCorruptedException("truncated session frame");
+      }
+      sequence = payload.getLong();
+      resumeToken = FrameCodec.text(payload);
+    }
+
+    private ByteBuffer readPayload(int length) throws IOException {
+      if (payload.length < length) {
+        payload = new byte[length];
+      }
+      reader.readFully(payload, 0, length);
+      return ByteBuffer.wrap(payload, 0, length);
+    }
+
+    @Override
+    void close() throws IOException {
+      reader.close();
+      out.close();
+    }
+  }
+}